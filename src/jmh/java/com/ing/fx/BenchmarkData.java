@@ -0,0 +1,99 @@
+package com.ing.fx;
+
+import java.security.InvalidKeyException;
+import java.security.NoSuchAlgorithmException;
+import java.security.SignatureException;
+import java.util.List;
+import java.util.Random;
+
+import com.ing.fx.block_chain.Transaction;
+import com.ing.fx.scrooge_coin.CompactUTXOStore;
+import com.ing.fx.scrooge_coin.ConcurrentUTXOStore;
+import com.ing.fx.scrooge_coin.HashMapUTXOStore;
+import com.ing.fx.scrooge_coin.OffHeapUTXOStore;
+import com.ing.fx.scrooge_coin.PersistentUTXOStore;
+import com.ing.fx.scrooge_coin.UTXO;
+import com.ing.fx.scrooge_coin.UTXOPool;
+import com.ing.fx.scrooge_coin.UTXOStore;
+
+/**
+ * Input of the benchmarks: a {@link UtxoTestSet} of signed, valid transactions whose pool is padded with
+ * filler UTXOs up to the pool size under test.
+ * The filler outputs all share one {@link Transaction.Output}, only the transactions of the test set
+ * claim real outputs, so a pool of 10^7 UTXOs costs seconds to build instead of 10^7 signatures.
+ */
+final class BenchmarkData {
+
+    /** transactions per test set, also the batch handed to handleTxs */
+    static final int TX_PER_TEST = 100;
+
+    final UTXOPool utxoPool;
+    final Transaction[] txs;
+    /** UTXOs of the pool, in random order, to look up */
+    final UTXO[] utxos;
+
+    private BenchmarkData(UTXOPool utxoPool, Transaction[] txs, UTXO[] utxos) {
+        this.utxoPool = utxoPool;
+        this.txs = txs;
+        this.utxos = utxos;
+    }
+
+    static BenchmarkData create(int poolSize) throws NoSuchAlgorithmException, InvalidKeyException, SignatureException {
+        return create(poolSize, "hashmap");
+    }
+
+    /** @param store the {@link UTXOStore} behind the pool: hashmap, concurrent, compact, offheap or persistent */
+    static BenchmarkData create(int poolSize, String store)
+            throws NoSuchAlgorithmException, InvalidKeyException, SignatureException {
+        final UtxoTestSet utxoTestSet = UtxoTestSet.builder()
+                .setPeopleSize(20)
+                .setUtxoTxNumber(100)
+                .setMaxUtxoTxOutput(10)
+                .setMaxValue(200)
+                .setTxPerTest(TX_PER_TEST)
+                .setMaxInput(4)
+                .setMaxOutput(4)
+                .setCorruptedPercentage(0) // All valid transactions
+                .build();
+        UTXOPool utxoPool = new UTXOPool(newStore(store, poolSize));
+        UTXOPool testSetPool = utxoTestSet.getUtxoPool();
+        for (UTXO utxo: testSetPool.getAllUTXO())
+            utxoPool.addUTXO(utxo, testSetPool.getTxOutput(utxo));
+        List<Transaction> valid = utxoTestSet.getValidationLists().allElements();
+
+        Random random = new Random(poolSize);
+        Transaction.Output filler = utxoPool.getTxOutput(utxoPool.getAllUTXO().get(0));
+        byte[] hash = new byte[32];
+        for (int padding = poolSize - utxoPool.getAllUTXO().size(); padding > 0; padding -= 16) {
+            random.nextBytes(hash);
+            for (int i = 0; i < Math.min(16, padding); i++)
+                utxoPool.addUTXO(new UTXO(hash, i), filler);
+        }
+
+        UTXO[] utxos = utxoPool.getAllUTXO().toArray(new UTXO[0]);
+        for (int i = utxos.length - 1; i > 0; i--) {
+            int j = random.nextInt(i + 1);
+            UTXO swap = utxos[i];
+            utxos[i] = utxos[j];
+            utxos[j] = swap;
+        }
+        return new BenchmarkData(utxoPool, valid.toArray(new Transaction[0]), utxos);
+    }
+
+    private static UTXOStore newStore(String store, int poolSize) {
+        switch (store) {
+            case "concurrent":
+                return new ConcurrentUTXOStore();
+            case "hashmap":
+                return new HashMapUTXOStore();
+            case "compact":
+                return new CompactUTXOStore(poolSize);
+            case "offheap":
+                return new OffHeapUTXOStore(poolSize);
+            case "persistent":
+                return new PersistentUTXOStore();
+            default:
+                throw new IllegalArgumentException("unknown store " + store);
+        }
+    }
+}
@@ -0,0 +1,75 @@
+package com.ing.fx;
+
+import java.security.PublicKey;
+import java.util.concurrent.TimeUnit;
+
+import com.ing.fx.block_chain.Transaction;
+import com.ing.fx.scrooge_coin.Crypto;
+import com.ing.fx.scrooge_coin.SignatureCache;
+import com.ing.fx.scrooge_coin.UTXO;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Throughput of {@link Crypto#verifySignature} over the input signatures of a test set, in signatures
+ * per second. With {@code signatureCache=false} the shared {@link SignatureCache} is emptied before
+ * every pass over the signatures, so the first check of each signature is a real RSA verify.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CryptoBenchmark {
+
+    @Param({"true", "false"})
+    public boolean signatureCache;
+
+    private PublicKey[] keys;
+    private byte[][] messages;
+    private byte[][] signatures;
+    private int next;
+
+    @Setup(Level.Trial)
+    public void createData() throws Exception {
+        BenchmarkData data = BenchmarkData.create(0);
+        int count = 0;
+        for (Transaction tx: data.txs)
+            count += tx.numInputs();
+        keys = new PublicKey[count];
+        messages = new byte[count][];
+        signatures = new byte[count][];
+        int k = 0;
+        for (Transaction tx: data.txs) {
+            for (int i = 0; i < tx.numInputs(); i++) {
+                Transaction.Input input = tx.getInput(i);
+                keys[k] = data.utxoPool.getTxOutput(new UTXO(input.prevTxHash, input.outputIndex)).address;
+                messages[k] = tx.getRawDataToSign(i);
+                signatures[k] = input.signature;
+                k++;
+            }
+        }
+    }
+
+    @Benchmark
+    public boolean verifySignature() {
+        if (next == keys.length) {
+            next = 0;
+            if (!signatureCache)
+                SignatureCache.getShared().clear();
+        }
+        int k = next++;
+        return Crypto.verifySignature(keys[k], messages[k], signatures[k]);
+    }
+}
@@ -0,0 +1,90 @@
+package com.ing.fx;
+
+import java.util.concurrent.TimeUnit;
+
+import com.ing.fx.block_chain.Transaction;
+import com.ing.fx.scrooge_coin.MaxFeeTxHandler;
+import com.ing.fx.scrooge_coin.SignatureCache;
+import com.ing.fx.scrooge_coin.TxHandler;
+import com.ing.fx.scrooge_coin.UTXODelta;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Throughput of validating and handling the {@link BenchmarkData#TX_PER_TEST} valid transactions of a
+ * test set, in transactions per second, against pools of 10^3 to 10^7 UTXOs.
+ * The handlers work in place on one pool and every invocation rolls its changes back, so no
+ * invocation pays for copying the pool. With {@code signatureCache=false} the shared
+ * {@link SignatureCache} is emptied before each invocation and every signature is really verified.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx6g")
+public class TxHandlerBenchmark {
+
+    @Param({"1000", "10000", "100000", "1000000", "10000000"})
+    public int poolSize;
+
+    @Param({"true", "false"})
+    public boolean signatureCache;
+
+    private BenchmarkData data;
+    private UTXODelta delta;
+
+    @Setup(Level.Trial)
+    public void createData() throws Exception {
+        data = BenchmarkData.create(poolSize);
+    }
+
+    @Setup(Level.Invocation)
+    public void startInvocation() {
+        if (!signatureCache)
+            SignatureCache.getShared().clear();
+        delta = new UTXODelta();
+        data.utxoPool.startRecording(delta);
+    }
+
+    @TearDown(Level.Invocation)
+    public void endInvocation() {
+        data.utxoPool.stopRecording();
+        data.utxoPool.rollback(delta);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BenchmarkData.TX_PER_TEST)
+    public int isValidTx() {
+        TxHandler txHandler = TxHandler.inPlace(data.utxoPool);
+        int valid = 0;
+        for (Transaction tx: data.txs)
+            if (txHandler.isValidTx(tx))
+                valid++;
+        return valid;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BenchmarkData.TX_PER_TEST)
+    public Transaction[] handleTxs() {
+        return TxHandler.inPlace(data.utxoPool).handleTxs(data.txs);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BenchmarkData.TX_PER_TEST)
+    public Transaction[] maxFeeHandleTxs() {
+        return MaxFeeTxHandler.inPlace(data.utxoPool).handleTxs(data.txs);
+    }
+}
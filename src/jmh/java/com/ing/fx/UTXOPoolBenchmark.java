@@ -0,0 +1,115 @@
+package com.ing.fx;
+
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+
+import com.ing.fx.block_chain.Transaction;
+import com.ing.fx.scrooge_coin.UTXO;
+import com.ing.fx.scrooge_coin.UTXOPool;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Throughput of the {@link UTXOPool} operations, in operations per second, for pools of 10^3 to 10^7
+ * UTXOs, per {@link com.ing.fx.scrooge_coin.UTXOStore}. Lookups go to random UTXOs of the pool so that large
+ * pools miss the CPU caches like a node does.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx6g")
+public class UTXOPoolBenchmark {
+
+    @Param({"1000", "10000", "100000", "1000000", "10000000"})
+    public int poolSize;
+
+    @Param({"hashmap", "concurrent", "compact", "offheap", "persistent"})
+    public String store;
+
+    /** whether the pool puts a cuckoo filter in front of the store, see {@link UTXOPool#useFilter(int)} */
+    @Param({"false", "true"})
+    public boolean filter;
+
+    private BenchmarkData data;
+    private UTXO missing;
+    private Transaction.Output output;
+    private int next;
+
+    @Setup(Level.Trial)
+    public void createData() throws Exception {
+        data = BenchmarkData.create(poolSize, store);
+        if (filter)
+            data.utxoPool.useFilter(poolSize);
+        missing = new UTXO(new byte[32], Integer.MAX_VALUE);
+        output = data.utxoPool.getTxOutput(data.utxos[0]);
+    }
+
+    private UTXO nextUTXO() {
+        if (next == data.utxos.length)
+            next = 0;
+        return data.utxos[next++];
+    }
+
+    @Benchmark
+    public Transaction.Output getTxOutput() {
+        return data.utxoPool.getTxOutput(nextUTXO());
+    }
+
+    /** the same lookup through the probe API, with the hash array of the UTXO as a transaction input holds it */
+    @Benchmark
+    public Transaction.Output getTxOutputProbe() {
+        UTXO utxo = nextUTXO();
+        return data.utxoPool.getTxOutput(utxo.getTxHash(), utxo.getIndex());
+    }
+
+    @Benchmark
+    public boolean containsMissing() {
+        return data.utxoPool.contains(missing);
+    }
+
+    /** adds a UTXO that is not in the pool and removes it again, so the pool keeps its size */
+    @Benchmark
+    public UTXOPool addRemove() {
+        data.utxoPool.addUTXO(missing, output);
+        data.utxoPool.removeUTXO(missing);
+        return data.utxoPool;
+    }
+
+    /** removes a UTXO of the pool and adds it back */
+    @Benchmark
+    public UTXOPool removeAdd() {
+        UTXO utxo = nextUTXO();
+        Transaction.Output txOut = data.utxoPool.getTxOutput(utxo);
+        data.utxoPool.removeUTXO(utxo);
+        data.utxoPool.addUTXO(utxo, txOut);
+        return data.utxoPool;
+    }
+
+    /** the old way to read the whole pool: a list of every UTXO, looked up one by one */
+    @Benchmark
+    public double sumOverGetAllUTXO() {
+        ArrayList<UTXO> all = data.utxoPool.getAllUTXO();
+        double sum = 0;
+        for (UTXO utxo: all)
+            sum += data.utxoPool.getTxOutput(utxo).value;
+        return sum;
+    }
+
+    /** the same sum as a parallel scan of the store, without a copy */
+    @Benchmark
+    public double totalSupply() {
+        return data.utxoPool.totalSupply();
+    }
+}
@@ -4,6 +4,7 @@ import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.security.PublicKey;
 import java.util.ArrayList;
+import java.util.Arrays;
 
 /**
  * Stores the block data structure.
@@ -19,7 +20,10 @@ public class Block {
     private byte[] hash;
     private byte[] prevBlockHash;
     private Transaction coinbase; // each block has this one special trx where the creation of new coins happens
-    private ArrayList<Transaction> txs;  // for simplicity, we use just a array instead of Merkel tree to store trx in each block
+    private ArrayList<Transaction> txs;  // the block hash commits to them through a Merkle tree of their hashes
+    /** the tree over the hashes of {@link #txs}, built by the first root or proof asked for and checked against
+     * them by every later one, or null */
+    private MerkleTree merkleTree;
 
     /** {@code address} is the address to which the coinbase transaction would go */
     public Block(byte[] prevHash, PublicKey address) {
@@ -50,32 +54,94 @@ public class Block {
 
     public void addTransaction(Transaction tx) {
         txs.add(tx);
+        if (merkleTree != null && merkleTree.size() == txs.size() - 1)
+            merkleTree.append(leafOf(tx)); // only the path of the new transaction is hashed
     }
 
-    public byte[] getRawBlock() {
-        ArrayList<Byte> rawBlock = new ArrayList<Byte>();
-        if (prevBlockHash != null)
-            for (int i = 0; i < prevBlockHash.length; i++)
-                rawBlock.add(prevBlockHash[i]);
-        for (int i = 0; i < txs.size(); i++) {
-            byte[] rawTx = txs.get(i).getRawTx();
-            for (int j = 0; j < rawTx.length; j++) {
-                rawBlock.add(rawTx[j]);
+    /**
+     * @return the root of the Merkle tree over the hashes of the transactions, what the block hash commits to.
+     *         The first call builds the tree, later transactions are added to it one path at a time, and so is
+     *         a transaction whose hash changed after it was added, e.g. because it was finalized or signed.
+     */
+    public byte[] getMerkleRoot() {
+        return merkleTree().root();
+    }
+
+    /**
+     * @return the proof that transaction {@code index} is in this block, checked by
+     *         {@code MerkleTree.verify(tx.getHash(), index, getTransactions().size(), proof, getMerkleRoot())}
+     *         without the other transactions
+     */
+    public byte[][] getMerkleProof(int index) {
+        return merkleTree().proof(index);
+    }
+
+    /**
+     * nek: the leaves are compared with the current transaction hashes on every call, 32 bytes per transaction
+     * or just a reference, and a changed one is replaced; a transaction without a hash is hashed again.
+     */
+    private MerkleTree merkleTree() {
+        if (merkleTree == null || merkleTree.size() != txs.size()) { // also when the list was changed directly
+            ArrayList<byte[]> leaves = new ArrayList<byte[]>(txs.size());
+            for (Transaction tx : txs)
+                leaves.add(leafOf(tx));
+            merkleTree = new MerkleTree(leaves);
+        } else {
+            for (int i = 0; i < txs.size(); i++) {
+                byte[] leaf = leafOf(txs.get(i));
+                if (!Arrays.equals(leaf, merkleTree.leaf(i)))
+                    merkleTree.set(i, leaf);
             }
         }
-        byte[] raw = new byte[rawBlock.size()];
-        for (int i = 0; i < raw.length; i++)
-            raw[i] = rawBlock.get(i);
+        return merkleTree;
+    }
+
+    /** the hash of {@code tx}, or the hash it would be finalized with if it has none yet */
+    private static byte[] leafOf(Transaction tx) {
+        byte[] hash = tx.getHash();
+        if (hash != null)
+            return hash;
+        try {
+            return MessageDigest.getInstance("SHA-256").digest(tx.rawTx());
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    public byte[] getRawBlock() {
+        // nek: the transactions keep their encodings, so this is a sum of lengths and one copy each
+        byte[][] rawTxs = new byte[txs.size()][];
+        int length = prevBlockHash == null ? 0 : prevBlockHash.length;
+        for (int i = 0; i < rawTxs.length; i++) {
+            rawTxs[i] = txs.get(i).rawTx();
+            length += rawTxs[i].length;
+        }
+        byte[] raw = new byte[length];
+        int at = 0;
+        if (prevBlockHash != null) {
+            System.arraycopy(prevBlockHash, 0, raw, 0, prevBlockHash.length);
+            at = prevBlockHash.length;
+        }
+        for (byte[] rawTx : rawTxs) {
+            System.arraycopy(rawTx, 0, raw, at, rawTx.length);
+            at += rawTx.length;
+        }
         return raw;
     }
 
     /**
-     * generate a hash for the whole block
+     * generate a hash for the whole block: the SHA-256 of the previous block hash, the number of transactions
+     * (4 bytes, big endian) and the Merkle root, so a transaction is shown to be in the block by its Merkle
+     * proof and the block header alone; the header fixes the tree size the proof has to be checked against
      * */
     public void finalize() {
         try {
             MessageDigest md = MessageDigest.getInstance("SHA-256");
-            md.update(getRawBlock());
+            if (prevBlockHash != null)
+                md.update(prevBlockHash);
+            int count = txs.size();
+            md.update(new byte[]{(byte) (count >>> 24), (byte) (count >>> 16), (byte) (count >>> 8), (byte) count});
+            md.update(getMerkleRoot());
             hash = md.digest();
             /* nek: SHA-256 hash function breaks the message into blocks that are 512 bits in size
             * Since messages will not always a multiple of the block size, padding is needed at the end.
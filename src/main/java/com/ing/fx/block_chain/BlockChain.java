@@ -1,5 +1,6 @@
 package com.ing.fx.block_chain;
 
+import com.ing.fx.scrooge_coin.PersistentUTXOStore;
 import com.ing.fx.scrooge_coin.TxHandler;
 import com.ing.fx.scrooge_coin.UTXO;
 import com.ing.fx.scrooge_coin.UTXOPool;
@@ -9,9 +10,10 @@ import com.ing.fx.scrooge_coin.UTXOPool;
  */
 
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 public class BlockChain {
     public static final int CUT_OFF_AGE = 10;
-    private Map blockchain;
+    private Map<ByteArrayWrapper, Node> blockchain;
     private TransactionPool transactionPool;
     private Node tail; // the max height block of the block chain
 
@@ -21,12 +23,13 @@ public class BlockChain {
      */
     public BlockChain(Block genesisBlock) {
         // IMPLEMENT THIS
-        blockchain = Collections.synchronizedMap(new HashMap<ByteArrayWrapper, Node>());
-        UTXOPool utxoPool = new UTXOPool();
+        blockchain = new ConcurrentHashMap<ByteArrayWrapper, Node>(); // lookups of other threads never wait for addBlock
+        // nek: a persistent store makes every copy of the pool O(1), so each node can keep its own
+        UTXOPool utxoPool = new UTXOPool(new PersistentUTXOStore());
+        updateUTXOPool(genesisBlock, utxoPool);
         Node genesis = new Node(null, genesisBlock, utxoPool);
         blockchain.put(new ByteArrayWrapper(genesisBlock.getHash()), genesis);
         transactionPool = new TransactionPool();
-        updateUTXOPool(genesisBlock, utxoPool);
         tail = genesis;
     }
 
@@ -51,10 +54,13 @@ public class BlockChain {
         return tail.block;
     }
 
-    /** Get the UTXOPool for mining a new block on top of max height block */
-    public UTXOPool getMaxHeightUTXOPool() {
+    /**
+     * Get the UTXOPool for mining a new block on top of max height block.
+     * The pool is a snapshot of the max height block's pool, an O(1) copy that the caller may change.
+     * */
+    public synchronized UTXOPool getMaxHeightUTXOPool() {
         // IMPLEMENT THIS
-        return tail.getUTXOPool();
+        return new UTXOPool(tail.utxoPool);
     }
 
     /** Get the transaction pool to mine a new block */
@@ -75,47 +81,59 @@ public class BlockChain {
      *
      * @return true if block is successfully added
      */
-    public boolean addBlock(Block block) {
+    public synchronized boolean addBlock(Block block) {
         // IMPLEMENT THIS/
         if (null == block.getPrevBlockHash()) { // genesis block (parents is a null hash)
             return false;
         }
-        Node parent = (Node)blockchain.get(new ByteArrayWrapper(block.getPrevBlockHash()));
+        Node parent = blockchain.get(new ByteArrayWrapper(block.getPrevBlockHash()));
         if (null == parent) { // verify if a block has an invalid prevBlockHash
             return false;
         }
-        if (blockHasInvalidTrx(block)) {
+        if (isHeightInvalid(block)) {
             return false;
         }
-        if (isHeightInvalid(block)) {
+        UTXOPool utxoPool = new UTXOPool(parent.utxoPool); // O(1), shares the parent's trie
+        if (blockHasInvalidTrx(block, TxHandler.inPlace(utxoPool))) {
             return false;
         }
+        updateUTXOPool(block, utxoPool);
+        Node newNode = new Node(parent, block, utxoPool);
 
-        updateUTXOPool(block, parent.getUTXOPool());
-        Node newNode = new Node(parent, block, parent.getUTXOPool());
-
-        synchronized (blockchain) {
-            blockchain.put(new ByteArrayWrapper(block.getHash()), newNode);
-        }
+        blockchain.put(new ByteArrayWrapper(block.getHash()), newNode);
         /*for (Transaction transaction: block.getTransactions()) {
             if (null!=transactionPool.getTransaction(transaction.getHash()))
                 transactionPool.removeTransaction(transaction.getHash());
         }*/
-        if (newNode.height > tail.height)
+        if (newNode.height > tail.height) {
             tail = newNode;
+            releaseOldPools();
+        }
         return true;
     }
 
+    /**
+     * No block can be added on top of a node more than CUT_OFF_AGE below the tail, so the main chain
+     * stops keeping the pools of those nodes.
+     * */
+    private void releaseOldPools() {
+        Node node = tail;
+        while (node != null && node.height >= tail.height - CUT_OFF_AGE)
+            node = node.parent;
+        while (node != null && node.utxoPool != null) {
+            node.utxoPool = null;
+            node = node.parent;
+        }
+    }
+
     private boolean isHeightInvalid(Block block) {
-        Node parent = (Node)blockchain.get(new ByteArrayWrapper(block.getPrevBlockHash()));
+        Node parent = blockchain.get(new ByteArrayWrapper(block.getPrevBlockHash()));
         return (parent.height + 1 <= tail.height - CUT_OFF_AGE);
     }
 
-    private boolean blockHasInvalidTrx(Block block) {
-        Node parent = (Node)blockchain.get(new ByteArrayWrapper(block.getPrevBlockHash()));
-        TxHandler txHandler = new TxHandler(parent.getUTXOPool());
+    private boolean blockHasInvalidTrx(Block block, TxHandler txHandler) {
         Transaction[] trxs = block.getTransactions().toArray(new Transaction[0]);
-        return (txHandler.handleTxs(trxs).length!=trxs.length);
+        return !txHandler.acceptAll(trxs); // all signatures of the block are checked in parallel
     }
 
     /** Add a transaction to the transaction pool */
@@ -131,7 +149,7 @@ public class BlockChain {
         private Node parent;
         private List<Node> children;
         private Block block;
-        private UTXOPool utxoPool;
+        private UTXOPool utxoPool; // the UTXOs after this block, null once the node is too old to build on
         private int height;
         public Node(Node parent, Block block, UTXOPool utxoPool) {
             this.parent = parent;
@@ -145,8 +163,5 @@ public class BlockChain {
                 parent.children.add(this);
             }
         }
-        public UTXOPool getUTXOPool(){
-            return this.utxoPool;
-        }
     }
 }
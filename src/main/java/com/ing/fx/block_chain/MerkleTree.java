@@ -0,0 +1,229 @@
+package com.ing.fx.block_chain;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * A Merkle tree over 32 byte leaf hashes, the transaction hashes of a {@link Block}: the root commits to every
+ * leaf and its position, and a leaf is shown to be in the tree by the O(log n) hashes on its path to the root
+ * ({@link #proof}, checked by {@link #verify} without the tree).
+ *
+ * Node i of level 0 is SHA-256(0x00 || leaf i); node i of level h is SHA-256(0x01 || node 2i || node 2i+1) of
+ * level h - 1, or node 2i itself if it has no right neighbour, like in RFC 6962. An odd node is moved up instead
+ * of paired with a copy of itself, so unlike in Bitcoin a list and the same list with its last leaf repeated
+ * have different roots. The two prefix bytes keep a leaf from being read as an inner node: a transaction whose
+ * encoding is 0x01 followed by two node hashes does not prove that its hash is a leaf of the tree.
+ *
+ * nek: every level is kept, so {@link #append} and {@link #set} only hash the path of one leaf. A new tree
+ * over many leaves hashes its subtrees in parallel on the common fork/join pool. Not thread safe.
+ * */
+public final class MerkleTree {
+
+    /** a subtree of fewer leaves is hashed by the thread that reaches it */
+    static final int MIN_FORK_LEAVES = 1024;
+
+    private static final byte LEAF = 0;
+    private static final byte NODE = 1;
+
+    private static final ThreadLocal<MessageDigest> SHA256 = new ThreadLocal<MessageDigest>() {
+        @Override
+        protected MessageDigest initialValue() {
+            try {
+                return MessageDigest.getInstance("SHA-256");
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+    };
+
+    /** the leaves as they were given; the arrays below grow like an ArrayList's */
+    private byte[][] leaves;
+    /** levels.get(h)[i] is node i of level h */
+    private final List<byte[][]> levels = new ArrayList<byte[][]>();
+    private int size;
+
+    /** Creates a tree without leaves */
+    public MerkleTree() {
+        leaves = new byte[16][];
+        levels.add(new byte[16][]);
+    }
+
+    /** Creates the tree over {@code leaves}, hashing large trees in parallel */
+    public MerkleTree(List<byte[]> leaves) {
+        size = leaves.size();
+        this.leaves = leaves.toArray(new byte[Math.max(16, size)][]);
+        levels.add(new byte[this.leaves.length][]);
+        for (int n = size; n > 1; n = (n + 1) / 2)
+            levels.add(new byte[(n + 1) / 2][]);
+        if (size >= MIN_FORK_LEAVES)
+            ForkJoinPool.commonPool().invoke(new Subtree(levels.size() - 1, 0));
+        else if (size > 0)
+            hashSubtree(levels.size() - 1, 0);
+    }
+
+    /** @return the number of leaves */
+    public int size() {
+        return size;
+    }
+
+    /** @return leaf {@code index} */
+    public byte[] leaf(int index) {
+        checkIndex(index);
+        return leaves[index];
+    }
+
+    /** @return the root hash, 32 zero bytes for a tree without leaves */
+    public byte[] root() {
+        return size == 0 ? new byte[32] : levels.get(levels.size() - 1)[0];
+    }
+
+    /** Adds {@code leaf} after the last leaf, hashing the O(log n) nodes above it */
+    public void append(byte[] leaf) {
+        if (size == leaves.length) {
+            leaves = Arrays.copyOf(leaves, size * 2);
+            levels.set(0, Arrays.copyOf(levels.get(0), size * 2));
+        }
+        leaves[size] = leaf;
+        levels.get(0)[size++] = leafHash(leaf);
+        rehashPath(size - 1);
+    }
+
+    /** Replaces leaf {@code index} by {@code leaf}, hashing the O(log n) nodes above it */
+    public void set(int index, byte[] leaf) {
+        checkIndex(index);
+        leaves[index] = leaf;
+        levels.get(0)[index] = leafHash(leaf);
+        rehashPath(index);
+    }
+
+    /**
+     * @return the hashes that lead from leaf {@code index} to the root, bottom up: the neighbour on every level
+     *         where the node on the path has one
+     */
+    public byte[][] proof(int index) {
+        checkIndex(index);
+        List<byte[]> path = new ArrayList<byte[]>();
+        int n = size;
+        for (int h = 0; n > 1; h++, index >>= 1, n = (n + 1) / 2) {
+            int neighbour = index ^ 1;
+            if (neighbour < n)
+                path.add(levels.get(h)[neighbour]);
+        }
+        return path.toArray(new byte[path.size()][]);
+    }
+
+    /**
+     * @return true if {@code proof} shows that {@code leaf} is leaf {@code index} of a tree of {@code size}
+     *         leaves with root {@code root}
+     */
+    public static boolean verify(byte[] leaf, int index, int size, byte[][] proof, byte[] root) {
+        if (index < 0 || index >= size)
+            return false;
+        byte[] node = leafHash(leaf);
+        int used = 0;
+        for (int n = size; n > 1; index >>= 1, n = (n + 1) / 2) {
+            int neighbour = index ^ 1;
+            if (neighbour >= n)
+                continue; // moved up unpaired
+            if (used == proof.length)
+                return false;
+            byte[] other = proof[used++];
+            node = (index & 1) == 0 ? hash(node, other) : hash(other, node);
+        }
+        return used == proof.length && MessageDigest.isEqual(node, root);
+    }
+
+    /** recomputes the nodes above leaf {@code index}, adding a level when the tree grew one */
+    private void rehashPath(int index) {
+        int n = size;
+        for (int h = 1; n > 1; h++) {
+            int below = n;
+            n = (n + 1) / 2;
+            index >>= 1;
+            if (h == levels.size())
+                levels.add(new byte[16][]);
+            byte[][] level = levels.get(h);
+            if (index >= level.length)
+                levels.set(h, level = Arrays.copyOf(level, level.length * 2));
+            level[index] = node(levels.get(h - 1), index, below);
+        }
+    }
+
+    /** @return node {@code index} of the level above {@code below}, whose first {@code n} nodes are in use */
+    private static byte[] node(byte[][] below, int index, int n) {
+        int left = 2 * index;
+        return left + 1 < n ? hash(below[left], below[left + 1]) : below[left];
+    }
+
+    private static byte[] leafHash(byte[] leaf) {
+        MessageDigest md = SHA256.get();
+        md.update(LEAF);
+        md.update(leaf);
+        return md.digest();
+    }
+
+    private static byte[] hash(byte[] left, byte[] right) {
+        MessageDigest md = SHA256.get();
+        md.update(NODE);
+        md.update(left);
+        md.update(right);
+        return md.digest();
+    }
+
+    private void checkIndex(int index) {
+        if (index < 0 || index >= size)
+            throw new IndexOutOfBoundsException("leaf " + index + " of " + size);
+    }
+
+    /** hashes node {@code index} of level {@code height} and the nodes below it */
+    private void hashSubtree(int height, int index) {
+        if (height == 0) {
+            levels.get(0)[index] = leafHash(leaves[index]);
+            return;
+        }
+        int below = levelSize(height - 1);
+        int left = 2 * index;
+        hashSubtree(height - 1, left);
+        if (left + 1 < below)
+            hashSubtree(height - 1, left + 1);
+        levels.get(height)[index] = node(levels.get(height - 1), index, below);
+    }
+
+    /** @return the number of nodes of level {@code height} */
+    private int levelSize(int height) {
+        int n = size;
+        for (int h = 0; h < height; h++)
+            n = (n + 1) / 2;
+        return n;
+    }
+
+    /** {@link #hashSubtree} with the two subtrees of a node in parallel, as long as they are large */
+    private final class Subtree extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final int height;
+        private final int index;
+
+        Subtree(int height, int index) {
+            this.height = height;
+            this.index = index;
+        }
+
+        @Override
+        protected void compute() {
+            int below = levelSize(height - 1);
+            int left = 2 * index;
+            if ((1 << (height - 1)) < MIN_FORK_LEAVES || left + 1 >= below) {
+                hashSubtree(height, index);
+                return;
+            }
+            invokeAll(new Subtree(height - 1, left), new Subtree(height - 1, left + 1));
+            levels.get(height)[index] = node(levels.get(height - 1), index, below);
+        }
+    }
+}
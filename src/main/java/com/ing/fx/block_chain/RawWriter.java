@@ -0,0 +1,84 @@
+package com.ing.fx.block_chain;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Writes the raw encodings of transactions and blocks into one growable {@link ByteBuffer} per thread,
+ * instead of a list of boxed bytes and a new buffer per int or double.
+ * The buffer is big endian, so the bytes are the same as {@code ByteBuffer.allocate(n).putInt(i)} gave.
+ * */
+final class RawWriter {
+
+    private static final ThreadLocal<RawWriter> WRITER = new ThreadLocal<RawWriter>() {
+        @Override
+        protected RawWriter initialValue() {
+            return new RawWriter();
+        }
+    };
+
+    private ByteBuffer buffer = ByteBuffer.allocate(1024);
+
+    private RawWriter() {
+    }
+
+    /** @return this thread's writer, emptied; only one encoding at a time per thread */
+    static RawWriter get() {
+        RawWriter writer = WRITER.get();
+        writer.buffer.clear();
+        return writer;
+    }
+
+    RawWriter put(byte[] bytes) {
+        ensure(bytes.length);
+        buffer.put(bytes);
+        return this;
+    }
+
+    RawWriter putByte(int value) {
+        ensure(1);
+        buffer.put((byte) value);
+        return this;
+    }
+
+    /** an unsigned LEB128 varint: 7 bits per byte, low bits first, the high bit set on all but the last byte */
+    RawWriter putVarint(int value) {
+        ensure(5);
+        while ((value & ~0x7f) != 0) {
+            buffer.put((byte) (value & 0x7f | 0x80));
+            value >>>= 7;
+        }
+        buffer.put((byte) value);
+        return this;
+    }
+
+    RawWriter putInt(int value) {
+        ensure(Integer.BYTES);
+        buffer.putInt(value);
+        return this;
+    }
+
+    RawWriter putDouble(double value) {
+        ensure(Double.BYTES);
+        buffer.putDouble(value);
+        return this;
+    }
+
+    /** @return a copy of the bytes written since {@link #get()} */
+    byte[] toByteArray() {
+        return Arrays.copyOf(buffer.array(), buffer.position());
+    }
+
+    /** doubles the buffer until {@code bytes} more fit, it stays that large for the next encodings */
+    private void ensure(int bytes) {
+        if (buffer.remaining() >= bytes)
+            return;
+        int capacity = buffer.capacity();
+        while (capacity - buffer.position() < bytes)
+            capacity *= 2;
+        ByteBuffer grown = ByteBuffer.allocate(capacity);
+        buffer.flip();
+        grown.put(buffer);
+        buffer = grown;
+    }
+}
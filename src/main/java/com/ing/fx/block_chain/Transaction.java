@@ -1,6 +1,5 @@
 package com.ing.fx.block_chain;
 
-import java.nio.ByteBuffer;
 import java.security.*;
 import java.security.interfaces.RSAPublicKey;
 import java.util.ArrayList;
@@ -11,6 +10,7 @@ import java.util.Arrays;
  * the balance data is embedded inside the block chain itself!
  * */
 
+import com.ing.fx.scrooge_coin.Crypto;
 import com.ing.fx.scrooge_coin.UTXO;
 /*
  * There are two types of scrooge transaction: createdCoin and payCoin
@@ -36,6 +36,8 @@ public class Transaction {
         public int outputIndex;
         /** the signature produced to check validity */
         public byte[] signature; // in reality, this is also a script called SigScript
+        /** the key that hashes to the address hash of the spent output, null when that output holds its key */
+        public PublicKey publicKey;
 
         public Input(byte[] prevHash, int index) {
             if (prevHash == null)
@@ -50,6 +52,13 @@ public class Transaction {
                 signature = null;
             else
                 signature = Arrays.copyOf(sig, sig.length);
+            rawTx = null;
+        }
+
+        /** reveals the key of a pay-to-key-hash output, see {@link Output#spendingKey} */
+        public void addPublicKey(PublicKey key) {
+            publicKey = key;
+            rawTx = null;
         }
 
         public boolean equals(Object other) {
@@ -76,7 +85,7 @@ public class Transaction {
                 if (signature[i] != in.signature[i])
                     return false;
             }
-            return true;
+            return publicKey == null ? in.publicKey == null : publicKey.equals(in.publicKey);
         }
 
         public int hashCode() {
@@ -84,6 +93,7 @@ public class Transaction {
             hash = hash * 17 + Arrays.hashCode(prevTxHash);
             hash = hash * 31 + outputIndex;
             hash = hash * 31 + Arrays.hashCode(signature);
+            hash = hash * 31 + (publicKey == null ? 0 : publicKey.hashCode());
             return hash;
         }
     }
@@ -92,22 +102,64 @@ public class Transaction {
      * A transaction output consists of a value and a public key to which it is being paid.
      * For the public keys, we use the built-in Java PublicKey class.
      * These are coins to be created from the consumed coins (Input)
+     *
+     * nek: a pay-to-key-hash output holds only the {@link #addressHash} of the key and no address; the input
+     * that spends it reveals the key. That is 32 bytes instead of a 2048 bit key in every encoding and UTXO,
+     * and comparing two such outputs compares 32 bytes instead of two BigIntegers.
      * */
     public class Output {
         /** value in bitcoins of the output */
         public double value;
         /** the address or public key of the recipient */ // in Bitcoin, there is actually a Bitcoin script here
         public PublicKey address; // In reality, this is Bitcoin script called PubScript.
+        /** the {@link #addressHashOf} the recipient's key for a pay-to-key-hash output, otherwise null */
+        public byte[] addressHash;
         /** SigScript and PubScript will get pasted together when a transaction is validated
          * and if the concatenated script can run without errors, this is considered a valid transaction.
          * More useful info in Bitcoin Script and Application of Bitcoin Scripts
          * */
 
+        /** the address {@link #addressBytes} were encoded from, written after them so that a thread that
+         * sees it sees them */
+        private volatile PublicKey encodedAddress;
+        /** the RSA exponent and modulus of the address, as {@code BigInteger.toByteArray()} gives them */
+        private byte[] addressBytes;
+
         public Output(double v, PublicKey addr) {
             value = v;
             address = addr;
         }
 
+        /** a pay-to-key-hash output of value {@code v} to the key whose {@link #addressHashOf} is {@code addrHash} */
+        public Output(double v, byte[] addrHash) {
+            value = v;
+            addressHash = addrHash;
+        }
+
+        /**
+         * @return the key a signature spending this output has to verify under: its address, or for a
+         *         pay-to-key-hash output the key {@code in} reveals if that hashes to the address hash; else null
+         */
+        public PublicKey spendingKey(Input in) {
+            if (addressHash == null)
+                return address;
+            if (in.publicKey == null || !Arrays.equals(addressHash, addressHashOf(in.publicKey)))
+                return null;
+            return in.publicKey;
+        }
+
+        /** @return the raw encoding of the address, encoded again only if {@link #address} was replaced */
+        private byte[] addressBytes() {
+            if (addressHash != null)
+                return addressHash;
+            PublicKey current = address;
+            if (current != encodedAddress) {
+                addressBytes = rawKey(current);
+                encodedAddress = current;
+            }
+            return addressBytes;
+        }
+
         public boolean equals(Object other) {
             if (other == null) {
                 return false;
@@ -120,6 +172,8 @@ public class Transaction {
 
             if (value != op.value)
                 return false;
+            if (addressHash != null || op.addressHash != null)
+                return Arrays.equals(addressHash, op.addressHash);
             if (!((RSAPublicKey) address).getPublicExponent().equals(
                     ((RSAPublicKey) op.address).getPublicExponent()))
                 return false;
@@ -132,6 +186,8 @@ public class Transaction {
         public int hashCode() {
             int hash = 1;
             hash = hash * 17 + (int) value * 10000;
+            if (addressHash != null)
+                return hash * 31 + Arrays.hashCode(addressHash);
             hash = hash * 31 + ((RSAPublicKey) address).getPublicExponent().hashCode();
             hash = hash * 31 + ((RSAPublicKey) address).getModulus().hashCode();
             return hash;
@@ -146,17 +202,40 @@ public class Transaction {
     private ArrayList<Output> outputs;
     private boolean coinbase; // indicate if this is coinbase or normal transaction.
 
+    /** nek: cached raw encodings, dropped by every method that changes the transaction. Inputs and outputs
+     * must not be changed through their fields once they are added, only through those methods.
+     * The caches are volatile so that threads may share a transaction that no longer changes, e.g. to verify
+     * its inputs in parallel: a thread that finds a cached array finds its content as well. */
+    private volatile byte[] rawTx;
+    /** the outputs part of {@link #getRawDataToSign}, the same for every input */
+    private volatile byte[] rawOutputs;
+    /** SHA-256 state after {@link #rawOutputs}, cloned for the sighash of every input */
+    private volatile MessageDigest outputsDigest;
+
     public Transaction() {
         inputs = new ArrayList<Input>();
         outputs = new ArrayList<Output>();
         coinbase = false;
     }
 
+    /**
+     * Creates a copy of {@code tx} that can be signed and changed on its own: it has inputs of its own, which
+     * drop its own caches. The outputs are shared, they are not changed once added.
+     */
     public Transaction(Transaction tx) {
-        hash = tx.hash.clone();
-        inputs = new ArrayList<Input>(tx.inputs);
+        hash = tx.hash == null ? null : tx.hash.clone();
+        inputs = new ArrayList<Input>(tx.inputs.size());
+        for (Input in : tx.inputs) {
+            Input copy = new Input(in.prevTxHash, in.outputIndex);
+            copy.signature = in.signature == null ? null : in.signature.clone();
+            copy.publicKey = in.publicKey;
+            inputs.add(copy);
+        }
         outputs = new ArrayList<Output>(tx.outputs);
         coinbase = false;
+        rawTx = tx.rawTx; // the caches are never changed in place, only replaced
+        rawOutputs = tx.rawOutputs;
+        outputsDigest = tx.outputsDigest;
     }
 
     /** create a coinbase transaction of value {@code coin} and calls finalize on it */
@@ -175,15 +254,29 @@ public class Transaction {
     public void addInput(byte[] prevTxHash, int outputIndex) {
         Input in = new Input(prevTxHash, outputIndex);
         inputs.add(in);
+        rawTx = null;
     }
 
     public void addOutput(double value, PublicKey address) {
         Output op = new Output(value, address);
         outputs.add(op);
+        rawTx = null;
+        rawOutputs = null;
+        outputsDigest = null;
+    }
+
+    /** adds a pay-to-key-hash output, spent by an input that reveals the key with {@link #addPublicKey} */
+    public void addOutput(double value, byte[] addressHash) {
+        Output op = new Output(value, addressHash);
+        outputs.add(op);
+        rawTx = null;
+        rawOutputs = null;
+        outputsDigest = null;
     }
 
     public void removeInput(int index) {
         inputs.remove(index);
+        rawTx = null;
     }
 
     public void removeInput(UTXO ut) {
@@ -192,6 +285,7 @@ public class Transaction {
             UTXO u = new UTXO(in.prevTxHash, in.outputIndex);
             if (u.equals(ut)) {
                 inputs.remove(i);
+                rawTx = null;
                 return;
             }
         }
@@ -207,88 +301,124 @@ public class Transaction {
      * isValid = verify(pk, message, signature)
      * */
     public byte[] getRawDataToSign(int index) {
-        // ith input and all outputs
-        ArrayList<Byte> sigData = new ArrayList<Byte>();
+        // all outputs and then the ith input, so that the hash state after the outputs serves every input
         if (index > inputs.size())
             return null;
         Input in = inputs.get(index);
-        byte[] prevTxHash = in.prevTxHash;
-        ByteBuffer b = ByteBuffer.allocate(Integer.SIZE / 8);
-        b.putInt(in.outputIndex);
-        byte[] outputIndex = b.array();
-        if (prevTxHash != null)
-            for (int i = 0; i < prevTxHash.length; i++)
-                sigData.add(prevTxHash[i]);
-        for (int i = 0; i < outputIndex.length; i++)
-            sigData.add(outputIndex[i]);
-        for (Output op : outputs) {
-            ByteBuffer bo = ByteBuffer.allocate(Double.SIZE / 8);
-            bo.putDouble(op.value);
-            byte[] value = bo.array();
-            byte[] addressExponent = ((RSAPublicKey) op.address).getPublicExponent().toByteArray();
-            byte[] addressModulus = ((RSAPublicKey) op.address).getModulus().toByteArray();
-            for (int i = 0; i < value.length; i++)
-                sigData.add(value[i]);
-            for (int i = 0; i < addressExponent.length; i++)
-                sigData.add(addressExponent[i]);
-            for (int i = 0; i < addressModulus.length; i++)
-                sigData.add(addressModulus[i]);
+        byte[] outputs = rawOutputs(); // before taking the writer, encoding them takes it too
+        RawWriter writer = RawWriter.get().put(outputs);
+        if (in.prevTxHash != null)
+            writer.put(in.prevTxHash);
+        return writer.putInt(in.outputIndex).toByteArray(); // a fresh array, the caller may change it
+    }
+
+    /**
+     * @return the SHA-256 of {@link #getRawDataToSign}({@code index}), what a SHA256withRSA signature of the
+     *         input really signs. The outputs are hashed once per transaction, the sighash of an input only
+     *         hashes its own outpoint on top of a copy of that state, so signing or verifying all n inputs of
+     *         a transaction with m outputs hashes O(n + m) bytes instead of O(n * m).
+     */
+    public byte[] getSigHash(int index) {
+        if (index > inputs.size())
+            return null;
+        Input in = inputs.get(index);
+        MessageDigest md = outputsDigest();
+        if (in.prevTxHash != null)
+            md.update(in.prevTxHash);
+        md.update((byte) (in.outputIndex >>> 24));
+        md.update((byte) (in.outputIndex >>> 16));
+        md.update((byte) (in.outputIndex >>> 8));
+        md.update((byte) in.outputIndex);
+        return md.digest();
+    }
+
+    /** @return a copy of the SHA-256 state after the outputs, computed once until an output is added */
+    private MessageDigest outputsDigest() {
+        try {
+            MessageDigest md = outputsDigest;
+            if (md == null) {
+                md = MessageDigest.getInstance("SHA-256");
+                md.update(rawOutputs());
+                outputsDigest = md;
+            }
+            return (MessageDigest) md.clone();
+        } catch (NoSuchAlgorithmException | CloneNotSupportedException e) {
+            throw new IllegalStateException(e); // the JDK's SHA-256 is cloneable
         }
-        byte[] sigD = new byte[sigData.size()];
-        int i = 0;
-        for (Byte sb : sigData)
-            sigD[i++] = sb;
-        return sigD;
     }
 
     public void addSignature(byte[] signature, int index) {
         inputs.get(index).addSignature(signature);
     }
 
+    public void addPublicKey(PublicKey key, int index) {
+        inputs.get(index).addPublicKey(key);
+    }
+
+    /** @return the 32 byte SHA-256 of the X.509 encoding of {@code key}, what a pay-to-key-hash output holds */
+    public static byte[] addressHashOf(PublicKey key) {
+        try {
+            return MessageDigest.getInstance("SHA-256").digest(key.getEncoded());
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /** the RSA exponent and modulus of {@code key}, as {@code BigInteger.toByteArray()} gives them */
+    private static byte[] rawKey(PublicKey key) {
+        byte[] exponent = ((RSAPublicKey) key).getPublicExponent().toByteArray();
+        byte[] modulus = ((RSAPublicKey) key).getModulus().toByteArray();
+        byte[] bytes = Arrays.copyOf(exponent, exponent.length + modulus.length);
+        System.arraycopy(modulus, 0, bytes, exponent.length, modulus.length);
+        return bytes;
+    }
+
     /**
      * A transaction consists of a list of inputs, a list of outputs and a unique ID
+     * @return a copy of the cached encoding, the caller may change it
      * */
     public byte[] getRawTx() {
-        ArrayList<Byte> rawTx = new ArrayList<Byte>();
-        for (Input in : inputs) {
-            byte[] prevTxHash = in.prevTxHash;
-            ByteBuffer b = ByteBuffer.allocate(Integer.SIZE / 8);
-            b.putInt(in.outputIndex);
-            byte[] outputIndex = b.array();
-            byte[] signature = in.signature;
-            if (prevTxHash != null)
-                for (int i = 0; i < prevTxHash.length; i++)
-                    rawTx.add(prevTxHash[i]);
-            for (int i = 0; i < outputIndex.length; i++)
-                rawTx.add(outputIndex[i]);
-            if (signature != null)
-                for (int i = 0; i < signature.length; i++)
-                    rawTx.add(signature[i]);
+        return rawTx().clone();
+    }
+
+    /** @return the encoding of the transaction, cached until it changes; not to be changed by the caller */
+    byte[] rawTx() {
+        byte[] raw = rawTx;
+        if (raw == null) {
+            byte[] outputs = rawOutputs(); // before taking the writer, encoding them takes it too
+            RawWriter writer = RawWriter.get();
+            for (Input in : inputs) {
+                if (in.prevTxHash != null)
+                    writer.put(in.prevTxHash);
+                writer.putInt(in.outputIndex);
+                if (in.signature != null)
+                    writer.put(in.signature);
+                if (in.publicKey != null)
+                    writer.put(rawKey(in.publicKey));
+            }
+            raw = writer.put(outputs).toByteArray();
+            rawTx = raw;
         }
-        for (Output op : outputs) {
-            ByteBuffer b = ByteBuffer.allocate(Double.SIZE / 8);
-            b.putDouble(op.value);
-            byte[] value = b.array();
-            byte[] addressExponent = ((RSAPublicKey) op.address).getPublicExponent().toByteArray();
-            byte[] addressModulus = ((RSAPublicKey) op.address).getModulus().toByteArray();
-            for (int i = 0; i < value.length; i++)
-                rawTx.add(value[i]);
-            for (int i = 0; i < addressExponent.length; i++)
-                rawTx.add(addressExponent[i]);
-            for (int i = 0; i < addressModulus.length; i++)
-                rawTx.add(addressModulus[i]);
+        return raw;
+    }
+
+    /** @return the encoding of all outputs, value and address or address hash each, cached until an output is added */
+    private byte[] rawOutputs() {
+        byte[] raw = rawOutputs;
+        if (raw == null) {
+            RawWriter writer = RawWriter.get();
+            for (Output op : outputs)
+                writer.putDouble(op.value).put(op.addressBytes());
+            raw = writer.toByteArray();
+            rawOutputs = raw;
         }
-        byte[] tx = new byte[rawTx.size()];
-        int i = 0;
-        for (Byte b : rawTx)
-            tx[i++] = b;
-        return tx;
+        return raw;
     }
 
     public void finalize() {
         try {
             MessageDigest md = MessageDigest.getInstance("SHA-256");
-            md.update(getRawTx());
+            md.update(rawTx());
             hash = md.digest(); // nek: padding in SHA-256 means that the length of the message is exactly a multiple of the 512 bit block size!
         } catch (NoSuchAlgorithmException x) {
             x.printStackTrace(System.err);
@@ -376,15 +506,8 @@ public class Transaction {
     }
 
     public void signTx(PrivateKey sk, int input) throws SignatureException {
-        Signature sig = null;
-        try {
-            sig = Signature.getInstance("SHA256withRSA");
-            sig.initSign(sk);
-            sig.update(this.getRawDataToSign(input));
-        } catch (NoSuchAlgorithmException | InvalidKeyException e) {
-            throw new RuntimeException(e);
-        }
-        this.addSignature(sig.sign(),input);
+        // nek: the SHA256withRSA signature of getRawDataToSign(input), from the sighash without the raw data
+        this.addSignature(Crypto.signDigest(sk, getSigHash(input)), input);
         // Note that this method is incorrectly named, and should not in fact override the Java
         // object finalize garbage collection related method.
         this.finalize();
@@ -0,0 +1,324 @@
+package com.ing.fx.block_chain;
+
+import java.math.BigInteger;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.security.KeyFactory;
+import java.security.NoSuchAlgorithmException;
+import java.security.PublicKey;
+import java.security.interfaces.RSAPublicKey;
+import java.security.spec.InvalidKeySpecException;
+import java.security.spec.RSAPublicKeySpec;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+
+/**
+ * A versioned binary encoding of transactions and blocks that, unlike {@link Transaction#getRawTx()} and
+ * {@link Block#getRawBlock()}, can be decoded again, to store blocks or to send them to other nodes.
+ *
+ * Layout, after a {@link #VERSION} byte:
+ * <pre>
+ * transaction = flags:byte  varint(#inputs)  input*  varint(#outputs)  output*
+ * input       = prevTxHash:32  varint(outputIndex)  varint(signature length)  signature  address of the key
+ * output      = value:8  address
+ * address     = varint(0) if there is none | varint(id + 1) | varint(next id + 1)  new address
+ * new address = 0:byte  varint(exponent length)  exponent  varint(modulus length)  modulus
+ *             | 1:byte  address hash:32
+ * block       = flags:byte  [prevBlockHash:32]  address of the coinbase  varint(#transactions)  transaction*
+ * </pre>
+ * Counts, indices and lengths are unsigned LEB128 varints, values the 8 bits of the double, big endian.
+ * Every encoding numbers its distinct addresses, keys and the address hashes of pay-to-key-hash outputs, in
+ * order of appearance: the first time an address is used it is sent in full after a new id, later only the
+ * id, which is one or two bytes instead of the 260 of a 2048 bit key. In a block the numbering spans all its
+ * transactions. The address of an input is the key it reveals to spend a pay-to-key-hash output.
+ * A missing signature is encoded as length 0 and decoded as null.
+ *
+ * nek: both directions go over the bytes once, without an intermediate list; the hashes of the transactions
+ * and the block are not sent, they are computed again when the decoded ones are finalized.
+ * */
+public final class WireFormat {
+
+    /** the version byte of the layout; only this one is decoded, any other fails */
+    public static final byte VERSION = 1;
+
+    static final int HASH_LENGTH = 32;
+
+    private static final int COINBASE = 1;
+    private static final int FINALIZED = 2;
+    private static final int HAS_PREV_HASH = 4;
+
+    private static final int KEY = 0;
+    private static final int KEY_HASH = 1;
+
+    private WireFormat() {
+    }
+
+    /** @return the encoding of {@code tx}; its input hashes and address hashes have to be 32 bytes */
+    public static byte[] encode(Transaction tx) {
+        RawWriter writer = RawWriter.get().putByte(VERSION);
+        writeTransaction(writer, tx, new Ids());
+        return writer.toByteArray();
+    }
+
+    /** @return the encoding of {@code block}; its hashes and address hashes have to be 32 bytes */
+    public static byte[] encode(Block block) {
+        RawWriter writer = RawWriter.get().putByte(VERSION);
+        byte[] prevHash = block.getPrevBlockHash();
+        writer.putByte((prevHash != null ? HAS_PREV_HASH : 0) | (block.getHash() != null ? FINALIZED : 0));
+        if (prevHash != null)
+            writer.put(checkHash(prevHash));
+        Ids ids = new Ids();
+        writeKey(writer, block.getCoinbase().getOutput(0).address, ids); // its value is always Block.COINBASE
+        List<Transaction> txs = block.getTransactions();
+        writer.putVarint(txs.size());
+        for (Transaction tx : txs)
+            writeTransaction(writer, tx, ids);
+        return writer.toByteArray();
+    }
+
+    /**
+     * @return the transaction encoded in {@code bytes}, finalized if the encoded one was
+     * @throws IllegalArgumentException if the bytes are not a complete encoding of a known version
+     */
+    public static Transaction decodeTransaction(byte[] bytes) {
+        Reader reader = new Reader(bytes);
+        Transaction tx = reader.transaction();
+        reader.end();
+        return tx;
+    }
+
+    /**
+     * @return the block encoded in {@code bytes}, finalized if the encoded one was
+     * @throws IllegalArgumentException if the bytes are not a complete encoding of a known version
+     */
+    public static Block decodeBlock(byte[] bytes) {
+        Reader reader = new Reader(bytes);
+        Block block = reader.block();
+        reader.end();
+        return block;
+    }
+
+    private static void writeTransaction(RawWriter writer, Transaction tx, Ids ids) {
+        writer.putByte((tx.isCoinbase() ? COINBASE : 0) | (tx.getHash() != null ? FINALIZED : 0));
+        writer.putVarint(tx.numInputs());
+        for (Transaction.Input in : tx.getInputs()) {
+            writer.put(checkHash(in.prevTxHash)).putVarint(in.outputIndex);
+            if (in.signature == null)
+                writer.putVarint(0);
+            else
+                writer.putVarint(in.signature.length).put(in.signature);
+            writeKey(writer, in.publicKey, ids);
+        }
+        writer.putVarint(tx.numOutputs());
+        for (Transaction.Output op : tx.getOutputs()) {
+            writer.putDouble(op.value);
+            if (op.addressHash != null)
+                writeKeyHash(writer, op.addressHash, ids);
+            else
+                writeKey(writer, op.address, ids);
+        }
+    }
+
+    private static void writeKey(RawWriter writer, PublicKey key, Ids ids) {
+        if (key == null) {
+            writer.putVarint(0);
+            return;
+        }
+        Integer id = ids.keys.get(key);
+        if (id != null) {
+            writer.putVarint(id + 1);
+            return;
+        }
+        ids.keys.put(key, ids.next);
+        writer.putVarint(++ids.next).putByte(KEY);
+        byte[] exponent = ((RSAPublicKey) key).getPublicExponent().toByteArray();
+        byte[] modulus = ((RSAPublicKey) key).getModulus().toByteArray();
+        writer.putVarint(exponent.length).put(exponent).putVarint(modulus.length).put(modulus);
+    }
+
+    private static void writeKeyHash(RawWriter writer, byte[] addressHash, Ids ids) {
+        ByteArrayWrapper wrapped = new ByteArrayWrapper(checkHash(addressHash));
+        Integer id = ids.keyHashes.get(wrapped);
+        if (id != null) {
+            writer.putVarint(id + 1);
+            return;
+        }
+        ids.keyHashes.put(wrapped, ids.next);
+        writer.putVarint(++ids.next).putByte(KEY_HASH).put(addressHash);
+    }
+
+    private static byte[] checkHash(byte[] hash) {
+        if (hash == null || hash.length != HASH_LENGTH)
+            throw new IllegalArgumentException("hashes are " + HASH_LENGTH + " bytes, not "
+                    + (hash == null ? "missing" : hash.length));
+        return hash;
+    }
+
+    /**
+     * the ids an encoding gave its addresses so far; keys are numbered by identity, equal keys that are
+     * different objects are both sent in full
+     */
+    private static final class Ids {
+        final IdentityHashMap<PublicKey, Integer> keys = new IdentityHashMap<PublicKey, Integer>();
+        final HashMap<ByteArrayWrapper, Integer> keyHashes = new HashMap<ByteArrayWrapper, Integer>();
+        int next;
+    }
+
+    /** decodes one encoding, with the addresses it has numbered so far */
+    private static final class Reader {
+
+        private final ByteBuffer buffer;
+        /** keys and address hashes, by id */
+        private final List<Object> addresses = new ArrayList<Object>();
+        private KeyFactory keyFactory;
+
+        Reader(byte[] bytes) {
+            buffer = ByteBuffer.wrap(bytes); // big endian, as written
+            int version = readByte();
+            if (version != VERSION)
+                throw new IllegalArgumentException("unknown wire format version " + version);
+        }
+
+        Block block() {
+            int flags = readByte();
+            byte[] prevHash = (flags & HAS_PREV_HASH) != 0 ? readBytes(HASH_LENGTH) : null;
+            Block block = new Block(prevHash, checkKey(readAddress())); // the coinbase pays to a key
+            int count = readCount();
+            for (int i = 0; i < count; i++)
+                block.addTransaction(transaction());
+            if ((flags & FINALIZED) != 0)
+                block.finalize();
+            return block;
+        }
+
+        Transaction transaction() {
+            int flags = readByte();
+            Transaction tx = new Transaction();
+            int inputs = readCount();
+            for (int i = 0; i < inputs; i++) {
+                byte[] prevTxHash = readBytes(HASH_LENGTH);
+                tx.addInput(null, readVarint());
+                int signatureLength = readCount();
+                // nek: the arrays are fresh, so they are taken instead of copied; nothing is cached yet
+                Transaction.Input in = tx.getInput(i);
+                in.prevTxHash = prevTxHash;
+                in.signature = signatureLength == 0 ? null : readBytes(signatureLength);
+                in.publicKey = readKey();
+            }
+            int outputs = readCount();
+            for (int i = 0; i < outputs; i++) {
+                double value = readDouble();
+                Object address = readAddress();
+                if (address instanceof byte[])
+                    tx.addOutput(value, (byte[]) address);
+                else
+                    tx.addOutput(value, checkKey(address));
+            }
+            if ((flags & COINBASE) != 0) {
+                if (inputs != 0 || outputs != 1 || tx.getOutput(0).address == null)
+                    throw new IllegalArgumentException("a coinbase has no inputs and one output to a key");
+                Transaction.Output op = tx.getOutput(0);
+                return new Transaction(op.value, op.address); // finalized by the constructor
+            }
+            if ((flags & FINALIZED) != 0)
+                tx.finalize();
+            return tx;
+        }
+
+        /** @return the key at the next address, null if there is none */
+        private PublicKey readKey() {
+            Object address = readAddress();
+            return address == null ? null : checkKey(address);
+        }
+
+        /** @return the next address: a key, an address hash, or null if there is none */
+        private Object readAddress() {
+            int id = readVarint();
+            if (id == 0)
+                return null;
+            id--;
+            if (id < addresses.size() && id >= 0)
+                return addresses.get(id);
+            if (id != addresses.size())
+                throw new IllegalArgumentException("address " + id + " before address " + addresses.size());
+            int kind = readByte();
+            Object address;
+            if (kind == KEY)
+                address = readRsaKey(id);
+            else if (kind == KEY_HASH)
+                address = readBytes(HASH_LENGTH);
+            else
+                throw new IllegalArgumentException("unknown kind " + kind + " of address " + id);
+            addresses.add(address);
+            return address;
+        }
+
+        private PublicKey readRsaKey(int id) {
+            BigInteger exponent = new BigInteger(readBytes(readCount()));
+            BigInteger modulus = new BigInteger(readBytes(readCount()));
+            try {
+                if (keyFactory == null)
+                    keyFactory = KeyFactory.getInstance("RSA");
+                return keyFactory.generatePublic(new RSAPublicKeySpec(modulus, exponent));
+            } catch (NoSuchAlgorithmException | InvalidKeySpecException e) {
+                throw new IllegalArgumentException("invalid address " + id, e);
+            }
+        }
+
+        private PublicKey checkKey(Object address) {
+            if (address == null)
+                throw new IllegalArgumentException("no address where a key belongs");
+            if (!(address instanceof PublicKey))
+                throw new IllegalArgumentException("an address hash where a key belongs");
+            return (PublicKey) address;
+        }
+
+        private int readVarint() {
+            int value = 0;
+            for (int shift = 0; shift < 35; shift += 7) {
+                int b = readByte();
+                value |= (b & 0x7f) << shift;
+                if ((b & 0x80) == 0)
+                    return value;
+            }
+            throw new IllegalArgumentException("varint longer than 5 bytes");
+        }
+
+        /** a varint that sizes something still to be read, so it cannot be more than the bytes left */
+        private int readCount() {
+            int count = readVarint();
+            if (count < 0 || count > buffer.remaining())
+                throw new IllegalArgumentException("count " + count + " with " + buffer.remaining() + " bytes left");
+            return count;
+        }
+
+        private byte[] readBytes(int length) {
+            byte[] bytes = new byte[length];
+            try {
+                buffer.get(bytes);
+            } catch (BufferUnderflowException e) {
+                throw new IllegalArgumentException("truncated encoding", e);
+            }
+            return bytes;
+        }
+
+        private double readDouble() {
+            if (buffer.remaining() < Double.BYTES)
+                throw new IllegalArgumentException("truncated encoding");
+            return buffer.getDouble();
+        }
+
+        private int readByte() {
+            if (!buffer.hasRemaining())
+                throw new IllegalArgumentException("truncated encoding");
+            return buffer.get();
+        }
+
+        void end() {
+            if (buffer.hasRemaining())
+                throw new IllegalArgumentException(buffer.remaining() + " bytes after the encoding");
+        }
+    }
+}
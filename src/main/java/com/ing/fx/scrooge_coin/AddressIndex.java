@@ -0,0 +1,198 @@
+package com.ing.fx.scrooge_coin;
+
+import java.security.PublicKey;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import com.ing.fx.block_chain.Transaction;
+
+/**
+ * The secondary index of a {@link UTXOPool} from address to the UTXOs it owns, with the balance of every
+ * address kept up to date in base units, so that a balance is a lookup and selecting coins only looks at
+ * the coins of one address.
+ * The pool tells the index about every output it adds and removes. A key owns the outputs paying to it and
+ * the pay-to-key-hash outputs paying to its address hash, which the index keeps apart like the store does.
+ *
+ * nek: a copy shares everything with the original, like {@link PersistentUTXOStore} does, and is O(1). The
+ * address table only grows and is shared for good. The array of coin lists and each coin list are owned by
+ * the index that created them; the first change to one the index does not own copies it, the array in
+ * O(addresses) and a coin list in O(coins of that address).
+ * */
+final class AddressIndex {
+
+    private final AddressTable addresses;
+    private Coins[] coinsById = new Coins[64];
+    /** marks the array and the coin lists this index may change in place, replaced on every copy */
+    private Object owner = new Object();
+    private Object arrayOwner = owner;
+
+    AddressIndex() {
+        addresses = new AddressTable();
+    }
+
+    private AddressIndex(AddressIndex original) {
+        addresses = original.addresses;
+        coinsById = original.coinsById;
+        arrayOwner = null;
+    }
+
+    /** @return a copy in O(1), changes to one index are not seen by the other */
+    AddressIndex copy() {
+        owner = new Object();
+        return new AddressIndex(this);
+    }
+
+    void add(UTXO utxo, Transaction.Output txOut) {
+        long value = Math.max(0, CoinValue.toBaseUnits(txOut.value)); // invalid values own nothing
+        add(utxo, AddressTable.addressOf(txOut), value);
+    }
+
+    private void add(UTXO utxo, Object address, long value) {
+        int id = addresses.idOf(address);
+        if (id >= coinsById.length) {
+            coinsById = Arrays.copyOf(coinsById, Math.max(id + 1, coinsById.length * 2));
+            arrayOwner = owner;
+        }
+        writable(id).add(utxo, value);
+    }
+
+    /** {@code utxo} may be a probe key, it is not kept */
+    void remove(UTXO utxo, Transaction.Output txOut) {
+        int id = addresses.find(AddressTable.addressOf(txOut));
+        if (id >= 0 && id < coinsById.length && coinsById[id] != null)
+            writable(id).remove(utxo);
+    }
+
+    /** @return the coins of address {@code id}, owned by this index, copied first if they are shared */
+    private Coins writable(int id) {
+        if (arrayOwner != owner) {
+            coinsById = coinsById.clone();
+            arrayOwner = owner;
+        }
+        Coins coins = coinsById[id];
+        if (coins == null || coins.owner != owner)
+            coinsById[id] = coins = coins == null ? new Coins(owner) : coins.copy(owner);
+        return coins;
+    }
+
+    /** @return the sum of the values of the UTXOs of {@code address}, in base units */
+    long balanceOf(PublicKey address) {
+        Coins coins = coinsOf(address);
+        Coins hashCoins = coinsOf(Transaction.addressHashOf(address));
+        return (coins == null ? 0 : coins.balance) + (hashCoins == null ? 0 : hashCoins.balance);
+    }
+
+    /** @see UTXOPool#selectCoins(PublicKey, double) */
+    ArrayList<UTXO> selectCoins(PublicKey address, long amount) {
+        Coins coins = merge(coinsOf(address), coinsOf(Transaction.addressHashOf(address)));
+        if (coins == null || coins.balance < amount)
+            return null;
+        ArrayList<UTXO> selected = new ArrayList<>();
+        // the smallest single coin that pays the whole amount: one input, the least value locked in change
+        int single = -1;
+        for (int i = 0; i < coins.size; i++)
+            if (coins.values[i] >= amount && (single < 0 || coins.values[i] < coins.values[single]))
+                single = i;
+        if (single >= 0) {
+            selected.add(coins.utxos[single]);
+            return selected;
+        }
+        // otherwise the largest coins first, for the fewest inputs
+        Integer[] order = new Integer[coins.size];
+        for (int i = 0; i < order.length; i++)
+            order[i] = i;
+        final long[] values = coins.values;
+        Arrays.sort(order, new Comparator<Integer>() {
+            public int compare(Integer a, Integer b) {
+                return Long.compare(values[b], values[a]);
+            }
+        });
+        long total = 0;
+        for (int i = 0; total < amount; i++) {
+            selected.add(coins.utxos[order[i]]);
+            total += values[order[i]];
+        }
+        return selected;
+    }
+
+    private Coins coinsOf(Object address) {
+        int id = addresses.find(address);
+        return id < 0 || id >= coinsById.length ? null : coinsById[id];
+    }
+
+    /** @return the coins of both, a new list only if both have coins */
+    private static Coins merge(Coins a, Coins b) {
+        if (a == null || a.size == 0)
+            return b;
+        if (b == null || b.size == 0)
+            return a;
+        Coins merged = new Coins(null);
+        for (int i = 0; i < a.size; i++)
+            merged.add(a.utxos[i], a.values[i]);
+        for (int i = 0; i < b.size; i++)
+            merged.add(b.utxos[i], b.values[i]);
+        return merged;
+    }
+
+    /** the UTXOs of one address, unordered, with their values and their positions for O(1) removal */
+    private static final class Coins {
+        final Object owner;
+        UTXO[] utxos = new UTXO[4];
+        long[] values = new long[4];
+        int size;
+        long balance;
+        final HashMap<UTXO, Integer> positions;
+
+        Coins(Object owner) {
+            this.owner = owner;
+            positions = new HashMap<>();
+        }
+
+        private Coins(Object owner, Coins original) {
+            this.owner = owner;
+            utxos = original.utxos.clone();
+            values = original.values.clone();
+            size = original.size;
+            balance = original.balance;
+            positions = new HashMap<>(original.positions);
+        }
+
+        /** @return a copy owned by {@code owner} */
+        Coins copy(Object owner) {
+            return new Coins(owner, this);
+        }
+
+        void add(UTXO utxo, long value) {
+            Integer at = positions.get(utxo);
+            if (at != null) { // overwritten output
+                balance += value - values[at];
+                values[at] = value;
+                return;
+            }
+            if (size == utxos.length) {
+                utxos = Arrays.copyOf(utxos, size * 2);
+                values = Arrays.copyOf(values, size * 2);
+            }
+            utxos[size] = utxo;
+            values[size] = value;
+            positions.put(utxo, size);
+            size++;
+            balance += value;
+        }
+
+        void remove(UTXO utxo) {
+            Integer at = positions.remove(utxo);
+            if (at == null)
+                return;
+            balance -= values[at];
+            size--;
+            if (at != size) { // move the last coin into the hole
+                utxos[at] = utxos[size];
+                values[at] = values[size];
+                positions.put(utxos[at], at);
+            }
+            utxos[size] = null;
+        }
+    }
+}
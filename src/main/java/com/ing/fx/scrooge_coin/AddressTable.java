@@ -0,0 +1,105 @@
+package com.ing.fx.scrooge_coin;
+
+import java.security.PublicKey;
+import java.util.Arrays;
+import java.util.HashMap;
+import com.ing.fx.block_chain.ByteArrayWrapper;
+import com.ing.fx.block_chain.Transaction;
+
+/**
+ * Numbers the addresses seen by a store, so that a record can hold a 4 byte id instead of a reference to a
+ * {@link PublicKey} and every address is kept on the heap once, however many outputs it owns.
+ * An address is the {@link PublicKey} of an output or, for a pay-to-key-hash output, its 32 byte address hash;
+ * a key and the hash of that key are different addresses, as they are different outputs.
+ * Ids are never reused, a table only grows. It is shared by a store and its copies and is thread safe:
+ * adding is synchronized, looking up an id is a plain array read.
+ *
+ * nek: only the addresses themselves are kept, one per id. The key last numbered is remembered to spare
+ * hashing its encoding when the next output goes to the same key, the usual case of a transaction with change.
+ * Address hashes are looked up by content and a new one is kept as a copy, never the array of the output, so
+ * the table holds one 32 byte array per hash however many outputs pay to it. An output without a key and
+ * without an address hash has the address null, which is numbered like any other and pays to nobody.
+ * */
+final class AddressTable {
+
+    /** Output is an inner class of Transaction, created outputs need an enclosing instance */
+    private static final Transaction OUTER = new Transaction();
+
+    /** keys, and address hashes wrapped to compare by content */
+    private final HashMap<Object, Integer> ids = new HashMap<>();
+    /** the key of the last lookup and its id, a single reference however many keys pass */
+    private PublicKey lastKey;
+    private int lastId;
+    private volatile Object[] addresses = new Object[64];
+    private int size;
+
+    /** @return the address of {@code txOut}: its key, or its address hash if it has no key */
+    static Object addressOf(Transaction.Output txOut) {
+        return txOut.addressHash != null ? txOut.addressHash : txOut.address;
+    }
+
+    /** @return the id of the address of {@code txOut}, numbering it if it was not seen before */
+    int idOf(Transaction.Output txOut) {
+        return idOf(addressOf(txOut));
+    }
+
+    /** @return the id of {@code address}, a key or an address hash, numbering it if it was not seen before */
+    synchronized int idOf(Object address) {
+        if (address != null && address == lastKey)
+            return lastId;
+        Object key = byContent(address);
+        Integer id = ids.get(key);
+        if (id != null)
+            return remember(address, id);
+        if (address instanceof byte[])
+            address = ((byte[]) address).clone(); // the wrapper holds a copy as well
+        Object[] current = addresses;
+        if (size == current.length) {
+            current = Arrays.copyOf(current, size * 2);
+            current[size] = address;
+            addresses = current;
+        } else {
+            current[size] = address;
+        }
+        ids.put(key, size);
+        return remember(address, size++);
+    }
+
+    /** @return the id of {@code address}, a key or an address hash, or -1 if it was not numbered yet */
+    synchronized int find(Object address) {
+        if (address != null && address == lastKey)
+            return lastId;
+        Integer id = ids.get(byContent(address));
+        return id == null ? -1 : remember(address, id);
+    }
+
+    /** @return the address numbered {@code id} by {@link #idOf}, a {@link PublicKey}, a byte[] hash or null */
+    Object addressOf(int id) {
+        return addresses[id];
+    }
+
+    /** @return a new output of {@code value} to the address numbered {@code id}, sharing the table's hash */
+    Transaction.Output outputOf(int id, double value) {
+        Object address = addresses[id];
+        if (address instanceof PublicKey)
+            return OUTER.new Output(value, (PublicKey) address);
+        return OUTER.new Output(value, (byte[]) address);
+    }
+
+    /** @return the number of distinct addresses */
+    synchronized int size() {
+        return size;
+    }
+
+    private int remember(Object address, int id) {
+        if (address instanceof PublicKey) {
+            lastKey = (PublicKey) address;
+            lastId = id;
+        }
+        return id;
+    }
+
+    private static Object byContent(Object address) {
+        return address instanceof byte[] ? new ByteArrayWrapper((byte[]) address) : address;
+    }
+}
@@ -0,0 +1,48 @@
+package com.ing.fx.scrooge_coin;
+
+/**
+ * Fixed-point coin amounts: a value in coins is held as a {@code long} number of base units, the smallest
+ * coin fraction (Satoshi in Bitcoin). Summing longs is exact and allocation free, unlike summing doubles
+ * or a {@code BigDecimal} per value.
+ *
+ * The helpers never throw: a value that cannot be represented and a sum that overflows both give
+ * {@link #INVALID}, which every helper passes through, so a validation loop only has to check its total once
+ * per step.
+ * */
+public final class CoinValue {
+
+    /** base units per coin */
+    public static final long COIN = 100000000L;
+
+    /** the largest value in coins that fits in a long of base units */
+    public static final double MAX_COINS = Long.MAX_VALUE / COIN;
+
+    /** result of converting an unrepresentable value or of an overflowing sum */
+    public static final long INVALID = -1;
+
+    private CoinValue() {
+    }
+
+    /**
+     * @return {@code coins} rounded to the nearest base unit, or {@link #INVALID} if {@code coins} is
+     *         negative, NaN or larger than {@link #MAX_COINS}
+     */
+    public static long toBaseUnits(double coins) {
+        if (!(coins >= 0 && coins <= MAX_COINS)) // written this way round to catch NaN as well
+            return INVALID;
+        return Math.round(coins * COIN);
+    }
+
+    /** @return {@code baseUnits} as a value in coins */
+    public static double toCoins(long baseUnits) {
+        return (double) baseUnits / COIN;
+    }
+
+    /** @return {@code a + b}, or {@link #INVALID} if either is invalid or the sum overflows */
+    public static long add(long a, long b) {
+        if (a < 0 || b < 0)
+            return INVALID;
+        long sum = a + b;
+        return sum < 0 ? INVALID : sum;
+    }
+}
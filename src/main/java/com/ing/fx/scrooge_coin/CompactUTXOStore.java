@@ -0,0 +1,236 @@
+package com.ing.fx.scrooge_coin;
+
+import java.util.AbstractMap;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Spliterator;
+import java.util.function.BiConsumer;
+import com.ing.fx.block_chain.Transaction;
+
+/**
+ * A {@link UTXOStore} that keeps the outputs as a structure of arrays instead of objects: an open addressing
+ * table of UTXO keys with, in the same slot of two parallel arrays, the value of the output in
+ * {@link CoinValue} base units and the id of its address in an {@link AddressTable}.
+ * An entry costs its key plus 12 bytes of array instead of a map node and an output object, and every address
+ * is held once however many outputs pay to it; outputs that pay to the same key object, or to an equal one,
+ * end up with the same int id, so the store never compares or hashes keys beyond that first time.
+ * Outputs are only created when {@link #get} or a scan asks for one, so they are equal to, not the same as,
+ * the outputs that were put.
+ *
+ * nek: this is {@link OffHeapUTXOStore} kept on the heap, for pools whose UTXO keys are around anyway;
+ * removed slots are marked and reused by later puts, unless the next slot is free and the run can just end.
+ * A value that does not come back from its base units unchanged (NaN, negative, too large or finer than a base
+ * unit; no valid transaction creates one) is kept as a double in a side map, so every output still comes back
+ * as it was put.
+ * */
+public class CompactUTXOStore implements UTXOStore {
+
+    /** marks a removed slot, probing goes on over it */
+    private static final UTXO REMOVED = new UTXO(new byte[0], -1);
+
+    private static final int MAX_CAPACITY = 1 << 30;
+
+    private final AddressTable addresses;
+    private UTXO[] keys;
+    /** the values in base units, or {@link CoinValue#INVALID} for a value kept in {@link #oddValues} */
+    private long[] values;
+    private int[] addressIds;
+    /** the values that are not a number of base units, by UTXO; empty unless invalid outputs were put */
+    private HashMap<UTXO, Double> oddValues = new HashMap<>();
+    private int count;
+    private int removed;
+
+    /** Creates an empty store */
+    public CompactUTXOStore() {
+        this(16);
+    }
+
+    /** Creates an empty store sized for {@code expectedSize} UTXOs, so that filling it does not rehash */
+    public CompactUTXOStore(int expectedSize) {
+        this(new AddressTable(), tableCapacity(expectedSize));
+    }
+
+    private CompactUTXOStore(AddressTable addresses, int capacity) {
+        this.addresses = addresses;
+        keys = new UTXO[capacity];
+        values = new long[capacity];
+        addressIds = new int[capacity];
+    }
+
+    private static int tableCapacity(int expectedSize) {
+        int capacity = 16;
+        while (capacity < MAX_CAPACITY && capacity * 3L < expectedSize * 4L)
+            capacity <<= 1;
+        return capacity;
+    }
+
+    public Transaction.Output get(UTXO utxo) {
+        int slot = find(utxo);
+        return slot < 0 ? null : outputAt(slot);
+    }
+
+    public boolean contains(UTXO utxo) {
+        return find(utxo) >= 0;
+    }
+
+    public Transaction.Output put(UTXO utxo, Transaction.Output txOut) {
+        int slot = find(utxo);
+        if (slot >= 0) {
+            Transaction.Output previous = outputAt(slot);
+            writeOutput(slot, txOut);
+            return previous;
+        }
+        if ((count + removed + 1) * 4L > keys.length * 3L) {
+            rehash();
+            slot = find(utxo);
+        }
+        slot = -slot - 1;
+        if (keys[slot] == REMOVED)
+            removed--;
+        keys[slot] = utxo;
+        writeOutput(slot, txOut);
+        count++;
+        return null;
+    }
+
+    public Transaction.Output remove(UTXO utxo) {
+        int slot = find(utxo);
+        if (slot < 0)
+            return null;
+        Transaction.Output previous = outputAt(slot);
+        if (values[slot] == CoinValue.INVALID)
+            oddValues.remove(keys[slot]);
+        if (keys[(slot + 1) & (keys.length - 1)] == null) {
+            keys[slot] = null; // the last of its run, nothing probes past it
+        } else {
+            keys[slot] = REMOVED;
+            removed++;
+        }
+        count--;
+        return previous;
+    }
+
+    public int size() {
+        return count;
+    }
+
+    /** @return a copy of the arrays, the copy shares the UTXO keys and the address table with this store */
+    public UTXOStore copy() {
+        CompactUTXOStore copy = new CompactUTXOStore(addresses, 0);
+        copy.keys = keys.clone();
+        copy.values = values.clone();
+        copy.addressIds = addressIds.clone();
+        copy.oddValues = new HashMap<>(oddValues);
+        copy.count = count;
+        copy.removed = removed;
+        return copy;
+    }
+
+    public void forEach(BiConsumer<? super UTXO, ? super Transaction.Output> action) {
+        for (int slot = 0; slot < keys.length; slot++) {
+            UTXO key = keys[slot];
+            if (key != null && key != REMOVED)
+                action.accept(key, outputAt(slot));
+        }
+    }
+
+    public Spliterator<Map.Entry<UTXO, Transaction.Output>> spliterator() {
+        return new Slots(0, keys.length);
+    }
+
+    /** @return the number of distinct addresses of the outputs put into this store and its copies */
+    public int addressCount() {
+        return addresses.size();
+    }
+
+    private final class Slots extends UTXOSpliterators.Slots {
+        Slots(long from, long to) {
+            super(from, to, (double) count / keys.length);
+        }
+
+        Map.Entry<UTXO, Transaction.Output> entryAt(long slot) {
+            UTXO key = keys[(int) slot];
+            if (key == null || key == REMOVED)
+                return null;
+            return new AbstractMap.SimpleImmutableEntry<>(key, outputAt((int) slot));
+        }
+
+        UTXOSpliterators.Slots range(long from, long to) {
+            return new Slots(from, to);
+        }
+    }
+
+    /**
+     * @return the slot of {@code utxo} if it is in the table, otherwise -(slot + 1) of the slot where it should
+     *         be inserted
+     */
+    private int find(UTXO utxo) {
+        int mask = keys.length - 1;
+        int free = -1;
+        for (int slot = spread(utxo.hashCode()) & mask; ; slot = (slot + 1) & mask) {
+            UTXO key = keys[slot];
+            if (key == null)
+                return -(free < 0 ? slot : free) - 1;
+            if (key == REMOVED) {
+                if (free < 0)
+                    free = slot;
+            } else if (key.equals(utxo)) {
+                return slot;
+            }
+        }
+    }
+
+    /** grows the table, or only drops the removed slots if they are the reason it is full */
+    private void rehash() {
+        int newCapacity = removed > count ? keys.length : Math.min(MAX_CAPACITY, keys.length << 1);
+        if (count + 1 >= newCapacity)
+            throw new IllegalStateException("UTXO store is full at " + count + " entries");
+        UTXO[] oldKeys = keys;
+        long[] oldValues = values;
+        int[] oldAddressIds = addressIds;
+        keys = new UTXO[newCapacity];
+        values = new long[newCapacity];
+        addressIds = new int[newCapacity];
+        removed = 0;
+        int mask = newCapacity - 1;
+        for (int oldSlot = 0; oldSlot < oldKeys.length; oldSlot++) {
+            UTXO key = oldKeys[oldSlot];
+            if (key == null || key == REMOVED)
+                continue;
+            int slot = spread(key.hashCode()) & mask;
+            while (keys[slot] != null)
+                slot = (slot + 1) & mask;
+            keys[slot] = key;
+            values[slot] = oldValues[oldSlot];
+            addressIds[slot] = oldAddressIds[oldSlot];
+        }
+    }
+
+    private Transaction.Output outputAt(int slot) {
+        long baseUnits = values[slot];
+        double value = baseUnits == CoinValue.INVALID ? oddValues.get(keys[slot]) : CoinValue.toCoins(baseUnits);
+        return addresses.outputOf(addressIds[slot], value);
+    }
+
+    /** writes the value and address of {@code txOut} into {@code slot}, whose key is set already */
+    private void writeOutput(int slot, Transaction.Output txOut) {
+        long baseUnits = CoinValue.toBaseUnits(txOut.value);
+        if (baseUnits != CoinValue.INVALID && Double.compare(CoinValue.toCoins(baseUnits), txOut.value) == 0) {
+            if (values[slot] == CoinValue.INVALID) // an overwritten odd value
+                oddValues.remove(keys[slot]);
+            values[slot] = baseUnits;
+        } else {
+            values[slot] = CoinValue.INVALID;
+            oddValues.put(keys[slot], txOut.value);
+        }
+        addressIds[slot] = addresses.idOf(txOut);
+    }
+
+    /** UTXO hash codes are sums of products, mix the high bits into the low bits the mask keeps */
+    private static int spread(int h) {
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        return h;
+    }
+}
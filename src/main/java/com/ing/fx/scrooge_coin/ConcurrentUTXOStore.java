@@ -0,0 +1,69 @@
+package com.ing.fx.scrooge_coin;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.Map;
+import java.util.Spliterator;
+import java.util.function.BiConsumer;
+import com.ing.fx.block_chain.Transaction;
+
+/**
+ * A thread safe {@link UTXOStore} on a {@code ConcurrentHashMap}: lookups take no lock at all and changes
+ * only lock the one bin of the table they touch, so validator threads working on different UTXOs do not
+ * wait for each other. {@link #remove} and {@link #putIfAbsent} are atomic, of two threads spending the
+ * same UTXO exactly one gets its output back.
+ * */
+public class ConcurrentUTXOStore implements UTXOStore {
+
+    private final ConcurrentHashMap<UTXO, Transaction.Output> H;
+
+    public ConcurrentUTXOStore() {
+        H = new ConcurrentHashMap<UTXO, Transaction.Output>();
+    }
+
+    /** Creates an empty store sized for {@code expectedSize} UTXOs */
+    public ConcurrentUTXOStore(int expectedSize) {
+        H = new ConcurrentHashMap<UTXO, Transaction.Output>(expectedSize);
+    }
+
+    private ConcurrentUTXOStore(ConcurrentHashMap<UTXO, Transaction.Output> entries) {
+        H = new ConcurrentHashMap<UTXO, Transaction.Output>(entries);
+    }
+
+    public Transaction.Output get(UTXO utxo) {
+        return H.get(utxo);
+    }
+
+    public Transaction.Output put(UTXO utxo, Transaction.Output txOut) {
+        return H.put(utxo, txOut);
+    }
+
+    public Transaction.Output putIfAbsent(UTXO utxo, Transaction.Output txOut) {
+        return H.putIfAbsent(utxo, txOut);
+    }
+
+    public Transaction.Output remove(UTXO utxo) {
+        return H.remove(utxo);
+    }
+
+    public boolean contains(UTXO utxo) {
+        return H.containsKey(utxo);
+    }
+
+    public int size() {
+        return H.size();
+    }
+
+    /** @return a copy of the entries at some moment during the call, when other threads keep changing the store */
+    public UTXOStore copy() {
+        return new ConcurrentUTXOStore(H);
+    }
+
+    public void forEach(BiConsumer<? super UTXO, ? super Transaction.Output> action) {
+        H.forEach(action);
+    }
+
+    /** @return a weakly consistent spliterator: it never blocks writers and sees some of their changes */
+    public Spliterator<Map.Entry<UTXO, Transaction.Output>> spliterator() {
+        return UTXOSpliterators.of(H);
+    }
+}
@@ -2,9 +2,15 @@ package com.ing.fx.scrooge_coin;
 
 import java.security.InvalidKeyException;
 import java.security.NoSuchAlgorithmException;
+import java.security.PrivateKey;
 import java.security.PublicKey;
 import java.security.Signature;
 import java.security.SignatureException;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 public class Crypto {
 
@@ -12,7 +18,8 @@ public class Crypto {
      * @return true if {@code signature} is a valid digital signature of {@code message} under the
      *         key {@code pubKey}. Internally, this uses RSA signature, but the student does not
      *         have to deal with any of the implementation details of the specific signature
-     *         algorithm
+     *         algorithm. Valid signatures are remembered in the shared {@link SignatureCache}, so
+     *         verifying the same signature again is a lookup.
      */
     public static boolean verifySignature(PublicKey pubKey, byte[] message, byte[] signature) {
         /** nek:
@@ -30,24 +37,165 @@ public class Crypto {
          * It has very good randomness which is essential in avoiding leaking sk
          * either via generating keys or signing keys
          * */
-        Signature sig = null;
-        try {
-            sig = Signature.getInstance("SHA256withRSA");
-        } catch (NoSuchAlgorithmException e) {
-            e.printStackTrace();
+        if (pubKey == null || message == null || signature == null)
+            return false;
+        // nek: a signature that was verified before, e.g. when its transaction entered the pool, is not verified again
+        SignatureCache cache = SignatureCache.getShared();
+        byte[] entry = SignatureCache.entryOf(pubKey, message, signature);
+        if (cache.contains(entry))
+            return true;
+        if (verify(pubKey, message, signature)) {
+            cache.add(entry);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Same as {@link #verifySignature} for a message of which only the SHA-256 {@code sigHash} is given, e.g.
+     * {@code Transaction.getSigHash(i)}: the signature is a SHA256withRSA signature of the message either way,
+     * and both share the entries of the {@link SignatureCache}.
+     */
+    public static boolean verifyDigest(PublicKey pubKey, byte[] sigHash, byte[] signature) {
+        if (pubKey == null || sigHash == null || signature == null)
+            return false;
+        SignatureCache cache = SignatureCache.getShared();
+        byte[] entry = SignatureCache.entryOfSigHash(pubKey, sigHash, signature);
+        if (cache.contains(entry))
+            return true;
+        if (verify(pubKey, digestInfo(sigHash), signature, DIGEST_VERIFIERS, "NONEwithRSA")) {
+            cache.add(entry);
+            return true;
         }
+        // nek: SunJCE's NONEwithRSA does not reset its buffered message after a bad padding, start over next time
+        DIGEST_VERIFIERS.get().remove(pubKey);
+        return false;
+    }
+
+    /**
+     * @return the SHA256withRSA signature of the message whose SHA-256 is {@code sigHash}, the same bytes
+     *         signing the message itself gives
+     */
+    public static byte[] signDigest(PrivateKey privateKey, byte[] sigHash) throws SignatureException {
         try {
-            sig.initVerify(pubKey);
-        } catch (InvalidKeyException e) {
-            e.printStackTrace();
+            Signature sig = Signature.getInstance("NONEwithRSA");
+            sig.initSign(privateKey);
+            sig.update(digestInfo(sigHash));
+            return sig.sign();
+        } catch (NoSuchAlgorithmException | InvalidKeyException e) {
+            throw new SignatureException(e);
         }
+    }
+
+    /**
+     * Verifies {@code signatures[i]} over {@code messages[i]} under {@code pubKeys[i]} for every i.
+     * Large batches are spread across the cores by the {@link SignatureCheckQueue} workers.
+     *
+     * @return a bitmap whose bit i is set if and only if check i is valid
+     */
+    public static BitSet verifyAll(PublicKey[] pubKeys, byte[][] messages, byte[][] signatures) {
+        return verifyAll(pubKeys, messages, signatures, false);
+    }
+
+    /** Same as {@link #verifyAll} with the SHA-256 of each message instead of the message, see {@link #verifyDigest} */
+    public static BitSet verifyAllDigests(PublicKey[] pubKeys, byte[][] sigHashes, byte[][] signatures) {
+        return verifyAll(pubKeys, sigHashes, signatures, true);
+    }
+
+    private static BitSet verifyAll(final PublicKey[] pubKeys, final byte[][] messages, final byte[][] signatures,
+                                    final boolean hashed) {
+        final int n = pubKeys.length;
+        if (messages.length != n || signatures.length != n)
+            throw new IllegalArgumentException("keys, messages and signatures differ in length");
+        final long[] words = new long[(n + 63) / 64];
+        SignatureCheckQueue.Chunk chunk = new SignatureCheckQueue.Chunk() {
+            public void run(int from, int to) {
+                for (int i = from; i < to; i++) {
+                    boolean valid = hashed ? verifyDigest(pubKeys[i], messages[i], signatures[i])
+                            : verifySignature(pubKeys[i], messages[i], signatures[i]);
+                    if (valid)
+                        words[i >>> 6] |= 1L << i; // ranges are 64 aligned, so no other thread writes this word
+                }
+            }
+        };
+        if (n < SignatureCheckQueue.MIN_PARALLEL_CHECKS)
+            chunk.run(0, n);
+        else
+            SignatureCheckQueue.runChunked(n, 64, chunk);
+        return BitSet.valueOf(words);
+    }
+
+    /** number of initialized verifiers each thread keeps */
+    private static final int HOT_KEYS = 16;
+
+    /**
+     * Per thread verifiers for the most recently used public keys, already initialized with their key.
+     * Creating a Signature (provider lookup) and initVerify (key parsing) are a real share of a verify, so
+     * a thread only pays for them when it sees a key that is not among its {@link #HOT_KEYS} last keys.
+     * */
+    private static final ThreadLocal<LinkedHashMap<PublicKey, Signature>> VERIFIERS = newVerifiers();
+
+    /** the same for the NONEwithRSA verifiers of {@link #verifyDigest} */
+    private static final ThreadLocal<LinkedHashMap<PublicKey, Signature>> DIGEST_VERIFIERS = newVerifiers();
+
+    /**
+     * nek: the DER header of a PKCS#1 v1.5 DigestInfo for SHA-256. SHA256withRSA signs this header followed by
+     * the hash, so NONEwithRSA over header and hash is the same signature without hashing the message again.
+     * */
+    private static final byte[] SHA256_DIGEST_INFO = {0x30, 0x31, 0x30, 0x0d, 0x06, 0x09, 0x60, (byte) 0x86, 0x48,
+            0x01, 0x65, 0x03, 0x04, 0x02, 0x01, 0x05, 0x00, 0x04, 0x20};
+
+    private static byte[] digestInfo(byte[] sigHash) {
+        byte[] info = Arrays.copyOf(SHA256_DIGEST_INFO, SHA256_DIGEST_INFO.length + sigHash.length);
+        System.arraycopy(sigHash, 0, info, SHA256_DIGEST_INFO.length, sigHash.length);
+        return info;
+    }
+
+    private static ThreadLocal<LinkedHashMap<PublicKey, Signature>> newVerifiers() {
+        return new ThreadLocal<LinkedHashMap<PublicKey, Signature>>() {
+            @Override
+            protected LinkedHashMap<PublicKey, Signature> initialValue() {
+                return new LinkedHashMap<PublicKey, Signature>(HOT_KEYS * 2, 0.75f, true);
+            }
+        };
+    }
+
+    private static Signature verifierFor(PublicKey pubKey,
+                                         ThreadLocal<LinkedHashMap<PublicKey, Signature>> threadVerifiers,
+                                         String algorithm) throws InvalidKeyException {
+        LinkedHashMap<PublicKey, Signature> verifiers = threadVerifiers.get();
+        Signature sig = verifiers.get(pubKey);
+        if (sig != null)
+            return sig;
+        if (verifiers.size() >= HOT_KEYS) { // recycle the engine of the least recently used key
+            Iterator<Map.Entry<PublicKey, Signature>> eldest = verifiers.entrySet().iterator();
+            sig = eldest.next().getValue();
+            eldest.remove();
+        } else {
+            try {
+                sig = Signature.getInstance(algorithm);
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException(e); // every JVM has to ship SHA256withRSA and NONEwithRSA
+            }
+        }
+        sig.initVerify(pubKey);
+        verifiers.put(pubKey, sig);
+        return sig;
+    }
+
+    private static boolean verify(PublicKey pubKey, byte[] message, byte[] signature) {
+        return verify(pubKey, message, signature, VERIFIERS, "SHA256withRSA");
+    }
+
+    private static boolean verify(PublicKey pubKey, byte[] message, byte[] signature,
+                                  ThreadLocal<LinkedHashMap<PublicKey, Signature>> verifiers, String algorithm) {
         try {
+            Signature sig = verifierFor(pubKey, verifiers, algorithm);
             sig.update(message);
-            return sig.verify(signature); // Nek: verify if this signature is really the hash of the given message under the initiated key
-        } catch (SignatureException e) {
-            e.printStackTrace();
+            return sig.verify(signature); // Nek: verify if this signature is really the hash of the given message under the initiated key; verify() resets sig for the next message
+        } catch (InvalidKeyException | SignatureException e) {
+            verifiers.get().remove(pubKey); // a malformed signature may leave the engine mid-message
+            return false;
         }
-        return false;
-
     }
 }
@@ -0,0 +1,255 @@
+package com.ing.fx.scrooge_coin;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * A cuckoo filter over UTXOs, kept by a {@link UTXOPool} in front of its store (see
+ * {@link UTXOPool#useFilter(int)}): when the filter says a UTXO is not in the pool, it is not, and the store is
+ * not asked at all. Lookups of outputs that do not exist, as spam and double spends cause them, then cost one
+ * or two cache lines instead of a map, off-heap or disk lookup.
+ *
+ * Every UTXO is a 16 bit fingerprint in one of two buckets of 4 fingerprints. Unlike a Bloom filter a cuckoo
+ * filter can remove an entry again, so the filter stays exact about what was removed. A lookup compares at
+ * most 8 fingerprints, so the false positive rate is below 8 / 2^16 (0.012%) even when the table is full.
+ *
+ * nek: an insert that finds both buckets full moves a random fingerprint to its other bucket, and so on up to
+ * {@link #MAX_KICKS} times. If that fails, the fingerprint that is left over cannot be put anywhere and the
+ * filter is no longer correct; {@link #add} returns false and the pool rebuilds a larger filter from its store.
+ * The table is split into pages of 4 KB that a {@link #copy()} shares with the original, like
+ * {@link PersistentUTXOStore} shares its nodes: a page is copied by the first filter that changes it.
+ * Not thread safe, like the pool.
+ * */
+public class CuckooFilter {
+
+    static final int BUCKET_SIZE = 4;
+    static final int MAX_KICKS = 500;
+    private static final int PAGE_BITS = 11;
+    private static final int PAGE_MASK = (1 << PAGE_BITS) - 1;
+
+    /** the fingerprints, bucket after bucket and {@code 1 << PAGE_BITS} per page; 0 is a free entry */
+    private short[][] pages;
+    /** the filter that may change each page in place */
+    private Object[] pageOwners;
+    /** marks the pages this filter may change in place, replaced on every copy */
+    private Object owner = new Object();
+    /** the owner of the two arrays above, which a copy shares as well */
+    private Object arraysOwner = owner;
+    private final int slots;
+    private final int bucketMask;
+    private int count;
+
+    private long lookups;
+    private long negatives;
+    private long falsePositives;
+
+    /** Creates an empty filter with room for about {@code expectedSize} UTXOs at a 90% load */
+    public CuckooFilter(int expectedSize) {
+        long buckets = 1;
+        while (buckets * BUCKET_SIZE * 9 < expectedSize * 10L)
+            buckets <<= 1;
+        if (buckets * BUCKET_SIZE > 1 << 30)
+            throw new IllegalArgumentException("filter too large for " + expectedSize + " UTXOs");
+        slots = (int) buckets * BUCKET_SIZE;
+        bucketMask = (int) buckets - 1;
+        pages = new short[Math.max(1, slots >>> PAGE_BITS)][];
+        pageOwners = new Object[pages.length];
+        for (int i = 0; i < pages.length; i++) {
+            pages[i] = new short[Math.min(slots, 1 << PAGE_BITS)];
+            pageOwners[i] = owner;
+        }
+    }
+
+    private CuckooFilter(CuckooFilter original) {
+        pages = original.pages;
+        pageOwners = original.pageOwners;
+        arraysOwner = null;
+        slots = original.slots;
+        bucketMask = original.bucketMask;
+        count = original.count;
+    }
+
+    /**
+     * @return a filter holding the same UTXOs, in O(1); the two share their pages until one of them changes
+     *         a page. The lookup statistics of the copy start at 0.
+     */
+    public CuckooFilter copy() {
+        owner = new Object();
+        return new CuckooFilter(this);
+    }
+
+    /**
+     * Adds the UTXO ({@code txHash}, {@code index}); adding one UTXO twice takes two entries
+     *
+     * @return false if the filter is full: it then no longer holds every UTXO added and must be rebuilt
+     */
+    public boolean add(byte[] txHash, int index) {
+        long h = hash(txHash, index);
+        short fingerprint = fingerprintOf(h);
+        int bucket = (int) h & bucketMask;
+        if (insert(bucket, fingerprint) || insert(alternate(bucket, fingerprint), fingerprint)) {
+            count++;
+            return true;
+        }
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        if (random.nextBoolean())
+            bucket = alternate(bucket, fingerprint);
+        for (int kick = 0; kick < MAX_KICKS; kick++) {
+            int at = bucket * BUCKET_SIZE + random.nextInt(BUCKET_SIZE);
+            short[] page = writable(at);
+            short evicted = page[at & PAGE_MASK];
+            page[at & PAGE_MASK] = fingerprint;
+            fingerprint = evicted;
+            bucket = alternate(bucket, fingerprint);
+            if (insert(bucket, fingerprint)) {
+                count++;
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /** Removes the UTXO ({@code txHash}, {@code index}), which has to have been added */
+    public void remove(byte[] txHash, int index) {
+        long h = hash(txHash, index);
+        short fingerprint = fingerprintOf(h);
+        int bucket = (int) h & bucketMask;
+        if (delete(bucket, fingerprint) || delete(alternate(bucket, fingerprint), fingerprint))
+            count--;
+    }
+
+    /** @return false if the UTXO ({@code txHash}, {@code index}) is certainly not in the filter */
+    public boolean mightContain(byte[] txHash, int index) {
+        lookups++;
+        long h = hash(txHash, index);
+        short fingerprint = fingerprintOf(h);
+        int bucket = (int) h & bucketMask;
+        if (holds(bucket, fingerprint) || holds(alternate(bucket, fingerprint), fingerprint))
+            return true;
+        negatives++;
+        return false;
+    }
+
+    /** Counts a lookup that passed the filter but then missed in the store */
+    void countFalsePositive() {
+        falsePositives++;
+    }
+
+    /** @return the number of UTXOs in the filter */
+    public int size() {
+        return count;
+    }
+
+    /** @return the number of UTXOs the filter was sized for, at a 90% load */
+    public int capacity() {
+        return (int) (slots * 0.9);
+    }
+
+    /** @return the heap bytes of the fingerprint table, pages shared with copies included */
+    public long memoryBytes() {
+        return slots * 2L;
+    }
+
+    /**
+     * @return the chance that a lookup of a UTXO that is not in the filter passes it anyway, at the current
+     *         load: 8 compared fingerprints, each one equal with chance 1 / (2^16 - 1) if it is in use
+     */
+    public double expectedFalsePositiveRate() {
+        double load = (double) count / slots;
+        return 1 - Math.pow(1 - 1.0 / 0xffff, 2 * BUCKET_SIZE * load);
+    }
+
+    /** @return the false positives counted so far, per lookup that was not a true negative */
+    public double measuredFalsePositiveRate() {
+        long candidates = falsePositives + negatives;
+        return candidates == 0 ? 0 : (double) falsePositives / candidates;
+    }
+
+    /** @return the number of lookups so far */
+    public long getLookups() {
+        return lookups;
+    }
+
+    /** @return the number of lookups the filter answered on its own, with not present */
+    public long getNegatives() {
+        return negatives;
+    }
+
+    /** @return the number of lookups that passed the filter but were not in the pool */
+    public long getFalsePositives() {
+        return falsePositives;
+    }
+
+    private boolean insert(int bucket, short fingerprint) {
+        int first = bucket * BUCKET_SIZE;
+        short[] page = pages[first >>> PAGE_BITS];
+        for (int at = first & PAGE_MASK, end = at + BUCKET_SIZE; at < end; at++) {
+            if (page[at] == 0) {
+                writable(first)[at] = fingerprint;
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean delete(int bucket, short fingerprint) {
+        int first = bucket * BUCKET_SIZE;
+        short[] page = pages[first >>> PAGE_BITS];
+        for (int at = first & PAGE_MASK, end = at + BUCKET_SIZE; at < end; at++) {
+            if (page[at] == fingerprint) {
+                writable(first)[at] = 0;
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /** buckets never cross a page, a page holds a whole number of them */
+    private boolean holds(int bucket, short fingerprint) {
+        int first = bucket * BUCKET_SIZE;
+        short[] page = pages[first >>> PAGE_BITS];
+        int at = first & PAGE_MASK;
+        return page[at] == fingerprint || page[at + 1] == fingerprint
+                || page[at + 2] == fingerprint || page[at + 3] == fingerprint;
+    }
+
+    /** @return the page of slot {@code at}, owned by this filter, copied first if it is shared */
+    private short[] writable(int at) {
+        if (arraysOwner != owner) {
+            pages = pages.clone();
+            pageOwners = pageOwners.clone();
+            arraysOwner = owner;
+        }
+        int page = at >>> PAGE_BITS;
+        if (pageOwners[page] != owner) {
+            pages[page] = pages[page].clone();
+            pageOwners[page] = owner;
+        }
+        return pages[page];
+    }
+
+    /** the other bucket of {@code fingerprint}; the same function leads back, as bucket ^ f(fp) ^ f(fp) */
+    private int alternate(int bucket, short fingerprint) {
+        return (bucket ^ (fingerprint * 0x5bd1e995)) & bucketMask;
+    }
+
+    /** the top 16 bits of the hash, never 0 so that 0 can mark a free entry */
+    private static short fingerprintOf(long h) {
+        short fingerprint = (short) (h >>> 48);
+        return fingerprint == 0 ? 1 : fingerprint;
+    }
+
+    /**
+     * mixes the first 8 hash bytes with the index like {@link OffHeapUTXOStore} does, transaction hashes are
+     * SHA-256 and already random there; shorter hashes are folded in whole
+     */
+    private static long hash(byte[] txHash, int index) {
+        long h = txHash.length;
+        for (int i = 0; i < Math.min(8, txHash.length); i++)
+            h = h << 8 | (txHash[i] & 0xff);
+        h ^= index * 0x9E3779B97F4A7C15L;
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        return h;
+    }
+}
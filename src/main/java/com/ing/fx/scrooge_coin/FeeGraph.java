@@ -0,0 +1,490 @@
+package com.ing.fx.scrooge_coin;
+
+import java.security.PublicKey;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.PriorityQueue;
+import com.ing.fx.block_chain.ByteArrayWrapper;
+import com.ing.fx.block_chain.Transaction;
+
+/**
+ * The candidates of one {@link MaxFeeTxHandler#handleTxs} batch and how they depend on each other:
+ * a candidate can only be chosen together with its in-batch parents (the transactions whose outputs it
+ * spends) and never together with a candidate that claims one of the same UTXOs.
+ * Choosing the subset with the maximum total fee is a maximum weight independent set problem with
+ * precedence constraints, so it is solved exactly for small batches and heuristically for large ones.
+ *
+ * Candidates are numbered in topological order: parents always come before their children.
+ * */
+class FeeGraph {
+
+    /** candidates, in topological order */
+    final Transaction[] txs;
+    /** fee of each candidate in base units, never negative */
+    final long[] fee;
+    /** size of each candidate in bytes, for fee rates */
+    private final int[] size;
+    private final int[][] parents;
+    private final int[][] children;
+    /** candidates claiming at least one of the same UTXOs */
+    private final int[][] conflicts;
+    /** sum over the cliques of UTXO claimants of the highest fee in each clique */
+    private final long cliqueBound;
+
+    /** best subset found by {@link #branchAndBound()} */
+    private boolean[] best;
+    private long bestFee;
+    /** scratch marks for package building, valid while equal to {@link #stamp} */
+    private final int[] mark;
+    private int stamp;
+
+    /**
+     * Builds the candidates out of {@code possibleTxs}: transactions that are valid on their own, given the
+     * pool and the outputs of their in-batch parents. Invalid transactions, their descendants and
+     * transactions on a spend cycle are left out.
+     */
+    FeeGraph(Transaction[] possibleTxs, UTXOPool pool) {
+        int n = possibleTxs.length;
+        HashMap<ByteArrayWrapper, Integer> indexOfHash = new HashMap<>();
+        for (int j = 0; j < n; j++) {
+            byte[] hash = possibleTxs[j].getHash();
+            if (hash != null && !indexOfHash.containsKey(new ByteArrayWrapper(hash)))
+                indexOfHash.put(new ByteArrayWrapper(hash), j);
+        }
+
+        boolean[] valid = new boolean[n];
+        long[] txFee = new long[n];
+        List<List<Integer>> txParents = new ArrayList<>(n);
+        List<List<UTXO>> claims = new ArrayList<>(n);
+        ArrayList<Integer> sigOwner = new ArrayList<>();
+        ArrayList<PublicKey> sigKeys = new ArrayList<>();
+        ArrayList<byte[]> sigHashes = new ArrayList<>();
+        ArrayList<byte[]> sigs = new ArrayList<>();
+        for (int j = 0; j < n; j++) {
+            Transaction tx = possibleTxs[j];
+            List<Integer> ps = new ArrayList<>();
+            List<UTXO> cs = new ArrayList<>();
+            txParents.add(ps);
+            claims.add(cs);
+            byte[] hash = tx.getHash();
+            if (hash != null && indexOfHash.get(new ByteArrayWrapper(hash)) != j)
+                continue; // a second copy of the same transaction
+            valid[j] = resolve(tx, j, possibleTxs, indexOfHash, pool, ps, cs, txFee, sigOwner, sigKeys, sigHashes, sigs);
+        }
+
+        // every signature of the batch in one parallel call
+        BitSet sigValid = Crypto.verifyAllDigests(sigKeys.toArray(new PublicKey[0]),
+                sigHashes.toArray(new byte[0][]), sigs.toArray(new byte[0][]));
+        for (int s = 0; s < sigOwner.size(); s++)
+            if (!sigValid.get(s))
+                valid[sigOwner.get(s)] = false;
+
+        // topological order (Kahn, earliest first); a candidate needs all of its parents to be candidates
+        int[] pending = new int[n];
+        List<List<Integer>> txChildren = new ArrayList<>(n);
+        for (int j = 0; j < n; j++)
+            txChildren.add(new ArrayList<Integer>());
+        for (int j = 0; j < n; j++)
+            for (int p : txParents.get(j)) {
+                txChildren.get(p).add(j);
+                pending[j]++;
+            }
+        PriorityQueue<Integer> ready = new PriorityQueue<>();
+        for (int j = 0; j < n; j++)
+            if (pending[j] == 0)
+                ready.add(j);
+        int[] candidateOf = new int[n];
+        Arrays.fill(candidateOf, -1);
+        ArrayList<Integer> order = new ArrayList<>();
+        while (!ready.isEmpty()) {
+            int j = ready.poll();
+            boolean ok = valid[j];
+            for (int p : txParents.get(j))
+                ok &= candidateOf[p] >= 0;
+            if (ok) {
+                candidateOf[j] = order.size();
+                order.add(j);
+            }
+            for (int child : txChildren.get(j))
+                if (--pending[child] == 0)
+                    ready.add(child);
+        }
+
+        int m = order.size();
+        txs = new Transaction[m];
+        fee = new long[m];
+        size = new int[m];
+        parents = new int[m][];
+        children = new int[m][];
+        conflicts = new int[m][];
+        mark = new int[m];
+        HashMap<UTXO, List<Integer>> claimants = new HashMap<>();
+        for (int c = 0; c < m; c++) {
+            int j = order.get(c);
+            txs[c] = possibleTxs[j];
+            fee[c] = txFee[j];
+            size[c] = Math.max(1, possibleTxs[j].getRawTx().length);
+            parents[c] = toCandidates(txParents.get(j), candidateOf);
+            children[c] = toCandidates(txChildren.get(j), candidateOf);
+            for (UTXO utxo : claims.get(j)) {
+                List<Integer> cl = claimants.get(utxo);
+                if (cl == null) {
+                    cl = new ArrayList<>();
+                    claimants.put(utxo, cl);
+                }
+                cl.add(c);
+            }
+        }
+
+        // conflicts, and the clique cover bound: all claimants of one UTXO form a clique, at most one of them
+        // is chosen, so summing the best fee per clique over a cover of all candidates bounds any valid subset
+        HashMap<UTXO, Long> cliqueBest = new HashMap<>();
+        long singletons = 0;
+        for (int c = 0; c < m; c++) {
+            stamp++;
+            mark[c] = stamp;
+            ArrayList<Integer> others = new ArrayList<>();
+            UTXO clique = null;
+            int cliqueSize = 1;
+            for (UTXO utxo : claims.get(order.get(c))) {
+                List<Integer> cl = claimants.get(utxo);
+                for (int o : cl)
+                    if (mark[o] != stamp) {
+                        mark[o] = stamp;
+                        others.add(o);
+                    }
+                if (cl.size() > cliqueSize) {
+                    cliqueSize = cl.size();
+                    clique = utxo;
+                }
+            }
+            conflicts[c] = toArray(others);
+            if (clique == null) {
+                singletons += fee[c];
+            } else {
+                Long b = cliqueBest.get(clique);
+                if (b == null || b < fee[c])
+                    cliqueBest.put(clique, fee[c]);
+            }
+        }
+        long bound = singletons;
+        for (long b : cliqueBest.values())
+            bound += b;
+        cliqueBound = bound;
+    }
+
+    /**
+     * Looks up the outputs claimed by {@code tx} in the pool or in the batch and checks what can be checked
+     * without knowing which other transactions are chosen; queues the signature checks.
+     */
+    private static boolean resolve(Transaction tx, int j, Transaction[] possibleTxs,
+                                   HashMap<ByteArrayWrapper, Integer> indexOfHash, UTXOPool pool,
+                                   List<Integer> txParents, List<UTXO> claims, long[] txFee,
+                                   List<Integer> sigOwner, List<PublicKey> sigKeys, List<byte[]> sigHashes,
+                                   List<byte[]> sigs) {
+        long totalOutput = 0;
+        for (int o = 0; o < tx.numOutputs(); o++) {
+            double value = tx.getOutput(o).value;
+            if (value < 0)
+                return false;
+            totalOutput = CoinValue.add(totalOutput, CoinValue.toBaseUnits(value));
+        }
+        if (totalOutput == CoinValue.INVALID || TxChecks.claimsUTXOTwice(tx))
+            return false;
+        long totalInput = 0;
+        for (int i = 0; i < tx.numInputs(); i++) {
+            Transaction.Input input = tx.getInput(i);
+            if (input.prevTxHash == null || input.outputIndex < 0)
+                return false;
+            UTXO utxo = new UTXO(input.prevTxHash, input.outputIndex);
+            Transaction.Output claimed = pool.getTxOutput(utxo);
+            if (claimed == null) {
+                Integer p = indexOfHash.get(new ByteArrayWrapper(input.prevTxHash));
+                if (p == null || p == j)
+                    return false;
+                claimed = possibleTxs[p].getOutput(input.outputIndex);
+                if (claimed == null)
+                    return false;
+                if (!txParents.contains(p))
+                    txParents.add(p);
+            }
+            claims.add(utxo);
+            totalInput = CoinValue.add(totalInput, CoinValue.toBaseUnits(claimed.value));
+            sigOwner.add(j);
+            sigKeys.add(claimed.spendingKey(input));
+            sigHashes.add(tx.getSigHash(i));
+            sigs.add(input.signature);
+        }
+        if (totalInput == CoinValue.INVALID || totalOutput > totalInput)
+            return false;
+        txFee[j] = totalInput - totalOutput;
+        return true;
+    }
+
+    private static int[] toCandidates(List<Integer> txIndices, int[] candidateOf) {
+        ArrayList<Integer> candidates = new ArrayList<>();
+        for (int j : txIndices)
+            if (candidateOf[j] >= 0)
+                candidates.add(candidateOf[j]);
+        return toArray(candidates);
+    }
+
+    private static int[] toArray(List<Integer> list) {
+        int[] array = new int[list.size()];
+        for (int i = 0; i < array.length; i++)
+            array[i] = list.get(i);
+        return array;
+    }
+
+    /** @return the number of candidates */
+    int size() {
+        return txs.length;
+    }
+
+    /** @return an upper bound on the total fee of any mutually valid subset */
+    long upperBound() {
+        return cliqueBound;
+    }
+
+    /** @return the total fee of {@code chosen} */
+    long feeOf(boolean[] chosen) {
+        long total = 0;
+        for (int c = 0; c < chosen.length; c++)
+            if (chosen[c])
+                total += fee[c];
+        return total;
+    }
+
+    // ---------------------------------------------------------------- exact
+
+    /** @return a subset with the maximum total fee, found by depth first branch and bound */
+    boolean[] branchAndBound() {
+        int m = size();
+        best = new boolean[m];
+        bestFee = -1;
+        search(0, 0, new boolean[m], new int[m]);
+        return best.clone();
+    }
+
+    private void search(int k, long current, boolean[] chosen, int[] blocked) {
+        if (current + remainingBound(k, chosen, blocked) <= bestFee)
+            return;
+        if (k == size()) {
+            bestFee = current;
+            best = chosen.clone();
+            return;
+        }
+        if (blocked[k] == 0 && parentsChosen(k, chosen)) { // take k first, it finds good incumbents early
+            chosen[k] = true;
+            for (int o : conflicts[k])
+                blocked[o]++;
+            search(k + 1, current + fee[k], chosen, blocked);
+            chosen[k] = false;
+            for (int o : conflicts[k])
+                blocked[o]--;
+        }
+        search(k + 1, current, chosen, blocked);
+    }
+
+    /** fees of the undecided candidates that can still be chosen */
+    private long remainingBound(int k, boolean[] chosen, int[] blocked) {
+        long bound = 0;
+        for (int c = k; c < size(); c++) {
+            if (blocked[c] != 0)
+                continue;
+            boolean reachable = true;
+            for (int p : parents[c])
+                if (p < k && !chosen[p])
+                    reachable = false;
+            if (reachable)
+                bound += fee[c];
+        }
+        return bound;
+    }
+
+    private boolean parentsChosen(int c, boolean[] chosen) {
+        for (int p : parents[c])
+            if (!chosen[p])
+                return false;
+        return true;
+    }
+
+    // ---------------------------------------------------------------- heuristic
+
+    /**
+     * Greedy by package fee rate: a candidate is scored together with its unchosen ancestors (like
+     * child-pays-for-parent), the best package is taken, and the scores of the affected descendants are
+     * refreshed lazily.
+     */
+    boolean[] greedy() {
+        final int m = size();
+        boolean[] chosen = new boolean[m];
+        int[] blocked = new int[m];
+        PriorityQueue<double[]> heap = new PriorityQueue<>(Math.max(1, m), (a, b) -> {
+            int byScore = Double.compare(b[0], a[0]);
+            return byScore != 0 ? byScore : Double.compare(a[1], b[1]);
+        });
+        for (int c = 0; c < m; c++) {
+            double score = packageScore(c, chosen, blocked);
+            if (score >= 0)
+                heap.add(new double[]{score, c});
+        }
+        while (!heap.isEmpty()) {
+            double[] top = heap.poll();
+            int c = (int) top[1];
+            if (chosen[c])
+                continue;
+            double score = packageScore(c, chosen, blocked);
+            if (score < 0)
+                continue; // blocked for good: the greedy pass never unchooses
+            if (score != top[0]) {
+                heap.add(new double[]{score, c});
+                continue;
+            }
+            int[] pkg = packageOf(c, chosen);
+            for (int x : pkg)
+                choose(x, chosen, blocked);
+            for (int x : pkg)
+                for (int d : children[x])
+                    if (!chosen[d]) {
+                        double ds = packageScore(d, chosen, blocked);
+                        if (ds >= 0)
+                            heap.add(new double[]{ds, d});
+                    }
+        }
+        return chosen;
+    }
+
+    /**
+     * Local improvement until nothing improves or {@code deadlineNanos} passes: a package that is not chosen
+     * replaces the chosen transactions it conflicts with (and their chosen descendants) when its fee is higher.
+     */
+    void improve(boolean[] chosen, long deadlineNanos) {
+        int m = size();
+        boolean improved = true;
+        while (improved && System.nanoTime() < deadlineNanos) {
+            improved = false;
+            for (int c = 0; c < m && System.nanoTime() < deadlineNanos; c++) {
+                if (chosen[c])
+                    continue;
+                int[] pkg = packageOf(c, chosen);
+                if (!consistent(pkg))
+                    continue;
+                boolean[] evict = new boolean[m];
+                long evicted = 0;
+                for (int x : pkg)
+                    for (int o : conflicts[x])
+                        if (chosen[o] && !evict[o])
+                            evicted += evictWithDescendants(o, chosen, evict);
+                long gain = 0;
+                for (int x : pkg)
+                    gain += fee[x];
+                if (gain <= evicted)
+                    continue;
+                boolean keepsParents = true;
+                for (int x : pkg)
+                    for (int p : parents[x])
+                        if (evict[p])
+                            keepsParents = false;
+                if (!keepsParents)
+                    continue;
+                for (int x = 0; x < m; x++)
+                    if (evict[x])
+                        chosen[x] = false;
+                for (int x : pkg)
+                    chosen[x] = true;
+                fill(chosen); // evicted transactions may have unblocked others
+                improved = true;
+            }
+        }
+    }
+
+    /** Chooses, in topological order, every candidate that fits next to {@code chosen} */
+    void fill(boolean[] chosen) {
+        for (int c = 0; c < size(); c++) {
+            if (chosen[c] || !parentsChosen(c, chosen))
+                continue;
+            boolean free = true;
+            for (int o : conflicts[c])
+                if (chosen[o])
+                    free = false;
+            if (free)
+                chosen[c] = true;
+        }
+    }
+
+    private void choose(int c, boolean[] chosen, int[] blocked) {
+        chosen[c] = true;
+        for (int o : conflicts[c])
+            blocked[o]++;
+    }
+
+    /** marks {@code c} and its chosen descendants in {@code evict}, returns the fee they add up to */
+    private long evictWithDescendants(int c, boolean[] chosen, boolean[] evict) {
+        long total = 0;
+        ArrayDeque<Integer> todo = new ArrayDeque<>();
+        todo.push(c);
+        while (!todo.isEmpty()) {
+            int x = todo.pop();
+            if (evict[x] || !chosen[x])
+                continue;
+            evict[x] = true;
+            total += fee[x];
+            for (int d : children[x])
+                todo.push(d);
+        }
+        return total;
+    }
+
+    /** @return {@code c} and its unchosen ancestors, in topological order */
+    private int[] packageOf(int c, boolean[] chosen) {
+        stamp++;
+        ArrayList<Integer> pkg = new ArrayList<>();
+        ArrayDeque<Integer> todo = new ArrayDeque<>();
+        todo.push(c);
+        while (!todo.isEmpty()) {
+            int x = todo.pop();
+            if (mark[x] == stamp || chosen[x])
+                continue;
+            mark[x] = stamp;
+            pkg.add(x);
+            for (int p : parents[x])
+                todo.push(p);
+        }
+        int[] result = toArray(pkg);
+        Arrays.sort(result);
+        return result;
+    }
+
+    /** @return true if no two members of {@code pkg} conflict; leaves the members marked */
+    private boolean consistent(int[] pkg) {
+        stamp++;
+        for (int x : pkg)
+            mark[x] = stamp;
+        for (int x : pkg)
+            for (int o : conflicts[x])
+                if (mark[o] == stamp)
+                    return false;
+        return true;
+    }
+
+    /** @return the fee rate of the package of {@code c}, or -1 if it cannot be chosen */
+    private double packageScore(int c, boolean[] chosen, int[] blocked) {
+        int[] pkg = packageOf(c, chosen);
+        if (!consistent(pkg))
+            return -1;
+        long pkgFee = 0;
+        long pkgSize = 0;
+        for (int x : pkg) {
+            if (blocked[x] != 0)
+                return -1;
+            pkgFee += fee[x];
+            pkgSize += size[x];
+        }
+        return (double) pkgFee / pkgSize;
+    }
+}
@@ -0,0 +1,55 @@
+package com.ing.fx.scrooge_coin;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Spliterator;
+import java.util.function.BiConsumer;
+import com.ing.fx.block_chain.Transaction;
+
+/**
+ * The default {@link UTXOStore}: a {@code HashMap} holding the UTXO and output objects as they are given.
+ * */
+public class HashMapUTXOStore implements UTXOStore {
+
+    private final HashMap<UTXO, Transaction.Output> H;
+
+    public HashMapUTXOStore() {
+        H = new HashMap<UTXO, Transaction.Output>();
+    }
+
+    private HashMapUTXOStore(HashMap<UTXO, Transaction.Output> entries) {
+        H = new HashMap<UTXO, Transaction.Output>(entries);
+    }
+
+    public Transaction.Output get(UTXO utxo) {
+        return H.get(utxo);
+    }
+
+    public Transaction.Output put(UTXO utxo, Transaction.Output txOut) {
+        return H.put(utxo, txOut);
+    }
+
+    public Transaction.Output remove(UTXO utxo) {
+        return H.remove(utxo);
+    }
+
+    public boolean contains(UTXO utxo) {
+        return H.containsKey(utxo);
+    }
+
+    public int size() {
+        return H.size();
+    }
+
+    public UTXOStore copy() {
+        return new HashMapUTXOStore(H);
+    }
+
+    public void forEach(BiConsumer<? super UTXO, ? super Transaction.Output> action) {
+        H.forEach(action);
+    }
+
+    public Spliterator<Map.Entry<UTXO, Transaction.Output>> spliterator() {
+        return UTXOSpliterators.of(H);
+    }
+}
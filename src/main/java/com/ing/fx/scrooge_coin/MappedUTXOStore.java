@@ -0,0 +1,671 @@
+package com.ing.fx.scrooge_coin;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.KeyFactory;
+import java.security.NoSuchAlgorithmException;
+import java.security.spec.InvalidKeySpecException;
+import java.security.spec.X509EncodedKeySpec;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Spliterator;
+import java.util.function.BiConsumer;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+import java.util.zip.CRC32;
+import com.ing.fx.block_chain.Transaction;
+
+/**
+ * A {@link UTXOStore} in memory mapped files, so the UTXO set survives a restart and can be larger than
+ * the heap and even than RAM: the operating system pages the table in and out, a lookup reads the
+ * record straight from the page cache.
+ * A store is a directory holding three files:
+ * <ul>
+ *   <li>{@code utxo.dat}, a 4 KB header and then a hash table of 4 KB buckets of {@link #BUCKET_RECORDS}
+ *   records of 56 bytes, laid out like the records of {@link OffHeapUTXOStore}. A UTXO is looked up in
+ *   the bucket its hash selects, usually one page, and only overflows into the next bucket when that
+ *   one is full.</li>
+ *   <li>{@code addresses.dat}, the X.509 encoded public keys and the 32 byte address hashes of
+ *   pay-to-key-hash outputs in the order of their address ids, each after its length. No X.509 key is
+ *   32 bytes long.</li>
+ *   <li>{@code utxo.wal}, the write ahead log of puts and removes since the last checkpoint, each batch of
+ *   changes closed by a sync entry.</li>
+ * </ul>
+ * A change is appended to the log and kept in memory; lookups see it from there. {@link #sync()} forces the
+ * new addresses, then closes the batch in the log and forces it, and only then writes the batch into the
+ * mapped table. The operating system may write table pages back at any time, but by then every change in
+ * them is already durable in the log. {@link #checkpoint()} forces the table and empties the log.
+ * On open, the log is replayed over the table up to its last sync entry; a put or remove sets the final
+ * state of its UTXO whatever the table held, so replaying changes that already reached the table does no
+ * harm, and changes after the last sync entry never reached it.
+ *
+ * nek: after a crash the store holds exactly the changes up to the last sync(), so call sync() after each
+ * block and apply the blocks after the last synced one again on restart. The changes since the last sync()
+ * are held on the heap as well, a large load should sync() now and then. A store is not thread safe.
+ * */
+public class MappedUTXOStore implements UTXOStore, Closeable {
+
+    /** records per bucket, a bucket fills one 4 KB page */
+    public static final int BUCKET_RECORDS = 73;
+
+    private static final int PAGE = 4096;
+    private static final int MAGIC = 0x5554584f; // "UTXO"
+    private static final int VERSION = 1;
+    private static final int H_MAGIC = 0;
+    private static final int H_VERSION = 4;
+    private static final int H_BUCKETS = 8;
+    private static final int H_COUNT = 12;
+    private static final int H_REMOVED = 16;
+    private static final int H_CLEAN = 20;
+
+    private static final int RECORD_BYTES = 56;
+    private static final int STATE = 0;
+    private static final int INDEX = 4;
+    private static final int HASH = 8;
+    private static final int VALUE = 40;
+    private static final int ADDRESS = 48;
+    private static final int EMPTY = 0;
+    private static final int FULL = 1;
+    private static final int REMOVED = 2;
+
+    /** buckets per mapping, 256 MB */
+    private static final int CHUNK_BUCKET_BITS = 16;
+    private static final int MAX_BUCKETS = 1 << 24;
+
+    /** the length of the address hash of a pay-to-key-hash output, which no X.509 key has */
+    private static final int ADDRESS_HASH_BYTES = 32;
+
+    private static final byte WAL_PUT = 1;
+    private static final byte WAL_REMOVE = 2;
+    /** closes a batch of changes, replay stops after the last one */
+    private static final byte WAL_SYNC = 3;
+    private static final int WAL_ENTRY_BYTES = 1 + 4 + OffHeapUTXOStore.HASH_BYTES + 8 + 4 + 4;
+    /** a sync() checkpoints once the log is larger than this */
+    private static final long WAL_CHECKPOINT_BYTES = 64L << 20;
+
+    private final File directory;
+    private final AddressTable addresses = new AddressTable();
+    private final FileChannel addressChannel;
+    private final FileChannel walChannel;
+    private final ByteBuffer walBuffer = ByteBuffer.allocateDirect(WAL_ENTRY_BYTES * 1024).order(ByteOrder.nativeOrder());
+    private final CRC32 crc = new CRC32();
+    private final byte[] hashScratch = new byte[OffHeapUTXOStore.HASH_BYTES];
+    /** the changes since the last sync(), by UTXO: not in the table yet, maybe not durable in the log yet */
+    private final HashMap<UTXO, Change> pending = new HashMap<>();
+    /** the number of UTXOs the pending changes add to the table, negative if they remove more */
+    private int pendingCount;
+
+    private FileChannel tableChannel;
+    private MappedByteBuffer header;
+    private MappedByteBuffer[] chunks;
+    private int buckets;
+    private int count;
+    private int removed;
+    /** false while the table holds changes that were not checkpointed */
+    private boolean clean;
+
+    private MappedUTXOStore(File directory, int expectedSize) throws IOException {
+        this.directory = directory;
+        if (!directory.isDirectory() && !directory.mkdirs())
+            throw new IOException("cannot create " + directory);
+        addressChannel = FileChannel.open(file("addresses.dat").toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        walChannel = FileChannel.open(file("utxo.wal").toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        File table = file("utxo.dat");
+        if (table.length() == 0) {
+            mapTable(table, bucketsFor(expectedSize), true);
+        } else {
+            mapTable(table, 0, false);
+        }
+        loadAddresses();
+        recover();
+    }
+
+    /**
+     * Opens the store in {@code directory}, creating it sized for {@code expectedSize} UTXOs if it does not
+     * exist yet, and replays the log of changes that were not checkpointed.
+     */
+    public static MappedUTXOStore open(File directory, int expectedSize) throws IOException {
+        return new MappedUTXOStore(directory, expectedSize);
+    }
+
+    private File file(String name) {
+        return new File(directory, name);
+    }
+
+    private static int bucketsFor(int expectedSize) {
+        int buckets = 1;
+        while (buckets < MAX_BUCKETS && (long) buckets * BUCKET_RECORDS * 3 < expectedSize * 4L)
+            buckets <<= 1;
+        return buckets;
+    }
+
+    private void mapTable(File table, int newBuckets, boolean create) throws IOException {
+        tableChannel = FileChannel.open(table.toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        header = tableChannel.map(FileChannel.MapMode.READ_WRITE, 0, PAGE);
+        header.order(ByteOrder.nativeOrder());
+        if (create) {
+            header.putInt(H_MAGIC, MAGIC);
+            header.putInt(H_VERSION, VERSION);
+            header.putInt(H_BUCKETS, newBuckets);
+            header.putInt(H_COUNT, 0);
+            header.putInt(H_REMOVED, 0);
+            header.putInt(H_CLEAN, 1);
+        } else if (header.getInt(H_MAGIC) != MAGIC || header.getInt(H_VERSION) != VERSION) {
+            throw new IOException(table + " is not a UTXO table");
+        }
+        buckets = header.getInt(H_BUCKETS);
+        count = header.getInt(H_COUNT);
+        removed = header.getInt(H_REMOVED);
+        clean = header.getInt(H_CLEAN) == 1;
+        int chunkBuckets = Math.min(buckets, 1 << CHUNK_BUCKET_BITS);
+        chunks = new MappedByteBuffer[buckets / chunkBuckets];
+        for (int c = 0; c < chunks.length; c++) {
+            chunks[c] = tableChannel.map(FileChannel.MapMode.READ_WRITE,
+                    PAGE + (long) c * chunkBuckets * PAGE, (long) chunkBuckets * PAGE);
+            chunks[c].order(ByteOrder.nativeOrder());
+        }
+    }
+
+    private void loadAddresses() throws IOException {
+        KeyFactory keyFactory;
+        try {
+            keyFactory = KeyFactory.getInstance("RSA");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        long size = addressChannel.size();
+        ByteBuffer file = addressChannel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+        long end = 0;
+        while (file.remaining() >= 4) {
+            int length = file.getInt();
+            if (length <= 0 || length > file.remaining())
+                break; // torn tail of a crash, its keys were never synced
+            byte[] encoded = new byte[length];
+            file.get(encoded);
+            try {
+                if (length == ADDRESS_HASH_BYTES)
+                    addresses.idOf(encoded);
+                else
+                    addresses.idOf(keyFactory.generatePublic(new X509EncodedKeySpec(encoded)));
+            } catch (InvalidKeySpecException e) {
+                throw new IOException("corrupt address " + addresses.size(), e);
+            }
+            end = file.position();
+        }
+        addressChannel.truncate(end);
+        addressChannel.position(end);
+    }
+
+    /** replays the log over the table up to its last sync entry, recounts after a crash and checkpoints */
+    private void recover() throws IOException {
+        ByteBuffer entry = ByteBuffer.allocate(WAL_ENTRY_BYTES).order(ByteOrder.nativeOrder());
+        boolean crashed = !clean; // the header counts are only right for a table that was checkpointed
+        long synced = 0;
+        for (long position = 0; readLogEntry(entry, position); position += WAL_ENTRY_BYTES)
+            if (entry.get(0) == WAL_SYNC)
+                synced = position + WAL_ENTRY_BYTES;
+        for (long position = 0; position < synced; position += WAL_ENTRY_BYTES) {
+            readLogEntry(entry, position);
+            byte op = entry.get(0);
+            int index = entry.getInt(1);
+            entry.position(5);
+            entry.get(hashScratch);
+            long value = entry.getLong(5 + OffHeapUTXOStore.HASH_BYTES);
+            int address = entry.getInt(13 + OffHeapUTXOStore.HASH_BYTES);
+            if (op == WAL_PUT)
+                putRecord(hashScratch, index, value, address);
+            else if (op == WAL_REMOVE)
+                removeRecord(hashScratch, index);
+        }
+        if (crashed)
+            recount();
+        checkpoint();
+    }
+
+    /** @return true if {@code entry} now holds the complete log entry at {@code position}, false at a torn tail */
+    private boolean readLogEntry(ByteBuffer entry, long position) throws IOException {
+        entry.clear();
+        if (walChannel.read(entry, position) != WAL_ENTRY_BYTES)
+            return false;
+        entry.flip();
+        crc.reset();
+        crc.update(entry.array(), 0, WAL_ENTRY_BYTES - 4);
+        return (int) crc.getValue() == entry.getInt(WAL_ENTRY_BYTES - 4);
+    }
+
+    private void recount() {
+        count = 0;
+        removed = 0;
+        long slots = (long) buckets * BUCKET_RECORDS;
+        for (long slot = 0; slot < slots; slot++) {
+            int state = chunkOf(slot).getInt(offsetOf(slot) + STATE);
+            if (state == FULL)
+                count++;
+            else if (state == REMOVED)
+                removed++;
+        }
+    }
+
+    /** a UTXO whose hash is not 32 bytes is not in the store, like any other missing one */
+    public Transaction.Output get(UTXO utxo) {
+        byte[] hash = utxo.getTxHash();
+        if (hash.length != OffHeapUTXOStore.HASH_BYTES)
+            return null;
+        Change change = pending.isEmpty() ? null : pending.get(utxo);
+        if (change != null)
+            return change == Change.REMOVED ? null : outputOf(change.address, change.value);
+        long slot = find(hash, utxo.getIndex());
+        return slot < 0 ? null : outputAt(slot);
+    }
+
+    public boolean contains(UTXO utxo) {
+        byte[] hash = utxo.getTxHash();
+        if (hash.length != OffHeapUTXOStore.HASH_BYTES)
+            return false;
+        Change change = pending.isEmpty() ? null : pending.get(utxo);
+        if (change != null)
+            return change != Change.REMOVED;
+        return find(hash, utxo.getIndex()) >= 0;
+    }
+
+    /**
+     * @throws IllegalArgumentException if the hash of {@code utxo} is not 32 bytes or {@code txOut} has no
+     *         address, a record and the address file have no room for either
+     */
+    public Transaction.Output put(UTXO utxo, Transaction.Output txOut) {
+        checkedHash(utxo);
+        Transaction.Output previous = get(utxo);
+        int address = addressIdOf(txOut);
+        long value = Double.doubleToRawLongBits(txOut.value);
+        log(WAL_PUT, utxo.getTxHash(), utxo.getIndex(), value, address);
+        pending.put(new UTXO(utxo.getTxHash(), utxo.getIndex()), new Change(value, address));
+        if (previous == null)
+            pendingCount++;
+        return previous;
+    }
+
+    public Transaction.Output remove(UTXO utxo) {
+        Transaction.Output previous = get(utxo);
+        if (previous == null)
+            return null;
+        log(WAL_REMOVE, utxo.getTxHash(), utxo.getIndex(), 0, 0);
+        pending.put(new UTXO(utxo.getTxHash(), utxo.getIndex()), Change.REMOVED);
+        pendingCount--;
+        return previous;
+    }
+
+    public int size() {
+        return count + pendingCount;
+    }
+
+    /**
+     * @return an in-memory {@link OffHeapUTXOStore} with the entries of this store; copying a store that
+     *         does not fit in memory fails, validate on the mapped pool itself with {@link TxHandler#inPlace}
+     */
+    public UTXOStore copy() {
+        final OffHeapUTXOStore copy = new OffHeapUTXOStore(size());
+        forEach(new BiConsumer<UTXO, Transaction.Output>() {
+            public void accept(UTXO utxo, Transaction.Output txOut) {
+                copy.put(utxo, txOut);
+            }
+        });
+        return copy;
+    }
+
+    public void forEach(BiConsumer<? super UTXO, ? super Transaction.Output> action) {
+        long slots = (long) buckets * BUCKET_RECORDS;
+        for (long slot = 0; slot < slots; slot++) {
+            ByteBuffer chunk = chunkOf(slot);
+            int at = offsetOf(slot);
+            if (chunk.getInt(at + STATE) != FULL)
+                continue;
+            UTXO utxo = utxoAt(slot);
+            if (!pending.containsKey(utxo))
+                action.accept(utxo, outputAt(slot));
+        }
+        for (Map.Entry<UTXO, Change> change: pending.entrySet())
+            if (change.getValue() != Change.REMOVED)
+                action.accept(change.getKey(), outputOf(change.getValue().address, change.getValue().value));
+    }
+
+    /**
+     * @return a spliterator over the table as it is, followed by the changes since the last sync(); the store
+     *         must not change while it is in use
+     */
+    public Spliterator<Map.Entry<UTXO, Transaction.Output>> spliterator() {
+        Slots table = new Slots(0, (long) buckets * BUCKET_RECORDS);
+        if (pending.isEmpty())
+            return table;
+        ArrayList<Map.Entry<UTXO, Transaction.Output>> added = new ArrayList<>();
+        for (Map.Entry<UTXO, Change> change: pending.entrySet())
+            if (change.getValue() != Change.REMOVED)
+                added.add(new AbstractMap.SimpleImmutableEntry<>(change.getKey(),
+                        outputOf(change.getValue().address, change.getValue().value)));
+        return Stream.concat(StreamSupport.stream(table, false), added.stream()).spliterator();
+    }
+
+    private final class Slots extends UTXOSpliterators.Slots {
+        Slots(long from, long to) {
+            super(from, to, (double) count / ((long) buckets * BUCKET_RECORDS));
+        }
+
+        Map.Entry<UTXO, Transaction.Output> entryAt(long slot) {
+            if (chunkOf(slot).getInt(offsetOf(slot) + STATE) != FULL)
+                return null;
+            UTXO utxo = utxoAt(slot);
+            if (!pending.isEmpty() && pending.containsKey(utxo))
+                return null; // changed since the last sync(), the pending change has it
+            return new AbstractMap.SimpleImmutableEntry<>(utxo, outputAt(slot));
+        }
+
+        UTXOSpliterators.Slots range(long from, long to) {
+            return new Slots(from, to);
+        }
+    }
+
+    /**
+     * Makes every change so far durable: forces the new addresses, closes the batch in the log and forces it,
+     * then writes the changes into the table
+     */
+    public void sync() throws IOException {
+        commit();
+        if (walChannel.size() > WAL_CHECKPOINT_BYTES)
+            checkpoint();
+    }
+
+    /** the addresses before the sync entry, the sync entry before the table: each write only refers to durable data */
+    private void commit() throws IOException {
+        if (pending.isEmpty())
+            return;
+        addressChannel.force(false);
+        log(WAL_SYNC, hashScratch, 0, 0, 0);
+        flushLog();
+        walChannel.force(false);
+        for (Map.Entry<UTXO, Change> change: pending.entrySet()) {
+            UTXO utxo = change.getKey();
+            if (change.getValue() == Change.REMOVED)
+                removeRecord(utxo.getTxHash(), utxo.getIndex());
+            else
+                putRecord(utxo.getTxHash(), utxo.getIndex(), change.getValue().value, change.getValue().address);
+        }
+        pending.clear();
+        pendingCount = 0;
+    }
+
+    /** Syncs, forces the table to disk and empties the log, a restart then has nothing to replay */
+    public void checkpoint() throws IOException {
+        commit();
+        header.putInt(H_COUNT, count);
+        header.putInt(H_REMOVED, removed);
+        for (MappedByteBuffer chunk: chunks)
+            chunk.force();
+        header.putInt(H_CLEAN, 1);
+        header.force();
+        clean = true;
+        walChannel.truncate(0);
+        walChannel.force(false);
+    }
+
+    /** Checkpoints and closes the files */
+    public void close() throws IOException {
+        checkpoint();
+        addressChannel.close();
+        walChannel.close();
+        tableChannel.close();
+    }
+
+    private static byte[] checkedHash(UTXO utxo) {
+        byte[] hash = utxo.getTxHash();
+        if (hash.length != OffHeapUTXOStore.HASH_BYTES)
+            throw new IllegalArgumentException("a mapped store only holds " + OffHeapUTXOStore.HASH_BYTES
+                    + " byte transaction hashes");
+        return hash;
+    }
+
+    private static byte[] checkedAddressHash(byte[] addressHash) {
+        if (addressHash.length != ADDRESS_HASH_BYTES)
+            throw new IllegalArgumentException("a mapped store only holds " + ADDRESS_HASH_BYTES
+                    + " byte address hashes");
+        return addressHash;
+    }
+
+    /** checks the address before it is numbered, so that the table never holds an id the file does not */
+    private int addressIdOf(Transaction.Output txOut) {
+        if (txOut.addressHash != null)
+            checkedAddressHash(txOut.addressHash);
+        else if (txOut.address == null)
+            throw new IllegalArgumentException("a mapped store only holds outputs with an address");
+        int known = addresses.size();
+        int id = addresses.idOf(txOut);
+        if (id == known) {
+            byte[] encoded = txOut.addressHash != null ? txOut.addressHash : txOut.address.getEncoded();
+            ByteBuffer entry = ByteBuffer.allocate(4 + encoded.length);
+            entry.putInt(encoded.length).put(encoded).flip();
+            try {
+                while (entry.hasRemaining())
+                    addressChannel.write(entry);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+        return id;
+    }
+
+    private void log(byte op, byte[] hash, int index, long value, int address) {
+        if (walBuffer.remaining() < WAL_ENTRY_BYTES)
+            flushLog();
+        int start = walBuffer.position();
+        walBuffer.put(op).putInt(index).put(hash).putLong(value).putInt(address);
+        crc.reset();
+        for (int i = start; i < walBuffer.position(); i++)
+            crc.update(walBuffer.get(i));
+        walBuffer.putInt((int) crc.getValue());
+    }
+
+    private void flushLog() {
+        walBuffer.flip();
+        try {
+            while (walBuffer.hasRemaining())
+                walChannel.write(walBuffer, walChannel.size());
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } finally {
+            walBuffer.clear();
+        }
+    }
+
+    private void markDirty() {
+        if (clean) {
+            header.putInt(H_CLEAN, 0);
+            header.force(); // a crash from now on makes the next open recount
+            clean = false;
+        }
+    }
+
+    private void putRecord(byte[] hash, int index, long value, int address) {
+        markDirty();
+        long slot = find(hash, index);
+        if (slot < 0) {
+            if ((count + removed + 1) * 4L > (long) buckets * BUCKET_RECORDS * 3L) {
+                grow();
+                slot = find(hash, index);
+            }
+            slot = -slot - 1;
+            ByteBuffer chunk = chunkOf(slot);
+            int at = offsetOf(slot);
+            if (chunk.getInt(at + STATE) == REMOVED)
+                removed--;
+            chunk.putInt(at + INDEX, index);
+            for (int i = 0; i < hash.length; i++)
+                chunk.put(at + HASH + i, hash[i]);
+            count++;
+        }
+        ByteBuffer chunk = chunkOf(slot);
+        int at = offsetOf(slot);
+        chunk.putLong(at + VALUE, value);
+        chunk.putInt(at + ADDRESS, address);
+        chunk.putInt(at + STATE, FULL); // last, the record is complete when it becomes visible
+    }
+
+    private void removeRecord(byte[] hash, int index) {
+        markDirty();
+        long slot = find(hash, index);
+        if (slot < 0)
+            return;
+        chunkOf(slot).putInt(offsetOf(slot) + STATE, REMOVED);
+        count--;
+        removed++;
+    }
+
+    /** @return the slot of the UTXO if it is in the table, otherwise -(slot + 1) of the slot to insert it */
+    private long find(byte[] hash, int index) {
+        long mask = buckets - 1;
+        long free = -1;
+        long bucket = spread(hash, index) & mask;
+        while (true) {
+            ByteBuffer chunk = chunks[(int) (bucket >>> CHUNK_BUCKET_BITS)];
+            int bucketAt = (int) (bucket & ((1 << CHUNK_BUCKET_BITS) - 1)) * PAGE;
+            for (int r = 0; r < BUCKET_RECORDS; r++) {
+                int at = bucketAt + r * RECORD_BYTES;
+                int state = chunk.getInt(at + STATE);
+                long slot = bucket * BUCKET_RECORDS + r;
+                if (state == EMPTY)
+                    return -(free < 0 ? slot : free) - 1;
+                if (state == REMOVED) {
+                    if (free < 0)
+                        free = slot;
+                } else if (chunk.getInt(at + INDEX) == index && hashEquals(chunk, at + HASH, hash)) {
+                    return slot;
+                }
+            }
+            bucket = (bucket + 1) & mask; // the bucket is full, overflow into the next one
+        }
+    }
+
+    private static boolean hashEquals(ByteBuffer chunk, int at, byte[] hash) {
+        for (int i = 0; i < hash.length; i++)
+            if (chunk.get(at + i) != hash[i])
+                return false;
+        return true;
+    }
+
+    /**
+     * Rebuilds the table into a new file twice as large (or as large, if removed records fill it), forces
+     * it and moves it over the old one.
+     */
+    private void grow() {
+        int newBuckets = removed > count ? buckets : Math.min(MAX_BUCKETS, buckets << 1);
+        if ((count + 1) * 4L > (long) newBuckets * BUCKET_RECORDS * 3L)
+            throw new IllegalStateException("UTXO table is full at " + count + " records");
+        File grown = file("utxo.dat.grow");
+        try {
+            grown.delete();
+            MappedUTXOStore target = new MappedUTXOStore(this, grown, newBuckets);
+            long slots = (long) buckets * BUCKET_RECORDS;
+            byte[] hash = new byte[OffHeapUTXOStore.HASH_BYTES];
+            for (long slot = 0; slot < slots; slot++) {
+                ByteBuffer chunk = chunkOf(slot);
+                int at = offsetOf(slot);
+                if (chunk.getInt(at + STATE) != FULL)
+                    continue;
+                for (int i = 0; i < hash.length; i++)
+                    hash[i] = chunk.get(at + HASH + i);
+                target.putRecord(hash, chunk.getInt(at + INDEX), chunk.getLong(at + VALUE), chunk.getInt(at + ADDRESS));
+            }
+            target.header.putInt(H_COUNT, target.count);
+            target.header.putInt(H_REMOVED, 0);
+            for (MappedByteBuffer chunk: target.chunks)
+                chunk.force();
+            target.header.putInt(H_CLEAN, 1);
+            target.header.force();
+            tableChannel.close();
+            Files.move(grown.toPath(), file("utxo.dat").toPath(),
+                    StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            tableChannel = target.tableChannel;
+            header = target.header;
+            chunks = target.chunks;
+            buckets = target.buckets;
+            count = target.count;
+            removed = 0;
+            clean = true;
+            markDirty(); // the log is kept, the rest of the batch being applied or replayed is only there
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /** a bare table in {@code table} to rebuild {@code source} into, sharing its address ids */
+    private MappedUTXOStore(MappedUTXOStore source, File table, int newBuckets) throws IOException {
+        directory = source.directory;
+        addressChannel = source.addressChannel;
+        walChannel = source.walChannel;
+        mapTable(table, newBuckets, true);
+    }
+
+    private UTXO utxoAt(long slot) {
+        ByteBuffer chunk = chunkOf(slot);
+        int at = offsetOf(slot);
+        byte[] hash = new byte[OffHeapUTXOStore.HASH_BYTES];
+        for (int i = 0; i < hash.length; i++)
+            hash[i] = chunk.get(at + HASH + i);
+        return new UTXO(hash, chunk.getInt(at + INDEX));
+    }
+
+    private Transaction.Output outputAt(long slot) {
+        ByteBuffer chunk = chunkOf(slot);
+        int at = offsetOf(slot);
+        return outputOf(chunk.getInt(at + ADDRESS), chunk.getLong(at + VALUE));
+    }
+
+    private Transaction.Output outputOf(int address, long value) {
+        return addresses.outputOf(address, Double.longBitsToDouble(value));
+    }
+
+    private ByteBuffer chunkOf(long slot) {
+        return chunks[(int) (slot / BUCKET_RECORDS >>> CHUNK_BUCKET_BITS)];
+    }
+
+    private static int offsetOf(long slot) {
+        long bucket = slot / BUCKET_RECORDS;
+        int record = (int) (slot - bucket * BUCKET_RECORDS);
+        return (int) (bucket & ((1 << CHUNK_BUCKET_BITS) - 1)) * PAGE + record * RECORD_BYTES;
+    }
+
+    private static long spread(byte[] hash, int index) {
+        long h = 0;
+        for (int i = 0; i < 8; i++)
+            h = h << 8 | (hash[i] & 0xff);
+        h ^= index * 0x9E3779B97F4A7C15L;
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    /** a put or remove since the last sync(), as it goes into the table */
+    private static final class Change {
+        static final Change REMOVED = new Change(0, -1);
+
+        final long value;
+        final int address;
+
+        Change(long value, int address) {
+            this.value = value;
+            this.address = address;
+        }
+    }
+}
@@ -4,10 +4,8 @@ package com.ing.fx.scrooge_coin;
  * Created by m05b372 on 30-5-2017.
  */
 
-import com.ing.fx.block_chain.*;
 import com.ing.fx.block_chain.Transaction;
 
-import java.math.BigDecimal;
 import java.util.ArrayList;
 
 /**
@@ -16,58 +14,127 @@ import java.util.ArrayList;
  * i.e. maximize the sum over all transactions in the set of (sum of input values - sum of output values)).
  * */
 public class MaxFeeTxHandler {
+    /** batches with at most this many candidate transactions are solved exactly by branch and bound */
+    public static final int EXACT_LIMIT = 20;
+    /** time the heuristic for larger batches may spend on local improvement by default */
+    public static final long DEFAULT_TIME_BUDGET_MILLIS = 200;
+
     private UTXOPool currentUTXOPool;
+    private final long timeBudgetMillis;
+    private double lastFee;
+    private double lastFeeUpperBound;
+    private boolean lastExact;
+
     public MaxFeeTxHandler(UTXOPool utxoPool) {
         // IMPLEMENT THIS
-        currentUTXOPool = new UTXOPool(utxoPool);
+        this(utxoPool, DEFAULT_TIME_BUDGET_MILLIS);
     }
 
-    public boolean isValidTx(com.ing.fx.block_chain.Transaction tx) {
-        BigDecimal totalOutput = new BigDecimal(0);
-        for (Transaction.Output output: tx.getOutputs()) {
-            if (output.value < 0) return false; //(4)
-            else totalOutput = totalOutput.add(new BigDecimal(output.value));
-        }
-        BigDecimal totalInput = new BigDecimal(0);
-        ArrayList<Transaction.Output> claimedUTXOs = new ArrayList<>();
-        int i = 0;
-        for (Transaction.Input input: tx.getInputs()) {
-            UTXO utxo = new UTXO(input.prevTxHash, input.outputIndex); //reconstructing corresponding output from previous trx
-            if (utxo==null) return false;
-            else {
-                if (currentUTXOPool.getTxOutput(utxo)==null) //(1)
-                    return false;
-                else {
-                    Transaction.Output claimedOutput = currentUTXOPool.getTxOutput(utxo);
-                    if (claimedUTXOs.contains(claimedOutput)) //(3)
-                        return false;
-                    else {
-                        claimedUTXOs.add(claimedOutput);
-                    }
-                    totalInput = totalInput.add(new BigDecimal(claimedOutput.value));
-                    if (!Crypto.verifySignature(claimedOutput.address, tx.getRawDataToSign(i), input.signature)) return false; //(2) verify(pk, trx, sig)
-                }
-            }
-            i++;
+    /**
+     * @param timeBudgetMillis how long {@link #handleTxs} may improve the greedy selection of a batch with more
+     *                         than {@link #EXACT_LIMIT} candidates
+     */
+    public MaxFeeTxHandler(UTXOPool utxoPool, long timeBudgetMillis) {
+        this(utxoPool, timeBudgetMillis, true);
+    }
+
+    private MaxFeeTxHandler(UTXOPool utxoPool, long timeBudgetMillis, boolean copy) {
+        currentUTXOPool = copy ? new UTXOPool(utxoPool) : utxoPool;
+        this.timeBudgetMillis = timeBudgetMillis;
+    }
+
+    /**
+     * Creates a handler that works directly on {@code utxoPool} instead of a copy, like
+     * {@link TxHandler#inPlace(UTXOPool)}.
+     */
+    public static MaxFeeTxHandler inPlace(UTXOPool utxoPool) {
+        return new MaxFeeTxHandler(utxoPool, DEFAULT_TIME_BUDGET_MILLIS, false);
+    }
+
+    public boolean isValidTx(Transaction tx) {
+        ArrayList<Transaction.Output> outputs = tx.getOutputs();
+        long totalOutput = 0;
+        for (int o = 0; o < outputs.size(); o++) {
+            double value = outputs.get(o).value;
+            if (value < 0) return false; //(4)
+            totalOutput = CoinValue.add(totalOutput, CoinValue.toBaseUnits(value));
         }
+        if (totalOutput == CoinValue.INVALID) return false;
+        if (TxChecks.claimsUTXOTwice(tx)) return false; //(3)
 
-        if (totalOutput.compareTo(totalInput) == 1) return false; //(5)
+        ArrayList<Transaction.Input> inputs = tx.getInputs();
+        long totalInput = 0;
+        for (int i = 0; i < inputs.size(); i++) {
+            Transaction.Input input = inputs.get(i);
+            //corresponding output from previous trx, probed without building a UTXO
+            Transaction.Output claimedOutput = currentUTXOPool.getTxOutput(input.prevTxHash, input.outputIndex);
+            if (claimedOutput == null) return false; //(1)
+            totalInput = CoinValue.add(totalInput, CoinValue.toBaseUnits(claimedOutput.value));
+            if (!Crypto.verifyDigest(claimedOutput.spendingKey(input), tx.getSigHash(i), input.signature)) return false; //(2) verify(pk, trx, sig)
+        }
+        if (totalInput == CoinValue.INVALID) return false;
 
-        return true; //Test 1: test isValidTx() with valid transactions
+        return totalOutput <= totalInput; //(5)
     }
 
-    public com.ing.fx.block_chain.Transaction[] handleTxs(com.ing.fx.block_chain.Transaction[] possibleTxs) {
+    /**
+     * Chooses the mutually valid subset of {@code possibleTxs} with the maximum total fee, applies it to the
+     * UTXO pool and returns it in the order it was applied. Transactions may spend outputs of other
+     * transactions in the batch, in any array order.
+     *
+     * Up to {@link #EXACT_LIMIT} candidates the subset is optimal (branch and bound). Beyond that it is a
+     * fee rate greedy with local improvement, bounded by the time budget; {@link #getLastFee()} and
+     * {@link #getLastFeeUpperBound()} then tell how far from optimal it can be.
+     * Transactions without fee that still fit are added as well, so the result is maximal.
+     */
+    public Transaction[] handleTxs(Transaction[] possibleTxs) {
         // IMPLEMENT THIS
-        com.ing.fx.block_chain.Transaction[] result = new Transaction[possibleTxs.length];
-        int k=0;
-        for (int j=0; j<possibleTxs.length; j++) {
-            if (isValidTx(possibleTxs[j])) {
-                result[k] = possibleTxs[j];
-                k++;
-                updateCurrentUTXOPool(possibleTxs[j]);
+        FeeGraph graph = new FeeGraph(possibleTxs, currentUTXOPool);
+        boolean[] chosen;
+        long bound;
+        if (graph.size() <= EXACT_LIMIT) {
+            chosen = graph.branchAndBound();
+            bound = graph.feeOf(chosen);
+            lastExact = true;
+        } else {
+            long deadline = System.nanoTime() + timeBudgetMillis * 1000000L;
+            chosen = graph.greedy();
+            graph.improve(chosen, deadline);
+            bound = graph.upperBound();
+            lastExact = false;
+        }
+        graph.fill(chosen);
+
+        ArrayList<Transaction> accepted = new ArrayList<>();
+        long fee = 0;
+        for (int c = 0; c < graph.size(); c++) { // topological order, parents are applied first
+            if (chosen[c] && isValidTx(graph.txs[c])) { // signatures are cached by now, this is cheap
+                accepted.add(graph.txs[c]);
+                fee += graph.fee[c];
+                updateCurrentUTXOPool(graph.txs[c]);
             }
         }
-        return result;
+        lastFee = CoinValue.toCoins(fee);
+        lastFeeUpperBound = CoinValue.toCoins(Math.max(fee, bound));
+        return accepted.toArray(new Transaction[0]);
+    }
+
+    /** @return the total fee of the transactions accepted by the last {@link #handleTxs} call */
+    public double getLastFee() {
+        return lastFee;
+    }
+
+    /**
+     * @return an upper bound on the total fee the last {@link #handleTxs} call could have achieved; equal to
+     *         {@link #getLastFee()} when the selection was exact
+     */
+    public double getLastFeeUpperBound() {
+        return lastFeeUpperBound;
+    }
+
+    /** @return true if the last {@link #handleTxs} call found a selection with the maximum fee */
+    public boolean isLastSelectionExact() {
+        return lastExact;
     }
 
     private void updateCurrentUTXOPool(Transaction validTx) {
@@ -75,13 +142,10 @@ public class MaxFeeTxHandler {
         for (Transaction.Output output: validTx.getOutputs()) {
             UTXO newUTXO = new UTXO(validTx.getHash(), m);
             this.currentUTXOPool.addUTXO(newUTXO, output);
+            m++;
         }
         for (Transaction.Input input: validTx.getInputs()) {
-            UTXO textUTXO = new UTXO(input.prevTxHash, input.outputIndex);
-            for (UTXO utxo: this.currentUTXOPool.getAllUTXO()){
-                if (utxo.compareTo(textUTXO)==0)
-                    this.currentUTXOPool.removeUTXO(utxo);
-            }
+            this.currentUTXOPool.removeUTXO(input.prevTxHash, input.outputIndex); // a lookup, not a scan of the pool
         }
     }
 }
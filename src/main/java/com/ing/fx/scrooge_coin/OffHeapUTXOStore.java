@@ -0,0 +1,336 @@
+package com.ing.fx.scrooge_coin;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.AbstractMap;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Spliterator;
+import java.util.function.BiConsumer;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+import com.ing.fx.block_chain.Transaction;
+
+/**
+ * A {@link UTXOStore} that keeps its entries outside of the Java heap, as fixed width records in an
+ * open addressing hash table spread over direct {@link ByteBuffer}s:
+ * <pre>
+ *   state (4) | output index (4) | tx hash (32) | value (8) | address id (4) | padding (4)  = 56 bytes
+ * </pre>
+ * A UTXO costs one 56 byte record instead of a UTXO, a hash array, a map node and an output object on the
+ * heap, and the garbage collector never has to trace the pool, so GC pauses do not grow with it.
+ * Addresses are numbered by an {@link AddressTable}, each public key stays on the heap once.
+ * Outputs are rebuilt from their record on every {@link #get}, so they are equal to, not the same as, the
+ * outputs that were put.
+ *
+ * nek: transaction hashes are SHA-256, so the first 8 bytes of the hash are already a good hash code.
+ * UTXOs whose hash is not 32 bytes long do not fit a record and are kept in a small heap map instead.
+ * Collisions are resolved by linear probing, removed records are marked and reused by later puts.
+ * */
+public class OffHeapUTXOStore implements UTXOStore {
+
+    /** length of the transaction hashes kept in records */
+    public static final int HASH_BYTES = 32;
+
+    private static final int RECORD_BYTES = 56;
+    private static final int STATE = 0;
+    private static final int INDEX = 4;
+    private static final int HASH = 8;
+    private static final int VALUE = 40;
+    private static final int ADDRESS = 48;
+
+    private static final int EMPTY = 0;
+    private static final int FULL = 1;
+    private static final int REMOVED = 2;
+
+    /** records per buffer, 3.5 MB */
+    private static final int CHUNK_BITS = 16;
+    private static final int CHUNK_SLOTS = 1 << CHUNK_BITS;
+    private static final int MAX_CAPACITY = 1 << 30;
+
+    private final AddressTable addresses;
+    private final HashMap<UTXO, Transaction.Output> others;
+    private ByteBuffer[] chunks;
+    private int capacity;
+    private int count;
+    private int removed;
+
+    /** Creates an empty store */
+    public OffHeapUTXOStore() {
+        this(1024);
+    }
+
+    /** Creates an empty store sized for {@code expectedSize} UTXOs, so that filling it does not rehash */
+    public OffHeapUTXOStore(int expectedSize) {
+        this(new AddressTable(), new HashMap<UTXO, Transaction.Output>(), tableCapacity(expectedSize));
+    }
+
+    private OffHeapUTXOStore(AddressTable addresses, HashMap<UTXO, Transaction.Output> others, int capacity) {
+        this.addresses = addresses;
+        this.others = others;
+        this.capacity = capacity;
+        this.chunks = allocate(capacity);
+    }
+
+    private static int tableCapacity(int expectedSize) {
+        int capacity = 16;
+        while (capacity < MAX_CAPACITY && capacity * 3L < expectedSize * 4L)
+            capacity <<= 1;
+        return capacity;
+    }
+
+    private static ByteBuffer[] allocate(int capacity) {
+        int chunkSlots = Math.min(capacity, CHUNK_SLOTS);
+        ByteBuffer[] chunks = new ByteBuffer[capacity / chunkSlots];
+        for (int c = 0; c < chunks.length; c++)
+            chunks[c] = ByteBuffer.allocateDirect(chunkSlots * RECORD_BYTES).order(ByteOrder.nativeOrder());
+        return chunks;
+    }
+
+    public Transaction.Output get(UTXO utxo) {
+        byte[] hash = utxo.getTxHash();
+        if (hash.length != HASH_BYTES)
+            return others.get(utxo);
+        int slot = find(hash, utxo.getIndex());
+        return slot < 0 ? null : outputAt(slot);
+    }
+
+    public boolean contains(UTXO utxo) {
+        byte[] hash = utxo.getTxHash();
+        if (hash.length != HASH_BYTES)
+            return others.containsKey(utxo);
+        return find(hash, utxo.getIndex()) >= 0;
+    }
+
+    public Transaction.Output get(byte[] txHash, int index) {
+        if (txHash.length != HASH_BYTES)
+            return others.get(new UTXO(txHash, index));
+        int slot = find(txHash, index);
+        return slot < 0 ? null : outputAt(slot);
+    }
+
+    public boolean contains(byte[] txHash, int index) {
+        if (txHash.length != HASH_BYTES)
+            return others.containsKey(new UTXO(txHash, index));
+        return find(txHash, index) >= 0;
+    }
+
+    public Transaction.Output remove(byte[] txHash, int index) {
+        if (txHash.length != HASH_BYTES)
+            return others.remove(new UTXO(txHash, index));
+        int slot = find(txHash, index);
+        if (slot < 0)
+            return null;
+        Transaction.Output previous = outputAt(slot);
+        chunkOf(slot).putInt(offsetOf(slot) + STATE, REMOVED);
+        count--;
+        removed++;
+        return previous;
+    }
+
+    public Transaction.Output put(UTXO utxo, Transaction.Output txOut) {
+        byte[] hash = utxo.getTxHash();
+        if (hash.length != HASH_BYTES)
+            return others.put(utxo, txOut);
+        int index = utxo.getIndex();
+        int slot = find(hash, index);
+        if (slot >= 0) {
+            Transaction.Output previous = outputAt(slot);
+            writeOutput(slot, txOut);
+            return previous;
+        }
+        if ((count + removed + 1) * 4L > capacity * 3L) {
+            rehash();
+            slot = find(hash, index);
+        }
+        slot = -slot - 1;
+        ByteBuffer chunk = chunkOf(slot);
+        int at = offsetOf(slot);
+        if (chunk.getInt(at + STATE) == REMOVED)
+            removed--;
+        chunk.putInt(at + STATE, FULL);
+        chunk.putInt(at + INDEX, index);
+        for (int i = 0; i < 4; i++)
+            chunk.putLong(at + HASH + 8 * i, longAt(hash, 8 * i));
+        writeOutput(slot, txOut);
+        count++;
+        return null;
+    }
+
+    public Transaction.Output remove(UTXO utxo) {
+        byte[] hash = utxo.getTxHash();
+        if (hash.length != HASH_BYTES)
+            return others.remove(utxo);
+        return remove(hash, utxo.getIndex());
+    }
+
+    public int size() {
+        return count + others.size();
+    }
+
+    /** @return a copy of the buffers, the copy shares the address table with this store */
+    public UTXOStore copy() {
+        OffHeapUTXOStore copy = new OffHeapUTXOStore(addresses, new HashMap<>(others), capacity);
+        for (int c = 0; c < chunks.length; c++) {
+            ByteBuffer source = chunks[c].duplicate();
+            source.clear();
+            copy.chunks[c].put(source);
+            copy.chunks[c].clear();
+        }
+        copy.count = count;
+        copy.removed = removed;
+        return copy;
+    }
+
+    public void forEach(BiConsumer<? super UTXO, ? super Transaction.Output> action) {
+        for (int slot = 0; slot < capacity; slot++) {
+            ByteBuffer chunk = chunkOf(slot);
+            int at = offsetOf(slot);
+            if (chunk.getInt(at + STATE) == FULL)
+                action.accept(utxoAt(slot), outputAt(slot));
+        }
+        others.forEach(action);
+    }
+
+    public Spliterator<Map.Entry<UTXO, Transaction.Output>> spliterator() {
+        Spliterator<Map.Entry<UTXO, Transaction.Output>> slots = new Slots(0, capacity);
+        if (others.isEmpty())
+            return slots;
+        return Stream.concat(StreamSupport.stream(slots, false),
+                StreamSupport.stream(UTXOSpliterators.of(others), false)).spliterator();
+    }
+
+    private final class Slots extends UTXOSpliterators.Slots {
+        Slots(long from, long to) {
+            super(from, to, (double) count / capacity);
+        }
+
+        Map.Entry<UTXO, Transaction.Output> entryAt(long slot) {
+            int s = (int) slot;
+            if (chunkOf(s).getInt(offsetOf(s) + STATE) != FULL)
+                return null;
+            return new AbstractMap.SimpleImmutableEntry<>(utxoAt(s), outputAt(s));
+        }
+
+        UTXOSpliterators.Slots range(long from, long to) {
+            return new Slots(from, to);
+        }
+    }
+
+    /** @return the bytes of direct memory held by the table */
+    public long offHeapBytes() {
+        return (long) capacity * RECORD_BYTES;
+    }
+
+    /** @return the number of distinct addresses of the outputs put into this store and its copies */
+    public int addressCount() {
+        return addresses.size();
+    }
+
+    /**
+     * @return the slot of ({@code hash}, {@code index}) if it is in the table, otherwise -(slot + 1) of the
+     *         slot where it should be inserted
+     */
+    private int find(byte[] hash, int index) {
+        long h0 = longAt(hash, 0);
+        int mask = capacity - 1;
+        int free = -1;
+        for (int slot = spread(h0, index) & mask; ; slot = (slot + 1) & mask) {
+            ByteBuffer chunk = chunkOf(slot);
+            int at = offsetOf(slot);
+            int state = chunk.getInt(at + STATE);
+            if (state == EMPTY)
+                return -(free < 0 ? slot : free) - 1;
+            if (state == REMOVED) {
+                if (free < 0)
+                    free = slot;
+            } else if (chunk.getInt(at + INDEX) == index
+                    && chunk.getLong(at + HASH) == h0
+                    && chunk.getLong(at + HASH + 8) == longAt(hash, 8)
+                    && chunk.getLong(at + HASH + 16) == longAt(hash, 16)
+                    && chunk.getLong(at + HASH + 24) == longAt(hash, 24)) {
+                return slot;
+            }
+        }
+    }
+
+    /** grows the table, or only drops the removed records if they are the reason it is full */
+    private void rehash() {
+        int newCapacity = removed > count ? capacity : Math.min(MAX_CAPACITY, capacity << 1);
+        if (count + 1 >= newCapacity)
+            throw new IllegalStateException("UTXO store is full at " + count + " records");
+        ByteBuffer[] oldChunks = chunks;
+        int oldCapacity = capacity;
+        chunks = allocate(newCapacity);
+        capacity = newCapacity;
+        removed = 0;
+        int mask = newCapacity - 1;
+        int oldChunkSlots = Math.min(oldCapacity, CHUNK_SLOTS);
+        for (int oldSlot = 0; oldSlot < oldCapacity; oldSlot++) {
+            ByteBuffer from = oldChunks[oldSlot / oldChunkSlots];
+            int fromAt = (oldSlot % oldChunkSlots) * RECORD_BYTES;
+            if (from.getInt(fromAt + STATE) != FULL)
+                continue;
+            int slot = spread(from.getLong(fromAt + HASH), from.getInt(fromAt + INDEX)) & mask;
+            while (chunkOf(slot).getInt(offsetOf(slot) + STATE) != EMPTY)
+                slot = (slot + 1) & mask;
+            ByteBuffer to = chunkOf(slot);
+            int toAt = offsetOf(slot);
+            for (int b = 0; b < RECORD_BYTES; b += 8)
+                to.putLong(toAt + b, from.getLong(fromAt + b));
+        }
+    }
+
+    private UTXO utxoAt(int slot) {
+        ByteBuffer chunk = chunkOf(slot);
+        int at = offsetOf(slot);
+        byte[] hash = new byte[HASH_BYTES];
+        for (int i = 0; i < 4; i++)
+            putLong(hash, 8 * i, chunk.getLong(at + HASH + 8 * i));
+        return new UTXO(hash, chunk.getInt(at + INDEX));
+    }
+
+    private Transaction.Output outputAt(int slot) {
+        ByteBuffer chunk = chunkOf(slot);
+        int at = offsetOf(slot);
+        return addresses.outputOf(chunk.getInt(at + ADDRESS), Double.longBitsToDouble(chunk.getLong(at + VALUE)));
+    }
+
+    private void writeOutput(int slot, Transaction.Output txOut) {
+        ByteBuffer chunk = chunkOf(slot);
+        int at = offsetOf(slot);
+        chunk.putLong(at + VALUE, Double.doubleToRawLongBits(txOut.value));
+        chunk.putInt(at + ADDRESS, addresses.idOf(txOut));
+    }
+
+    private ByteBuffer chunkOf(int slot) {
+        return chunks[slot >>> CHUNK_BITS];
+    }
+
+    private static int offsetOf(int slot) {
+        return (slot & (CHUNK_SLOTS - 1)) * RECORD_BYTES;
+    }
+
+    /** mixes the first 8 hash bytes with the index, outputs of one transaction must not probe the same run */
+    private static int spread(long h0, int index) {
+        long h = h0 ^ (index * 0x9E3779B97F4A7C15L);
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        return (int) h;
+    }
+
+    private static long longAt(byte[] bytes, int from) {
+        long value = 0;
+        for (int i = from; i < from + 8; i++)
+            value = value << 8 | (bytes[i] & 0xff);
+        return value;
+    }
+
+    private static void putLong(byte[] bytes, int from, long value) {
+        for (int i = from + 7; i >= from; i--) {
+            bytes[i] = (byte) value;
+            value >>>= 8;
+        }
+    }
+}
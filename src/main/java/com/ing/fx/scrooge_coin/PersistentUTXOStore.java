@@ -0,0 +1,384 @@
+package com.ing.fx.scrooge_coin;
+
+import java.util.AbstractMap;
+import java.util.ArrayDeque;
+import java.util.Map;
+import java.util.Spliterator;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import com.ing.fx.block_chain.Transaction;
+
+/**
+ * A {@link UTXOStore} on a persistent hash array mapped trie: {@link #copy()} is O(1) and a copy shares
+ * all of its structure with the original until one of them changes.
+ * Each trie node branches on 5 bits of the UTXO hash code and holds a bitmap of its used branches plus an
+ * array of only those branches, so a lookup is at most 7 array reads deep and a node is never larger
+ * than it needs to be.
+ *
+ * nek: a change copies the path from the root to the changed entry, O(log32 n), unless the nodes on that
+ * path were created by this store since its last copy(); those are not shared with anybody and are
+ * changed in place. So a pool that is filled without being copied does not allocate per change either.
+ * */
+public class PersistentUTXOStore implements UTXOStore {
+
+    private static final BitmapNode EMPTY = new BitmapNode(null, 0, new Object[0]);
+
+    private Node root;
+    private int size;
+    /** marks the nodes this store may change in place, replaced on every copy */
+    private Object owner = new Object();
+
+    /** Creates an empty store */
+    public PersistentUTXOStore() {
+        this(EMPTY, 0);
+    }
+
+    private PersistentUTXOStore(Node root, int size) {
+        this.root = root;
+        this.size = size;
+    }
+
+    public Transaction.Output get(UTXO utxo) {
+        return (Transaction.Output) root.get(0, utxo.hashCode(), utxo);
+    }
+
+    public boolean contains(UTXO utxo) {
+        return get(utxo) != null;
+    }
+
+    public Transaction.Output put(UTXO utxo, Transaction.Output txOut) {
+        Change change = new Change();
+        root = root.put(owner, 0, utxo.hashCode(), utxo, txOut, change);
+        if (change.previous == null)
+            size++;
+        return (Transaction.Output) change.previous;
+    }
+
+    public Transaction.Output remove(UTXO utxo) {
+        Change change = new Change();
+        Node node = root.remove(owner, 0, utxo.hashCode(), utxo, change);
+        root = node == null ? EMPTY : node;
+        if (change.previous != null)
+            size--;
+        return (Transaction.Output) change.previous;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return a store sharing the trie of this one, in O(1); from now on neither store changes the shared
+     *         nodes in place
+     */
+    public UTXOStore copy() {
+        owner = new Object();
+        return new PersistentUTXOStore(root, size);
+    }
+
+    public void forEach(BiConsumer<? super UTXO, ? super Transaction.Output> action) {
+        root.forEach(action);
+    }
+
+    /**
+     * @return a spliterator over the entries as they are now: the trie is frozen as by {@link #copy()}, so the
+     *         changes made while it is in use neither show up in it nor wait for it. The freeze is a plain
+     *         write, seen only by the thread that makes it: create the spliterator on the thread that changes
+     *         the store, or let another thread scan a {@link #copy()} made on that thread.
+     */
+    public Spliterator<Map.Entry<UTXO, Transaction.Output>> spliterator() {
+        owner = new Object();
+        return new TrieSpliterator(root, size);
+    }
+
+    /** the output a put replaced or a remove removed */
+    private static final class Change {
+        Object previous;
+    }
+
+    private abstract static class Node {
+        /** the store that created this node and may change it in place, null if nobody may */
+        final Object owner;
+        /** key value pairs, see the subclasses */
+        Object[] array;
+
+        Node(Object owner, Object[] array) {
+            this.owner = owner;
+            this.array = array;
+        }
+
+        abstract Object get(int shift, int hash, UTXO key);
+
+        abstract Node put(Object owner, int shift, int hash, UTXO key, Object value, Change change);
+
+        /** @return the node without {@code key}, null if it became empty */
+        abstract Node remove(Object owner, int shift, int hash, UTXO key, Change change);
+
+        abstract void forEach(BiConsumer<? super UTXO, ? super Transaction.Output> action);
+    }
+
+    /**
+     * A trie node. For every bit set in {@code bitmap}, {@code array} holds a pair: a key and its value,
+     * or null and the child node of that branch.
+     */
+    private static final class BitmapNode extends Node {
+        int bitmap;
+
+        BitmapNode(Object owner, int bitmap, Object[] array) {
+            super(owner, array);
+            this.bitmap = bitmap;
+        }
+
+        private BitmapNode editable(Object owner) {
+            return this.owner == owner ? this : new BitmapNode(owner, bitmap, array.clone());
+        }
+
+        Object get(int shift, int hash, UTXO key) {
+            int bit = 1 << ((hash >>> shift) & 31);
+            if ((bitmap & bit) == 0)
+                return null;
+            int i = 2 * Integer.bitCount(bitmap & (bit - 1));
+            Object k = array[i];
+            if (k == null)
+                return ((Node) array[i + 1]).get(shift + 5, hash, key);
+            return key.equals(k) ? array[i + 1] : null;
+        }
+
+        Node put(Object owner, int shift, int hash, UTXO key, Object value, Change change) {
+            int bit = 1 << ((hash >>> shift) & 31);
+            int i = 2 * Integer.bitCount(bitmap & (bit - 1));
+            if ((bitmap & bit) != 0) {
+                Object k = array[i];
+                Object v = array[i + 1];
+                if (k == null) {
+                    Node child = ((Node) v).put(owner, shift + 5, hash, key, value, change);
+                    if (child == v)
+                        return this;
+                    BitmapNode edited = editable(owner);
+                    edited.array[i + 1] = child;
+                    return edited;
+                }
+                if (key.equals(k)) {
+                    change.previous = v;
+                    if (v == value)
+                        return this;
+                    BitmapNode edited = editable(owner);
+                    edited.array[i + 1] = value;
+                    return edited;
+                }
+                // two keys on one branch: push both one level down
+                Node child = pair(owner, shift + 5, (UTXO) k, v, hash, key, value);
+                BitmapNode edited = editable(owner);
+                edited.array[i] = null;
+                edited.array[i + 1] = child;
+                return edited;
+            }
+            Object[] grown = new Object[array.length + 2];
+            System.arraycopy(array, 0, grown, 0, i);
+            grown[i] = key;
+            grown[i + 1] = value;
+            System.arraycopy(array, i, grown, i + 2, array.length - i);
+            if (this.owner == owner) {
+                bitmap |= bit;
+                array = grown;
+                return this;
+            }
+            return new BitmapNode(owner, bitmap | bit, grown);
+        }
+
+        Node remove(Object owner, int shift, int hash, UTXO key, Change change) {
+            int bit = 1 << ((hash >>> shift) & 31);
+            if ((bitmap & bit) == 0)
+                return this;
+            int i = 2 * Integer.bitCount(bitmap & (bit - 1));
+            Object k = array[i];
+            Object v = array[i + 1];
+            if (k == null) {
+                Node child = ((Node) v).remove(owner, shift + 5, hash, key, change);
+                if (child == v)
+                    return this;
+                if (child != null) {
+                    BitmapNode edited = editable(owner);
+                    edited.array[i + 1] = child;
+                    return edited;
+                }
+            } else if (key.equals(k)) {
+                change.previous = v;
+            } else {
+                return this;
+            }
+            // the branch is gone
+            if (bitmap == bit)
+                return null;
+            Object[] shrunk = new Object[array.length - 2];
+            System.arraycopy(array, 0, shrunk, 0, i);
+            System.arraycopy(array, i + 2, shrunk, i, array.length - i - 2);
+            if (this.owner == owner) {
+                bitmap ^= bit;
+                array = shrunk;
+                return this;
+            }
+            return new BitmapNode(owner, bitmap ^ bit, shrunk);
+        }
+
+        void forEach(BiConsumer<? super UTXO, ? super Transaction.Output> action) {
+            for (int i = 0; i < array.length; i += 2) {
+                if (array[i] == null)
+                    ((Node) array[i + 1]).forEach(action);
+                else
+                    action.accept((UTXO) array[i], (Transaction.Output) array[i + 1]);
+            }
+        }
+    }
+
+    /** @return a node holding the two entries, whose keys are different */
+    private static Node pair(Object owner, int shift, UTXO key1, Object value1, int hash2, UTXO key2, Object value2) {
+        int hash1 = key1.hashCode();
+        if (hash1 == hash2)
+            return new CollisionNode(owner, hash1, new Object[]{key1, value1, key2, value2});
+        Change ignored = new Change();
+        return EMPTY.put(owner, shift, hash1, key1, value1, ignored)
+                .put(owner, shift, hash2, key2, value2, ignored);
+    }
+
+    /** the entries whose keys have exactly the same hash code, as key value pairs */
+    private static final class CollisionNode extends Node {
+        final int hash;
+
+        CollisionNode(Object owner, int hash, Object[] array) {
+            super(owner, array);
+            this.hash = hash;
+        }
+
+        private int indexOf(UTXO key) {
+            for (int i = 0; i < array.length; i += 2)
+                if (key.equals(array[i]))
+                    return i;
+            return -1;
+        }
+
+        Object get(int shift, int hash, UTXO key) {
+            int i = hash == this.hash ? indexOf(key) : -1;
+            return i < 0 ? null : array[i + 1];
+        }
+
+        Node put(Object owner, int shift, int hash, UTXO key, Object value, Change change) {
+            if (hash != this.hash) {
+                // a different hash reached this branch: put a bitmap node above, holding this node
+                BitmapNode parent = new BitmapNode(owner, 1 << ((this.hash >>> shift) & 31), new Object[]{null, this});
+                return parent.put(owner, shift, hash, key, value, change);
+            }
+            int i = indexOf(key);
+            Object[] edited;
+            if (i >= 0) {
+                change.previous = array[i + 1];
+                if (array[i + 1] == value)
+                    return this;
+                edited = array.clone();
+                edited[i + 1] = value;
+            } else {
+                edited = new Object[array.length + 2];
+                System.arraycopy(array, 0, edited, 0, array.length);
+                edited[array.length] = key;
+                edited[array.length + 1] = value;
+            }
+            if (this.owner == owner) {
+                array = edited;
+                return this;
+            }
+            return new CollisionNode(owner, hash, edited);
+        }
+
+        Node remove(Object owner, int shift, int hash, UTXO key, Change change) {
+            int i = hash == this.hash ? indexOf(key) : -1;
+            if (i < 0)
+                return this;
+            change.previous = array[i + 1];
+            if (array.length == 2)
+                return null;
+            Object[] shrunk = new Object[array.length - 2];
+            System.arraycopy(array, 0, shrunk, 0, i);
+            System.arraycopy(array, i + 2, shrunk, i, array.length - i - 2);
+            if (this.owner == owner) {
+                array = shrunk;
+                return this;
+            }
+            return new CollisionNode(owner, hash, shrunk);
+        }
+
+        void forEach(BiConsumer<? super UTXO, ? super Transaction.Output> action) {
+            for (int i = 0; i < array.length; i += 2)
+                action.accept((UTXO) array[i], (Transaction.Output) array[i + 1]);
+        }
+    }
+
+    /**
+     * Walks the entries of one node and then the subtries still {@code pending}, one after another.
+     * It splits by handing half of the pending subtries to the new spliterator, and when only one is left,
+     * by first opening that one into its branches. The root has up to 32 branches, so a pool of any size
+     * splits into at least that many parts.
+     */
+    private static final class TrieSpliterator implements Spliterator<Map.Entry<UTXO, Transaction.Output>> {
+        private final ArrayDeque<Node> pending = new ArrayDeque<>();
+        /** the pairs of the node being walked, child entries included but skipped */
+        private Object[] array = EMPTY.array;
+        private int i;
+        private long estimate;
+
+        TrieSpliterator(Node root, long estimate) {
+            this.estimate = estimate;
+            open(root);
+        }
+
+        private TrieSpliterator(long estimate) {
+            this.estimate = estimate;
+        }
+
+        /** starts walking the entries of {@code node}, its children are walked later */
+        private void open(Node node) {
+            array = node.array;
+            i = 0;
+            for (int j = 0; j < array.length; j += 2)
+                if (array[j] == null)
+                    pending.addLast((Node) array[j + 1]);
+        }
+
+        public boolean tryAdvance(Consumer<? super Map.Entry<UTXO, Transaction.Output>> action) {
+            while (true) {
+                while (i < array.length) {
+                    Object key = array[i];
+                    Object value = array[i + 1];
+                    i += 2;
+                    if (key != null) {
+                        action.accept(new AbstractMap.SimpleImmutableEntry<>((UTXO) key, (Transaction.Output) value));
+                        return true;
+                    }
+                }
+                Node next = pending.pollFirst();
+                if (next == null)
+                    return false;
+                open(next);
+            }
+        }
+
+        public Spliterator<Map.Entry<UTXO, Transaction.Output>> trySplit() {
+            while (pending.size() == 1 && i >= array.length)
+                open(pending.pollFirst());
+            if (pending.size() < 2)
+                return null;
+            estimate >>>= 1;
+            TrieSpliterator prefix = new TrieSpliterator(estimate);
+            for (int n = pending.size() / 2; n > 0; n--)
+                prefix.pending.addLast(pending.pollFirst());
+            return prefix;
+        }
+
+        public long estimateSize() {
+            return estimate;
+        }
+
+        public int characteristics() {
+            return DISTINCT | NONNULL;
+        }
+    }
+}
@@ -0,0 +1,22 @@
+package com.ing.fx.scrooge_coin;
+
+/**
+ * Why a transaction handler rejected a transaction, one value per rule of {@link TxHandler#isValidTx}.
+ * */
+public enum RejectReason {
+    /** (1) an input claims an output that is not in the current UTXO pool */
+    MISSING_INPUT,
+    /**
+     * (2) the signature of an input does not verify under the key of the claimed output, or the claimed output
+     * is pay-to-key-hash and the input does not reveal the key of its hash
+     */
+    INVALID_SIGNATURE,
+    /** (3) two inputs claim the same UTXO */
+    DOUBLE_CLAIM,
+    /** (4) an output value is negative */
+    NEGATIVE_OUTPUT,
+    /** (5) the output values add up to more than the input values */
+    OUTPUTS_EXCEED_INPUTS,
+    /** a value is not a number or a sum does not fit in base units */
+    INVALID_VALUE
+}
@@ -0,0 +1,170 @@
+package com.ing.fx.scrooge_coin;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.PublicKey;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A bounded, thread safe cache of signatures that were already found valid.
+ * A transaction is verified when it enters the transaction pool and again when the block holding it
+ * is connected; with the cache the second check is a hash lookup instead of an RSA verify.
+ *
+ * An entry is the SHA-256 of (SHA-256 of the signed message, signature, encoded public key), so a hit
+ * proves that exactly this key signed exactly this message. Only valid signatures are cached, an
+ * attacker cannot make the cache answer true for anything that was not verified before.
+ * Eviction is LRU, per segment: the cache is split into {@link #SEGMENTS} independently locked
+ * access-ordered maps so that verifier threads rarely wait on each other.
+ * */
+public class SignatureCache {
+
+    /** number of entries of the cache used by {@link Crypto#verifySignature} */
+    public static final int DEFAULT_CAPACITY = 1 << 16;
+
+    static final int SEGMENTS = 16;
+
+    private static final SignatureCache SHARED = new SignatureCache(DEFAULT_CAPACITY);
+
+    private static final ThreadLocal<MessageDigest> SHA256 = new ThreadLocal<MessageDigest>() {
+        @Override
+        protected MessageDigest initialValue() {
+            try {
+                return MessageDigest.getInstance("SHA-256");
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+    };
+
+    private final Segment[] segments = new Segment[SEGMENTS];
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    /** Creates an empty cache holding at most {@code capacity} signatures */
+    public SignatureCache(int capacity) {
+        int segmentCapacity = Math.max(1, capacity / SEGMENTS);
+        for (int i = 0; i < SEGMENTS; i++)
+            segments[i] = new Segment(segmentCapacity);
+    }
+
+    /** @return the cache consulted and filled by {@link Crypto#verifySignature} */
+    public static SignatureCache getShared() {
+        return SHARED;
+    }
+
+    /** @return the cache entry for {@code signature} over {@code message} under {@code pubKey} */
+    public static byte[] entryOf(PublicKey pubKey, byte[] message, byte[] signature) {
+        MessageDigest md = SHA256.get();
+        return entryOfSigHash(pubKey, md.digest(message), signature);
+    }
+
+    /** @return the cache entry for {@code signature} over a message whose SHA-256 is {@code sigHash} */
+    public static byte[] entryOfSigHash(PublicKey pubKey, byte[] sigHash, byte[] signature) {
+        MessageDigest md = SHA256.get();
+        md.update(sigHash);
+        md.update(signature);
+        md.update(pubKey.getEncoded());
+        return md.digest();
+    }
+
+    /** @return true if {@code entry} is a signature that was verified before, counts a hit or a miss */
+    public boolean contains(byte[] entry) {
+        Key key = new Key(entry);
+        boolean found = segmentOf(key).contains(key);
+        if (found)
+            hits.increment();
+        else
+            misses.increment();
+        return found;
+    }
+
+    /** Adds {@code entry}, a verified signature, evicting the least recently used one of its segment */
+    public void add(byte[] entry) {
+        Key key = new Key(entry);
+        segmentOf(key).add(key);
+    }
+
+    /** @return the number of lookups that found their signature */
+    public long getHits() {
+        return hits.sum();
+    }
+
+    /** @return the number of lookups that did not find their signature */
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    /** @return the number of cached signatures */
+    public int size() {
+        int size = 0;
+        for (Segment segment : segments)
+            size += segment.size();
+        return size;
+    }
+
+    /** Drops all entries and resets the counters */
+    public void clear() {
+        for (Segment segment : segments)
+            segment.clear();
+        hits.reset();
+        misses.reset();
+    }
+
+    private Segment segmentOf(Key key) {
+        return segments[key.hash & (SEGMENTS - 1)];
+    }
+
+    /** an access ordered map that drops its eldest entry when full */
+    private static final class Segment {
+        private final LinkedHashMap<Key, Boolean> entries;
+
+        Segment(final int capacity) {
+            entries = new LinkedHashMap<Key, Boolean>(capacity * 4 / 3 + 1, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<Key, Boolean> eldest) {
+                    return size() > capacity;
+                }
+            };
+        }
+
+        synchronized boolean contains(Key key) {
+            return entries.get(key) != null; // get, not containsKey, to refresh the LRU order
+        }
+
+        synchronized void add(Key key) {
+            entries.put(key, Boolean.TRUE);
+        }
+
+        synchronized int size() {
+            return entries.size();
+        }
+
+        synchronized void clear() {
+            entries.clear();
+        }
+    }
+
+    /** a 32 byte digest; it is already uniformly distributed, so its first bytes are the hash code */
+    private static final class Key {
+        private final byte[] digest;
+        private final int hash;
+
+        Key(byte[] digest) {
+            this.digest = digest;
+            this.hash = (digest[0] & 0xff) << 24 | (digest[1] & 0xff) << 16 | (digest[2] & 0xff) << 8 | (digest[3] & 0xff);
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            return other instanceof Key && Arrays.equals(digest, ((Key) other).digest);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+}
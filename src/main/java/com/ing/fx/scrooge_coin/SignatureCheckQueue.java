@@ -0,0 +1,203 @@
+package com.ing.fx.scrooge_coin;
+
+import java.security.PublicKey;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * A shared, bounded queue of signature checks that is drained by one worker thread per core.
+ * Validation code does all the stateful checks (UTXO lookup, double claims, value sums) on the
+ * caller thread and only collects the RSA verifications into a {@link Batch}.
+ * The batch is then split over the workers and the caller waits for one aggregate result.
+ *
+ * nek: RSA verify is pure (pk, msg, sig) -> boolean, so the order in which they run does not matter,
+ * only that all of them pass.
+ * */
+public final class SignatureCheckQueue {
+
+    /** one worker per core, the caller thread works on a share of the batch as well */
+    public static final int THREADS = Runtime.getRuntime().availableProcessors();
+
+    /** batches smaller than this are verified on the caller thread, handing off costs more than it saves */
+    static final int MIN_PARALLEL_CHECKS = 4;
+
+    /** pending chunks per worker before submitters start running chunks themselves */
+    private static final int QUEUE_DEPTH_PER_THREAD = 16;
+
+    private static final ThreadPoolExecutor EXECUTOR = new ThreadPoolExecutor(
+            THREADS, THREADS, 0L, TimeUnit.MILLISECONDS,
+            new ArrayBlockingQueue<Runnable>(THREADS * QUEUE_DEPTH_PER_THREAD),
+            new ThreadFactory() {
+                private final AtomicInteger count = new AtomicInteger();
+
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "sigcheck-" + count.incrementAndGet());
+                    t.setDaemon(true); // never keep the JVM alive for pending checks
+                    return t;
+                }
+            },
+            new ThreadPoolExecutor.CallerRunsPolicy()); // a full queue pushes the work back to the caller
+
+    private SignatureCheckQueue() {
+    }
+
+    /** a range of work handed to {@link #runChunked} */
+    interface Chunk {
+        void run(int from, int to);
+    }
+
+    /**
+     * Splits [0, {@code size}) into at most one range per thread, hands all but the first range to the
+     * workers and runs the first one on the caller thread, then waits until all ranges are done.
+     * Range boundaries are multiples of {@code alignment}, e.g. 64 so that each range owns whole words of
+     * a bitmap. An exception thrown by a range is rethrown on the caller thread.
+     */
+    static void runChunked(int size, int alignment, final Chunk chunk) {
+        if (size == 0)
+            return;
+        int units = (size + alignment - 1) / alignment;
+        int chunks = Math.max(1, Math.min(THREADS, units));
+        final int chunkSize = (units + chunks - 1) / chunks * alignment;
+        chunks = (size + chunkSize - 1) / chunkSize;
+        final CountDownLatch done = new CountDownLatch(Math.max(0, chunks - 1));
+        final AtomicReference<RuntimeException> thrown = new AtomicReference<>();
+        for (int c = 1; c < chunks; c++) {
+            final int from = c * chunkSize;
+            final int to = Math.min(size, from + chunkSize);
+            EXECUTOR.execute(new Runnable() {
+                public void run() {
+                    try {
+                        chunk.run(from, to);
+                    } catch (RuntimeException e) {
+                        thrown.compareAndSet(null, e);
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            });
+        }
+        // the caller takes the first chunk instead of sitting idle
+        chunk.run(0, Math.min(size, chunkSize));
+        boolean interrupted = false;
+        while (true) {
+            try {
+                done.await();
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true; // the ranges still write into the caller's state, wait for them
+            }
+        }
+        if (interrupted)
+            Thread.currentThread().interrupt();
+        if (thrown.get() != null)
+            throw thrown.get();
+    }
+
+    /** @return a new, empty batch of signature checks */
+    public static Batch newBatch() {
+        return new Batch();
+    }
+
+    /**
+     * A set of (public key, message, signature) checks that succeeds only if every check succeeds.
+     * A batch is meant to be filled and verified by a single thread.
+     * */
+    public static final class Batch {
+        private PublicKey[] keys = new PublicKey[8];
+        private byte[][] messages = new byte[8][];
+        private byte[][] signatures = new byte[8][];
+        /** whether messages[i] is the SHA-256 of the message rather than the message */
+        private boolean[] hashed = new boolean[8];
+        private int size;
+
+        private Batch() {
+        }
+
+        /** Queues the check that {@code signature} is valid over {@code message} under {@code pubKey} */
+        public void add(PublicKey pubKey, byte[] message, byte[] signature) {
+            add(pubKey, message, signature, false);
+        }
+
+        /** Queues the check that {@code signature} is valid over the message whose SHA-256 is {@code sigHash} */
+        public void addSigHash(PublicKey pubKey, byte[] sigHash, byte[] signature) {
+            add(pubKey, sigHash, signature, true);
+        }
+
+        private void add(PublicKey pubKey, byte[] message, byte[] signature, boolean isHash) {
+            if (size == keys.length) {
+                int capacity = size * 2;
+                keys = Arrays.copyOf(keys, capacity);
+                messages = Arrays.copyOf(messages, capacity);
+                signatures = Arrays.copyOf(signatures, capacity);
+                hashed = Arrays.copyOf(hashed, capacity);
+            }
+            keys[size] = pubKey;
+            messages[size] = message;
+            signatures[size] = signature;
+            hashed[size] = isHash;
+            size++;
+        }
+
+        /** @return the number of queued checks */
+        public int size() {
+            return size;
+        }
+
+        /** Drops all queued checks so that the batch can be filled again */
+        public void clear() {
+            for (int i = 0; i < size; i++) {
+                keys[i] = null;
+                messages[i] = null;
+                signatures[i] = null;
+            }
+            size = 0;
+        }
+
+        /**
+         * Verifies all queued checks, spreading them across the worker threads, and blocks until the
+         * aggregate result is known. Stops early as soon as one check fails.
+         *
+         * @return true if every queued signature is valid, true for an empty batch
+         */
+        public boolean verify() {
+            if (size < MIN_PARALLEL_CHECKS || THREADS == 1)
+                return verifyRange(0, size, null);
+
+            final AtomicBoolean failed = new AtomicBoolean();
+            runChunked(size, 1, new Chunk() {
+                public void run(int from, int to) {
+                    if (!verifyRange(from, to, failed))
+                        failed.set(true);
+                }
+            });
+            return !failed.get();
+        }
+
+        /**
+         * Verifies all queued checks on the caller thread, for callers that already run on a worker of
+         * {@link #runChunked} and must not wait for other workers.
+         */
+        boolean verifyHere() {
+            return verifyRange(0, size, null);
+        }
+
+        private boolean verifyRange(int from, int to, AtomicBoolean failed) {
+            for (int i = from; i < to; i++) {
+                if (failed != null && failed.get())
+                    return false;
+                boolean valid = hashed[i] ? Crypto.verifyDigest(keys[i], messages[i], signatures[i])
+                        : Crypto.verifySignature(keys[i], messages[i], signatures[i]);
+                if (!valid)
+                    return false;
+            }
+            return true;
+        }
+    }
+}
@@ -0,0 +1,70 @@
+package com.ing.fx.scrooge_coin;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import com.ing.fx.block_chain.Transaction;
+
+/**
+ * Stateless checks on a single transaction shared by the transaction handlers.
+ * */
+final class TxChecks {
+
+    /** below this many inputs the claimed outputs are compared pairwise */
+    private static final int PAIRWISE_LIMIT = 16;
+
+    /** per thread scratch space for sorting the claimed outputs of large transactions */
+    private static final ThreadLocal<long[]> SCRATCH = new ThreadLocal<long[]>() {
+        @Override
+        protected long[] initialValue() {
+            return new long[64];
+        }
+    };
+
+    private TxChecks() {
+    }
+
+    /**
+     * @return true if {@code tx} claims the same UTXO in more than one input (rule (3) of
+     *         {@link TxHandler#isValidTx}). Does not allocate in steady state.
+     */
+    static boolean claimsUTXOTwice(Transaction tx) {
+        ArrayList<Transaction.Input> inputs = tx.getInputs();
+        int n = inputs.size();
+        if (n <= PAIRWISE_LIMIT) {
+            for (int i = 1; i < n; i++)
+                for (int j = 0; j < i; j++)
+                    if (sameUTXO(inputs.get(i), inputs.get(j)))
+                        return true;
+            return false;
+        }
+
+        // nek: sort (hash of claimed UTXO, input position) pairs, duplicates end up next to each other
+        long[] keys = SCRATCH.get();
+        if (keys.length < n) {
+            keys = new long[Math.max(n, keys.length * 2)];
+            SCRATCH.set(keys);
+        }
+        for (int i = 0; i < n; i++) {
+            Transaction.Input input = inputs.get(i);
+            int hash = Arrays.hashCode(input.prevTxHash) * 31 + input.outputIndex;
+            keys[i] = (long) hash << 32 | i;
+        }
+        Arrays.sort(keys, 0, n);
+        int runStart = 0;
+        for (int i = 1; i <= n; i++) {
+            if (i < n && keys[i] >>> 32 == keys[runStart] >>> 32)
+                continue;
+            // keys[runStart..i) share a hash, compare them for real
+            for (int a = runStart + 1; a < i; a++)
+                for (int b = runStart; b < a; b++)
+                    if (sameUTXO(inputs.get((int) keys[a]), inputs.get((int) keys[b])))
+                        return true;
+            runStart = i;
+        }
+        return false;
+    }
+
+    private static boolean sameUTXO(Transaction.Input a, Transaction.Input b) {
+        return a.outputIndex == b.outputIndex && Arrays.equals(a.prevTxHash, b.prevTxHash);
+    }
+}
@@ -4,8 +4,13 @@ package com.ing.fx.scrooge_coin;
  * Each block has a trx in it and a hash pointer to the previous block in the history (In bitcoins, we put
  * multiple trx into a block!) The history will help us to detect double spending.
  * */
-import java.math.BigDecimal;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.PriorityQueue;
+import com.ing.fx.block_chain.ByteArrayWrapper;
 import com.ing.fx.block_chain.Transaction;
 /**
  * Q: you have ten coins each of value 3.0
@@ -17,6 +22,17 @@ import com.ing.fx.block_chain.Transaction;
  * */
 
 public class TxHandler {
+    /** reused by every isValidTx call of a thread, so that validating does not allocate a batch per transaction */
+    private static final ThreadLocal<SignatureCheckQueue.Batch> SIG_CHECKS = new ThreadLocal<SignatureCheckQueue.Batch>() {
+        @Override
+        protected SignatureCheckQueue.Batch initialValue() {
+            return SignatureCheckQueue.newBatch();
+        }
+    };
+
+    /** batches smaller than this are handled sequentially, grouping them costs more than it saves */
+    private static final int MIN_PARALLEL_TXS = 32;
+
     private UTXOPool currentUTXOPool;
 
     /**
@@ -29,6 +45,19 @@ public class TxHandler {
         currentUTXOPool = new UTXOPool(utxoPool);
     }
 
+    private TxHandler(UTXOPool utxoPool, boolean copy) {
+        currentUTXOPool = copy ? new UTXOPool(utxoPool) : utxoPool;
+    }
+
+    /**
+     * Creates a handler that works directly on {@code utxoPool} instead of a copy, so accepted
+     * transactions change the given pool. Combine with {@link UTXOPool#startRecording(UTXODelta)} to be
+     * able to roll the changes back.
+     */
+    public static TxHandler inPlace(UTXOPool utxoPool) {
+        return new TxHandler(utxoPool, false);
+    }
+
     /**
      * @return true if:
      * (1) all outputs claimed by {@code tx} are in the current UTXO pool, 
@@ -47,37 +76,54 @@ public class TxHandler {
          * signatures of all the owners of the consumed coins signing on this transaction sig=sign(sk, trx)
          * */
         // IMPLEMENT THIS
-        BigDecimal totalOutput = new BigDecimal(0);
-        for (Transaction.Output output: tx.getOutputs()) {
-            if (output.value < 0) return false; //(4)
-            else totalOutput = totalOutput.add(new BigDecimal(output.value));
-        }
-        BigDecimal totalInput = new BigDecimal(0);
-        ArrayList<Transaction.Output> claimedUTXOs = new ArrayList<>();
-        int i = 0;
-        for (Transaction.Input input: tx.getInputs()) {
-            UTXO utxo = new UTXO(input.prevTxHash, input.outputIndex); //reconstructing corresponding output from previous trx
-            if (utxo==null) return false;
-            else {
-                if (currentUTXOPool.getTxOutput(utxo)==null) //(1)
-                    return false;
-                else {
-                    Transaction.Output claimedOutput = currentUTXOPool.getTxOutput(utxo);
-                    if (claimedUTXOs.contains(claimedOutput)) //(3)
-                        return false;
-                    else {
-                        claimedUTXOs.add(claimedOutput);
-                    }
-                    totalInput = totalInput.add(new BigDecimal(claimedOutput.value));
-                    if (!Crypto.verifySignature(claimedOutput.address, tx.getRawDataToSign(i), input.signature)) return false; //(2) verify(pk, trx, sig)
-                }
-            }
-            i++;
+        return checkTx(tx) == null; //Test 1: test isValidTx() with valid transactions
+    }
+
+    /**
+     * @return null if {@code tx} is valid as defined by {@link #isValidTx(Transaction)}, otherwise the
+     *         reason it is not
+     */
+    public RejectReason checkTx(Transaction tx) {
+        SignatureCheckQueue.Batch sigChecks = SIG_CHECKS.get();
+        try {
+            RejectReason reason = checkTx(tx, sigChecks);
+            if (reason == null && !sigChecks.verify())
+                reason = RejectReason.INVALID_SIGNATURE;
+            return reason;
+        } finally {
+            sigChecks.clear();
         }
+    }
 
-        if (totalOutput.compareTo(totalInput) == 1) return false; //(5)
+    /**
+     * Checks (1), (3), (4) and (5) of {@link #isValidTx(Transaction)} against the current UTXO pool
+     * and queues the signature checks of (2) into {@code sigChecks} instead of verifying them here.
+     */
+    private RejectReason checkTx(Transaction tx, SignatureCheckQueue.Batch sigChecks) {
+        // nek: values are summed as long base units, no BigDecimal per input and output; indexed loops avoid iterators
+        ArrayList<Transaction.Output> outputs = tx.getOutputs();
+        long totalOutput = 0;
+        for (int o = 0; o < outputs.size(); o++) {
+            double value = outputs.get(o).value;
+            if (value < 0) return RejectReason.NEGATIVE_OUTPUT; //(4)
+            totalOutput = CoinValue.add(totalOutput, CoinValue.toBaseUnits(value));
+        }
+        if (totalOutput == CoinValue.INVALID) return RejectReason.INVALID_VALUE;
+        if (TxChecks.claimsUTXOTwice(tx)) return RejectReason.DOUBLE_CLAIM; //(3) two different coins can hold equal outputs, compare the coins
+
+        ArrayList<Transaction.Input> inputs = tx.getInputs();
+        long totalInput = 0;
+        for (int i = 0; i < inputs.size(); i++) {
+            Transaction.Input input = inputs.get(i);
+            //corresponding output from previous trx, probed without building a UTXO
+            Transaction.Output claimedOutput = currentUTXOPool.getTxOutput(input.prevTxHash, input.outputIndex);
+            if (claimedOutput == null) return RejectReason.MISSING_INPUT; //(1)
+            totalInput = CoinValue.add(totalInput, CoinValue.toBaseUnits(claimedOutput.value));
+            sigChecks.addSigHash(claimedOutput.spendingKey(input), tx.getSigHash(i), input.signature); //(2) verify(pk, trx, sig)
+        }
+        if (totalInput == CoinValue.INVALID) return RejectReason.INVALID_VALUE;
 
-        return true; //Test 1: test isValidTx() with valid transactions
+        return totalOutput <= totalInput ? null : RejectReason.OUTPUTS_EXCEED_INPUTS; //(5)
     }
 
     /**
@@ -87,18 +133,272 @@ public class TxHandler {
      */
     public Transaction[] handleTxs(Transaction[] possibleTxs) {
         // IMPLEMENT THIS
-        Transaction[] result = new Transaction[possibleTxs.length];
-        int k=0;
-        for (int j=0; j<possibleTxs.length; j++) {
+        final Transaction[] result = new Transaction[possibleTxs.length];
+        handleTxs(Arrays.asList(possibleTxs).iterator(), new TxListener() {
+            private int k = 0;
+
+            public void onAccepted(Transaction tx) {
+                result[k] = tx;
+                k++;
+            }
+
+            public void onRejected(Transaction tx, RejectReason reason) {
+            }
+        });
+        return result;
+    }
+
+    /**
+     * Streaming version of {@link #handleTxs(Transaction[])}: handles the transactions of {@code txs} one by
+     * one, with the same UTXO pool semantics, and reports each outcome to {@code listener} before pulling the
+     * next transaction. Nothing is buffered, so the source is never asked for more than the handler can
+     * take (backpressure by pulling) and memory stays flat however long the stream is.
+     */
+    public void handleTxs(Iterator<Transaction> txs, TxListener listener) {
+        while (txs.hasNext()) {
+            Transaction tx = txs.next();
+            RejectReason reason = checkTx(tx);
+            if (reason == null) {
+                updateCurrentUTXOPool(tx);
+                listener.onAccepted(tx);
+            } else {
+                listener.onRejected(tx, reason);
+            }
+        }
+    }
+
+    /**
+     * Same as {@link #handleTxs(Transaction[])} but independent of the order of {@code possibleTxs}:
+     * a transaction that spends an output of another transaction in the same batch is checked after
+     * that parent, even when the parent comes later in the array.
+     * The batch is ordered topologically over its in-batch spends (txHash -> spending txs) and then
+     * validated in a single linear pass. Ties are broken by array position, so when several transactions
+     * claim the same output the earliest one that becomes valid wins. Transactions on a spend cycle,
+     * or spending from one, can never become valid and are rejected.
+     *
+     * @return the accepted transactions in the order they were applied to the UTXO pool
+     */
+    public Transaction[] handleTxsOrdered(Transaction[] possibleTxs) {
+        int n = possibleTxs.length;
+        HashMap<ByteArrayWrapper, Integer> indexOfHash = new HashMap<>();
+        for (int j = 0; j < n; j++) {
+            byte[] hash = possibleTxs[j].getHash();
+            if (hash != null && !indexOfHash.containsKey(new ByteArrayWrapper(hash)))
+                indexOfHash.put(new ByteArrayWrapper(hash), j); // duplicates: the first copy is the parent
+        }
+
+        // nek: edge parent -> child for every input of child that claims an output of parent
+        List<List<Integer>> children = new ArrayList<>(n);
+        int[] pendingParents = new int[n];
+        for (int j = 0; j < n; j++)
+            children.add(new ArrayList<Integer>());
+        for (int j = 0; j < n; j++) {
+            for (Transaction.Input input: possibleTxs[j].getInputs()) {
+                if (input.prevTxHash == null)
+                    continue;
+                Integer parent = indexOfHash.get(new ByteArrayWrapper(input.prevTxHash));
+                if (parent != null) {
+                    children.get(parent).add(j);
+                    pendingParents[j]++;
+                }
+            }
+        }
+
+        // Kahn's algorithm, always releasing the earliest ready transaction to stay deterministic
+        PriorityQueue<Integer> ready = new PriorityQueue<>();
+        for (int j = 0; j < n; j++)
+            if (pendingParents[j] == 0)
+                ready.add(j);
+        Transaction[] result = new Transaction[n];
+        int k = 0;
+        while (!ready.isEmpty()) {
+            int j = ready.poll();
             if (isValidTx(possibleTxs[j])) {
                 result[k] = possibleTxs[j];
                 k++;
                 updateCurrentUTXOPool(possibleTxs[j]);
             }
+            for (int child: children.get(j))
+                if (--pendingParents[child] == 0)
+                    ready.add(child);
+        }
+        return Arrays.copyOf(result, k);
+    }
+
+    /**
+     * Same result as {@link #handleTxs(Transaction[])}, same accepted transactions and same UTXO pool
+     * afterwards, but independent transactions are validated in parallel.
+     * The batch is split into conflict groups: two transactions are in the same group if they claim the
+     * same UTXO, if one claims an output of the other or if they have the same hash. No transaction
+     * reads or writes a UTXO touched by another group, so each group is handled in array order on its
+     * own small pool, holding the UTXOs its members claim read from the current pool by the caller thread, on
+     * the {@link SignatureCheckQueue} workers. The accepted transactions are then applied to the current
+     * pool in array order.
+     *
+     * @return the accepted transactions in array order, padded with nulls like {@link #handleTxs(Transaction[])}
+     */
+    public Transaction[] handleTxsParallel(Transaction[] possibleTxs) {
+        final int n = possibleTxs.length;
+        if (n < MIN_PARALLEL_TXS || SignatureCheckQueue.THREADS == 1)
+            return handleTxs(possibleTxs);
+
+        final int[][] groups = conflictGroups(possibleTxs);
+        final boolean[] accepted = new boolean[n];
+        final Transaction[] txs = possibleTxs;
+        // nek: the current pool is read here, on the caller thread; a lookup may change a pool (the counters of its
+        // filter), so the workers only get pools of their own
+        final UTXOPool[] groupPools = new UTXOPool[groups.length];
+        for (int g = 0; g < groups.length; g++)
+            groupPools[g] = claimedUTXOs(txs, groups[g]);
+        SignatureCheckQueue.runChunked(groups.length, 1, new SignatureCheckQueue.Chunk() {
+            public void run(int from, int to) {
+                for (int g = from; g < to; g++)
+                    handleGroup(txs, groups[g], groupPools[g], accepted);
+            }
+        });
+
+        Transaction[] result = new Transaction[n];
+        int k = 0;
+        for (int j = 0; j < n; j++) {
+            if (accepted[j]) {
+                result[k] = possibleTxs[j];
+                k++;
+                updateCurrentUTXOPool(possibleTxs[j]);
+            }
         }
         return result;
     }
 
+    /**
+     * Union-find over the transactions of {@code txs}, see {@link #handleTxsParallel(Transaction[])}.
+     *
+     * @return the groups, each one a list of array indices in ascending order
+     */
+    private static int[][] conflictGroups(Transaction[] txs) {
+        int n = txs.length;
+        int[] parent = new int[n];
+        for (int j = 0; j < n; j++)
+            parent[j] = j;
+
+        HashMap<ByteArrayWrapper, Integer> indexOfHash = new HashMap<>();
+        for (int j = 0; j < n; j++) {
+            byte[] hash = txs[j].getHash();
+            if (hash == null)
+                continue;
+            Integer same = indexOfHash.put(new ByteArrayWrapper(hash), j);
+            if (same != null)
+                union(parent, same, j);
+        }
+        HashMap<UTXO, Integer> claimer = new HashMap<>();
+        for (int j = 0; j < n; j++) {
+            for (Transaction.Input input: txs[j].getInputs()) {
+                if (input.prevTxHash == null)
+                    continue;
+                Integer other = claimer.put(new UTXO(input.prevTxHash, input.outputIndex), j);
+                if (other != null)
+                    union(parent, other, j);
+                Integer creator = indexOfHash.get(new ByteArrayWrapper(input.prevTxHash));
+                if (creator != null)
+                    union(parent, creator, j);
+            }
+        }
+
+        int[] size = new int[n];
+        for (int j = 0; j < n; j++)
+            size[find(parent, j)]++;
+        int[][] byRoot = new int[n][];
+        int count = 0;
+        for (int j = 0; j < n; j++)
+            if (size[j] > 0) {
+                byRoot[j] = new int[size[j]];
+                count++;
+            }
+        int[][] groups = new int[count][];
+        int[] filled = new int[n];
+        int g = 0;
+        for (int j = 0; j < n; j++) {
+            int root = find(parent, j);
+            if (filled[root] == 0)
+                groups[g++] = byRoot[root];
+            byRoot[root][filled[root]++] = j;
+        }
+        return groups;
+    }
+
+    private static int find(int[] parent, int j) {
+        while (parent[j] != j) {
+            parent[j] = parent[parent[j]]; // path halving
+            j = parent[j];
+        }
+        return j;
+    }
+
+    private static void union(int[] parent, int a, int b) {
+        int rootA = find(parent, a);
+        int rootB = find(parent, b);
+        // the smaller index becomes the root, the result does not depend on the order of unions
+        if (rootA < rootB)
+            parent[rootB] = rootA;
+        else if (rootB < rootA)
+            parent[rootA] = rootB;
+    }
+
+    /** @return a new pool of the UTXOs of the current pool that the transactions {@code group} of {@code txs} claim */
+    private UTXOPool claimedUTXOs(Transaction[] txs, int[] group) {
+        UTXOPool groupPool = new UTXOPool();
+        for (int j: group) {
+            for (Transaction.Input input: txs[j].getInputs()) {
+                if (input.prevTxHash == null)
+                    continue;
+                Transaction.Output txOut = currentUTXOPool.getTxOutput(input.prevTxHash, input.outputIndex);
+                if (txOut != null)
+                    groupPool.addUTXO(new UTXO(input.prevTxHash, input.outputIndex), txOut);
+            }
+        }
+        return groupPool;
+    }
+
+    /**
+     * Handles the transactions {@code group} of {@code txs} in order, on {@code groupPool} of only the UTXOs
+     * they claim, and marks the valid ones in {@code accepted}. Does not touch the current pool.
+     * Runs on a worker of the {@link SignatureCheckQueue}, so signatures are verified right here.
+     */
+    private void handleGroup(Transaction[] txs, int[] group, UTXOPool groupPool, boolean[] accepted) {
+        TxHandler groupHandler = new TxHandler(groupPool, false);
+        SignatureCheckQueue.Batch sigChecks = SIG_CHECKS.get();
+        try {
+            for (int j: group) {
+                boolean valid = groupHandler.checkTx(txs[j], sigChecks) == null && sigChecks.verifyHere();
+                sigChecks.clear();
+                if (valid) {
+                    accepted[j] = true;
+                    groupHandler.updateCurrentUTXOPool(txs[j]);
+                }
+            }
+        } finally {
+            sigChecks.clear();
+        }
+    }
+
+    /**
+     * Validates {@code txs} as one unit, e.g. the transactions of a block: every transaction has to be
+     * valid against the pool left by the transactions before it. The stateful checks run in order on
+     * the caller thread and the signatures of all transactions are verified together by the
+     * {@link SignatureCheckQueue}.
+     *
+     * @return true if all transactions are valid, in which case the current UTXO pool reflects all of
+     *         them; on false the pool may hold part of the changes and the handler should be dropped.
+     */
+    public boolean acceptAll(Transaction[] txs) {
+        SignatureCheckQueue.Batch sigChecks = SignatureCheckQueue.newBatch();
+        for (Transaction tx: txs) {
+            if (checkTx(tx, sigChecks) != null)
+                return false;
+            updateCurrentUTXOPool(tx);
+        }
+        return sigChecks.verify();
+    }
+
     /**
      * Based on the transactions it has chosen to accept,
      * handleTxs() should also update its internal UTXOPool to reflect the current set of unspent transaction outputs,
@@ -110,13 +410,10 @@ public class TxHandler {
         for (Transaction.Output output: validTx.getOutputs()) {
             UTXO newUTXO = new UTXO(validTx.getHash(), m);
             this.currentUTXOPool.addUTXO(newUTXO, output);
+            m++;
         }
         for (Transaction.Input input: validTx.getInputs()) {
-            UTXO textUTXO = new UTXO(input.prevTxHash, input.outputIndex);
-            for (UTXO utxo: this.currentUTXOPool.getAllUTXO()){
-                if (utxo.compareTo(textUTXO)==0)
-                    this.currentUTXOPool.removeUTXO(utxo);
-            }
+            this.currentUTXOPool.removeUTXO(input.prevTxHash, input.outputIndex); // a lookup, not a scan of the pool
         }
     }
 
@@ -0,0 +1,16 @@
+package com.ing.fx.scrooge_coin;
+
+import com.ing.fx.block_chain.Transaction;
+
+/**
+ * Receives the outcome of every transaction of a stream handled by
+ * {@link TxHandler#handleTxs(java.util.Iterator, TxListener)}, in stream order, as soon as it is known.
+ * */
+public interface TxListener {
+
+    /** {@code tx} was valid and has been applied to the UTXO pool */
+    void onAccepted(Transaction tx);
+
+    /** {@code tx} was invalid against the UTXO pool at its turn, for {@code reason} */
+    void onRejected(Transaction tx, RejectReason reason);
+}
@@ -15,13 +15,49 @@ public class UTXO implements Comparable<UTXO> {
     /** Index of the corresponding output in said transaction */
     private int index;
 
+    /** cached {@link #hashCode()}, UTXOs are hashed on every map operation */
+    private int hash;
+
+    /** the first 8 bytes of {@code txHash}, different hashes nearly always differ here already */
+    private long prefix;
+
+    /** one reusable key per thread for the probe methods, see {@link #probe(byte[], int)} */
+    private static final ThreadLocal<UTXO> PROBE = new ThreadLocal<UTXO>() {
+        @Override
+        protected UTXO initialValue() {
+            return new UTXO();
+        }
+    };
+
     /**
      * Creates a new UTXO corresponding to the output with index <index> in the transaction whose
      * hash is {@code txHash}
      */
     public UTXO(byte[] txHash, int index) {
-        this.txHash = Arrays.copyOf(txHash, txHash.length);
+        set(Arrays.copyOf(txHash, txHash.length), index);
+    }
+
+    private UTXO() {
+    }
+
+    private void set(byte[] txHash, int index) {
+        this.txHash = txHash;
         this.index = index;
+        this.hash = (17 + index) * 31 + Arrays.hashCode(txHash);
+        long prefix = 0;
+        for (int i = 0; i < Math.min(8, txHash.length); i++)
+            prefix = prefix << 8 | (txHash[i] & 0xff);
+        this.prefix = prefix;
+    }
+
+    /**
+     * @return this thread's probe key, pointed at {@code txHash} without copying it. Only for lookups and
+     *         removals that do not keep the key, and only until the next probe of the thread.
+     */
+    static UTXO probe(byte[] txHash, int index) {
+        UTXO probe = PROBE.get();
+        probe.set(txHash, index);
+        return probe;
     }
 
     /** @return the transaction hash of this UTXO */
@@ -52,15 +88,9 @@ public class UTXO implements Comparable<UTXO> {
         }
 
         UTXO utxo = (UTXO) other;
-        byte[] hash = utxo.txHash;
-        int in = utxo.index;
-        if (hash.length != txHash.length || index != in)
+        if (index != utxo.index || hash != utxo.hash || prefix != utxo.prefix)
             return false;
-        for (int i = 0; i < hash.length; i++) {
-            if (hash[i] != txHash[i])
-                return false;
-        }
-        return true;
+        return Arrays.equals(txHash, utxo.txHash);
     }
 
     /**
@@ -68,10 +98,7 @@ public class UTXO implements Comparable<UTXO> {
      * utxo1.equals(utxo2) => utxo1.hashCode() == utxo2.hashCode())
      */
     public int hashCode() {
-        int hash = 1;
-        hash = hash * 17 + index;
-        hash = hash * 31 + Arrays.hashCode(txHash);
-        return hash;
+        return hash; // (1 * 17 + index) * 31 + Arrays.hashCode(txHash), computed once
     }
 
     /** Compares this UTXO to the one specified by {@code utxo} */
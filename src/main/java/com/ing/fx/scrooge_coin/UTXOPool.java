@@ -1,8 +1,14 @@
 package com.ing.fx.scrooge_coin;
 
+import java.security.PublicKey;
 import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.Set;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Spliterator;
+import java.util.function.BiConsumer;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 import com.ing.fx.block_chain.Transaction;
 
 /**
@@ -13,32 +19,295 @@ import com.ing.fx.block_chain.Transaction;
  *  get the output corresponding to a given UTXO,
  *  check if a UTXO is in the pool,
  *  and get a list of all UTXOs in the pool.
+ *
+ *  nek: the entries live in a {@link UTXOStore}, a plain {@code HashMap} unless another store is given.
+ *  A pool on a {@link ConcurrentUTXOStore} can be shared by threads as long as it neither records a delta
+ *  nor keeps an address index, a set hash or a filter; {@link #spend} and {@link #addIfAbsent} are the atomic
+ *  ways to change it.
+ *  {@link #forEach}, {@link #stream} and {@link #parallelStream} read the store in place instead of copying it
+ *  like {@link #getAllUTXO()}. On a concurrent store such a scan is weakly consistent and does not block
+ *  writers, on a persistent store it reads a snapshot; on the other stores the pool must not change meanwhile.
+ *  The snapshot of a persistent store is taken without synchronization, so it only holds for a scan started on
+ *  the thread that changes the pool; an audit on another thread scans a copy made by the writing thread,
+ *  {@code new UTXOPool(pool)}, which is O(1) there.
  * */
 public class UTXOPool {
 
     /**
      * The current collection of UTXOs, with each one mapped to its corresponding transaction output
      */
-    private HashMap<UTXO, Transaction.Output> H;
+    private final UTXOStore H;
+
+    /** the undo log that currently records the changes to this pool, or null */
+    private UTXODelta recorder;
+
+    /** the UTXOs by address, built by the first address query and maintained from then on, or null */
+    private AddressIndex addressIndex;
+
+    /** the commitment to the UTXO set, built by the first {@link #setHash()} and maintained from then on, or null */
+    private UTXOSetHash setHash;
+
+    /** answers "not in the pool" before the store is asked, from {@link #useFilter(int)} on, or null */
+    private CuckooFilter filter;
 
     /** Creates a new empty UTXOPool */
     public UTXOPool() {
-        H = new HashMap<UTXO, Transaction.Output>();
+        H = new HashMapUTXOStore();
     }
 
-    /** Creates a new UTXOPool that is a copy of {@code uPool} */
+    /** Creates a new UTXOPool that keeps its UTXOs in {@code store}, e.g. an empty {@link OffHeapUTXOStore} */
+    public UTXOPool(UTXOStore store) {
+        H = store;
+    }
+
+    /** Creates a new UTXOPool that is a copy of {@code uPool}, kept in the same kind of store */
     public UTXOPool(UTXOPool uPool) {
-        H = new HashMap<UTXO, Transaction.Output>(uPool.H);
+        H = uPool.H.copy();
+        if (uPool.addressIndex != null)
+            addressIndex = uPool.addressIndex.copy();
+        if (uPool.setHash != null)
+            setHash = uPool.setHash.copy();
+        if (uPool.filter != null)
+            filter = uPool.filter.copy();
     }
 
     /** Adds a mapping from UTXO {@code utxo} to transaction output @code{txOut} to the pool */
     public void addUTXO(UTXO utxo, Transaction.Output txOut) {
-        H.put(utxo, txOut);
+        Transaction.Output previous = put(utxo, txOut);
+        if (recorder != null) {
+            if (previous != null)
+                recorder.recordSpent(utxo, previous); // overwritten, undo has to bring it back
+            recorder.recordCreated(utxo, txOut);
+        }
     }
 
     /** Removes the UTXO {@code utxo} from the pool */
     public void removeUTXO(UTXO utxo) {
-        H.remove(utxo);
+        spend(utxo);
+    }
+
+    /**
+     * Removes the UTXO ({@code txHash}, {@code index}) from the pool, probing with the caller's array
+     * instead of creating a UTXO
+     */
+    public void removeUTXO(byte[] txHash, int index) {
+        spend(txHash, index);
+    }
+
+    /**
+     * {@link #spend(UTXO)} of the UTXO ({@code txHash}, {@code index}), probing with the caller's array
+     *
+     * @return the output of the UTXO, or null if it was not in the pool
+     */
+    public Transaction.Output spend(byte[] txHash, int index) {
+        Transaction.Output removed = H.remove(txHash, index);
+        if (removed != null)
+            unindex(UTXO.probe(txHash, index), removed);
+        if (recorder != null && removed != null)
+            recorder.recordSpent(new UTXO(txHash, index), removed);
+        return removed;
+    }
+
+    /**
+     * Removes {@code utxo} if it is still in the pool, atomically on a {@link ConcurrentUTXOStore}: when
+     * threads race to spend the same UTXO, exactly one of them gets its output.
+     *
+     * @return the output of {@code utxo}, or null if it was not in the pool (spent already)
+     */
+    public Transaction.Output spend(UTXO utxo) {
+        Transaction.Output removed = delete(utxo);
+        if (recorder != null && removed != null)
+            recorder.recordSpent(utxo, removed);
+        return removed;
+    }
+
+    /**
+     * Adds {@code utxo} unless it is in the pool already, atomically on a {@link ConcurrentUTXOStore}
+     *
+     * @return true if {@code utxo} was added
+     */
+    public boolean addIfAbsent(UTXO utxo, Transaction.Output txOut) {
+        if (H.putIfAbsent(utxo, txOut) != null)
+            return false;
+        index(utxo, txOut);
+        if (recorder != null)
+            recorder.recordCreated(utxo, txOut);
+        return true;
+    }
+
+    /**
+     * Records every following {@link #addUTXO} and {@link #removeUTXO} into {@code delta} until
+     * {@link #stopRecording()} is called.
+     */
+    public void startRecording(UTXODelta delta) {
+        recorder = delta;
+    }
+
+    /** Stops recording changes into the delta given to {@link #startRecording(UTXODelta)} */
+    public void stopRecording() {
+        recorder = null;
+    }
+
+    /** Re-applies the changes recorded in {@code delta} to this pool, in O(delta.size()) */
+    public void apply(UTXODelta delta) {
+        delta.redo(this);
+    }
+
+    /** Undoes the changes recorded in {@code delta} from this pool, in O(delta.size()) */
+    public void rollback(UTXODelta delta) {
+        delta.undo(this);
+    }
+
+    /**
+     * adds without recording, used when applying or rolling back a delta
+     *
+     * @return the output {@code utxo} was mapped to before, or null
+     */
+    Transaction.Output put(UTXO utxo, Transaction.Output txOut) {
+        Transaction.Output previous = H.put(utxo, txOut);
+        if (previous != null)
+            unindex(utxo, previous);
+        index(utxo, txOut);
+        return previous;
+    }
+
+    /**
+     * removes without recording, used when applying or rolling back a delta
+     *
+     * @return the removed output, or null
+     */
+    Transaction.Output delete(UTXO utxo) {
+        Transaction.Output removed = H.remove(utxo);
+        if (removed != null)
+            unindex(utxo, removed);
+        return removed;
+    }
+
+    /** adds a new entry, already in the store, to the address index, the set hash and the filter the pool keeps */
+    private void index(UTXO utxo, Transaction.Output txOut) {
+        if (addressIndex != null)
+            addressIndex.add(utxo, txOut);
+        if (setHash != null)
+            setHash.add(utxo, txOut);
+        if (filter != null && !filter.add(utxo.getTxHash(), utxo.getIndex()))
+            filter = buildFilter(2 * filter.capacity()); // full, a fingerprint was lost
+    }
+
+    /** removes a gone entry from the address index, the set hash and the filter the pool keeps */
+    private void unindex(UTXO utxo, Transaction.Output txOut) {
+        if (addressIndex != null)
+            addressIndex.remove(utxo, txOut);
+        if (setHash != null)
+            setHash.remove(utxo, txOut);
+        if (filter != null)
+            filter.remove(utxo.getTxHash(), utxo.getIndex());
+    }
+
+    /**
+     * Puts a {@link CuckooFilter} in front of the store, sized for {@code expectedSize} UTXOs (or the current
+     * size if larger) and filled in O(pool). From then on every lookup of a UTXO that is not in the pool is
+     * answered by the filter in nearly all cases, without a store lookup. The pool keeps the filter up to
+     * date, a filter that fills up is rebuilt twice as large; copies of the pool share it copy-on-write.
+     *
+     * @return the filter, for its statistics
+     */
+    public CuckooFilter useFilter(int expectedSize) {
+        filter = buildFilter(Math.max(expectedSize, H.size()));
+        return filter;
+    }
+
+    /** @return the filter in front of the store, or null if the pool does not use one */
+    public CuckooFilter getFilter() {
+        return filter;
+    }
+
+    private CuckooFilter buildFilter(int expectedSize) {
+        while (true) {
+            final CuckooFilter built = new CuckooFilter(expectedSize);
+            final boolean[] full = new boolean[1];
+            H.forEach(new BiConsumer<UTXO, Transaction.Output>() {
+                public void accept(UTXO ut, Transaction.Output txOut) {
+                    if (!built.add(ut.getTxHash(), ut.getIndex()))
+                        full[0] = true;
+                }
+            });
+            if (!full[0])
+                return built;
+            expectedSize *= 2;
+        }
+    }
+
+    /** @return true if the filter says that the UTXO ({@code txHash}, {@code index}) is not in the pool */
+    private boolean filteredOut(byte[] txHash, int index) {
+        return filter != null && !filter.mightContain(txHash, index);
+    }
+
+    /** counts a store miss after the filter let the lookup through */
+    private Transaction.Output counted(Transaction.Output found) {
+        counted(found != null);
+        return found;
+    }
+
+    private boolean counted(boolean found) {
+        if (!found && filter != null)
+            filter.countFalsePositive();
+        return found;
+    }
+
+    /**
+     * @return a 32 byte commitment to the UTXOs of the pool and their outputs, see {@link UTXOSetHash}: pools
+     *         with the same entries have the same set hash, whatever store they use and in whatever order they
+     *         were built. The first call builds the hash in O(pool); from then on the pool updates it in O(1)
+     *         on every change, including rollbacks, and copies of the pool take it along.
+     */
+    public byte[] setHash() {
+        if (setHash == null) {
+            final UTXOSetHash hash = new UTXOSetHash();
+            H.forEach(new BiConsumer<UTXO, Transaction.Output>() {
+                public void accept(UTXO ut, Transaction.Output txOut) {
+                    hash.add(ut, txOut);
+                }
+            });
+            setHash = hash;
+        }
+        return setHash.digest();
+    }
+
+    /**
+     * @return the total value of the UTXOs paying to {@code address} or to its address hash, exact to the
+     *         base unit.
+     *         The first address query of a pool builds its address index in O(pool); from then on the pool
+     *         keeps the index up to date and this is a lookup.
+     */
+    public double balanceOf(PublicKey address) {
+        return CoinValue.toCoins(addressIndex().balanceOf(address));
+    }
+
+    /**
+     * Picks UTXOs of {@code address}, key and address hash ones alike, worth at least {@code amount}, for the
+     * inputs of a payment: the smallest
+     * single UTXO that covers the amount if there is one, otherwise the largest UTXOs first.
+     *
+     * @return the selected UTXOs, or null if the balance of {@code address} is less than {@code amount}
+     */
+    public ArrayList<UTXO> selectCoins(PublicKey address, double amount) {
+        long baseUnits = CoinValue.toBaseUnits(amount);
+        if (baseUnits == CoinValue.INVALID)
+            throw new IllegalArgumentException("invalid amount " + amount);
+        return addressIndex().selectCoins(address, baseUnits);
+    }
+
+    private AddressIndex addressIndex() {
+        if (addressIndex == null) {
+            final AddressIndex index = new AddressIndex();
+            H.forEach(new BiConsumer<UTXO, Transaction.Output>() {
+                public void accept(UTXO ut, Transaction.Output txOut) {
+                    index.add(ut, txOut);
+                }
+            });
+            addressIndex = index;
+        }
+        return addressIndex;
     }
 
     /**
@@ -46,21 +315,111 @@ public class UTXOPool {
      *         not in the pool.
      */
     public Transaction.Output getTxOutput(UTXO ut) {
-        return H.get(ut);
+        if (filteredOut(ut.getTxHash(), ut.getIndex()))
+            return null;
+        return counted(H.get(ut));
+    }
+
+    /**
+     * @return the transaction output of the UTXO ({@code txHash}, {@code index}), or null if it is not in
+     *         the pool; does not allocate for lookups, the caller's array is hashed and compared in place
+     */
+    public Transaction.Output getTxOutput(byte[] txHash, int index) {
+        if (filteredOut(txHash, index))
+            return null;
+        return counted(H.get(txHash, index));
+    }
+
+    /** @return true if the UTXO ({@code txHash}, {@code index}) is in the pool, without allocating */
+    public boolean contains(byte[] txHash, int index) {
+        return !filteredOut(txHash, index) && counted(H.contains(txHash, index));
     }
 
     /** @return true if UTXO {@code utxo} is in the pool and false otherwise */
     public boolean contains(UTXO utxo) {
-        return H.containsKey(utxo);
+        return !filteredOut(utxo.getTxHash(), utxo.getIndex()) && counted(H.contains(utxo));
+    }
+
+    /** @return the number of UTXOs in the pool */
+    public int size() {
+        return H.size();
+    }
+
+    /** Calls {@code action} for every UTXO in the pool and its output, in no particular order */
+    public void forEach(BiConsumer<? super UTXO, ? super Transaction.Output> action) {
+        H.forEach(action);
+    }
+
+    /** @return the UTXOs in the pool with their outputs, as immutable entries, without copying the pool */
+    public Spliterator<Map.Entry<UTXO, Transaction.Output>> spliterator() {
+        return H.spliterator();
+    }
+
+    /** @return a sequential stream of the UTXOs in the pool with their outputs */
+    public Stream<Map.Entry<UTXO, Transaction.Output>> stream() {
+        return StreamSupport.stream(H.spliterator(), false);
+    }
+
+    /** @return a parallel stream of the UTXOs in the pool with their outputs, split by the store */
+    public Stream<Map.Entry<UTXO, Transaction.Output>> parallelStream() {
+        return StreamSupport.stream(H.spliterator(), true);
+    }
+
+    /**
+     * @return the total value of all UTXOs in the pool, summed in parallel and exact to the base unit
+     * @throws ArithmeticException if the total does not fit in a long of base units
+     */
+    public double totalSupply() {
+        long total = parallelStream()
+                .mapToLong(e -> CoinValue.toBaseUnits(e.getValue().value))
+                .reduce(0, CoinValue::add);
+        if (total == CoinValue.INVALID)
+            throw new ArithmeticException("total supply out of range");
+        return CoinValue.toCoins(total);
+    }
+
+    /**
+     * Counts the UTXOs by value, in parallel. Bucket 0 counts the values below {@code bounds[0]}, bucket k the
+     * values from {@code bounds[k - 1]} up to but not including {@code bounds[k]}, the last bucket the values
+     * from the last bound up.
+     *
+     * @param bounds strictly ascending bucket bounds, in coins
+     * @return {@code bounds.length + 1} counts
+     */
+    public long[] valueHistogram(final double... bounds) {
+        for (int k = 1; k < bounds.length; k++)
+            if (!(bounds[k - 1] < bounds[k]))
+                throw new IllegalArgumentException("bounds not strictly ascending at " + k);
+        return parallelStream().collect(
+                () -> new long[bounds.length + 1],
+                (counts, e) -> {
+                    int k = Arrays.binarySearch(bounds, e.getValue().value);
+                    counts[k >= 0 ? k + 1 : -k - 1]++;
+                },
+                (counts, other) -> {
+                    for (int k = 0; k < counts.length; k++)
+                        counts[k] += other[k];
+                });
+    }
+
+    /**
+     * @return the number of UTXOs of every key address in the pool, counted in parallel; pay-to-key-hash
+     *         outputs have no key and are left out
+     */
+    public Map<PublicKey, Long> countPerAddress() {
+        return parallelStream()
+                .filter(e -> e.getValue().address != null)
+                .collect(Collectors.groupingByConcurrent(e -> e.getValue().address, Collectors.counting()));
     }
 
     /** Returns an {@code ArrayList} of all UTXOs in the pool */
     public ArrayList<UTXO> getAllUTXO() {
-        Set<UTXO> setUTXO = H.keySet();
-        ArrayList<UTXO> allUTXO = new ArrayList<UTXO>();
-        for (UTXO ut : setUTXO) {
-            allUTXO.add(ut);
-        }
+        final ArrayList<UTXO> allUTXO = new ArrayList<UTXO>(H.size());
+        H.forEach(new BiConsumer<UTXO, Transaction.Output>() {
+            public void accept(UTXO ut, Transaction.Output txOut) {
+                allUTXO.add(ut);
+            }
+        });
         return allUTXO;
     }
 }
@@ -0,0 +1,113 @@
+package com.ing.fx.scrooge_coin;
+
+import java.math.BigInteger;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import com.ing.fx.block_chain.Transaction;
+
+/**
+ * An order independent hash of a set of UTXOs that is updated in O(1) per added or removed UTXO, a
+ * multiplicative multiset hash in the style of MuHash3072.
+ * Every entry (UTXO, output) is hashed to a number modulo the prime {@link #MODULUS} = 2^3072 - 1103717;
+ * the set hash is the product of the numbers of its entries. Multiplication commutes, so two sets with the
+ * same entries have the same hash however they were built, and removing an entry divides its number out.
+ *
+ * nek: a division costs a modular inverse, so removals are multiplied into a separate denominator and the
+ * one inverse is only paid for when the {@link #digest()} is read. Finding a different set with the same
+ * hash is as hard as the discrete logarithm in the group, like for the 3072 bit RSA of the signatures.
+ * */
+public class UTXOSetHash {
+
+    /** the prime 2^3072 - 1103717 */
+    public static final BigInteger MODULUS = BigInteger.ONE.shiftLeft(3072).subtract(BigInteger.valueOf(1103717));
+
+    private static final int ELEMENT_BYTES = 3072 / 8;
+
+    private static final ThreadLocal<MessageDigest> SHA256 = new ThreadLocal<MessageDigest>() {
+        @Override
+        protected MessageDigest initialValue() {
+            try {
+                return MessageDigest.getInstance("SHA-256");
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+    };
+
+    private BigInteger numerator;
+    private BigInteger denominator;
+
+    /** Creates the hash of the empty set */
+    public UTXOSetHash() {
+        this(BigInteger.ONE, BigInteger.ONE);
+    }
+
+    private UTXOSetHash(BigInteger numerator, BigInteger denominator) {
+        this.numerator = numerator;
+        this.denominator = denominator;
+    }
+
+    /** Adds the entry ({@code utxo}, {@code txOut}) to the hashed set */
+    public void add(UTXO utxo, Transaction.Output txOut) {
+        numerator = numerator.multiply(element(utxo, txOut)).mod(MODULUS);
+    }
+
+    /** Removes the entry ({@code utxo}, {@code txOut}), which has to be in the hashed set */
+    public void remove(UTXO utxo, Transaction.Output txOut) {
+        denominator = denominator.multiply(element(utxo, txOut)).mod(MODULUS);
+    }
+
+    /** @return an independent hash of the same set */
+    public UTXOSetHash copy() {
+        return new UTXOSetHash(numerator, denominator);
+    }
+
+    /**
+     * @return the 32 byte SHA-256 of the set hash; equal for equal sets, whatever the order of the changes
+     *         that led to them
+     */
+    public byte[] digest() {
+        if (!denominator.equals(BigInteger.ONE)) {
+            numerator = numerator.multiply(denominator.modInverse(MODULUS)).mod(MODULUS);
+            denominator = BigInteger.ONE;
+        }
+        byte[] bytes = numerator.toByteArray();
+        byte[] fixed = new byte[ELEMENT_BYTES]; // without the sign byte and leading zeros of toByteArray
+        int length = Math.min(bytes.length, ELEMENT_BYTES);
+        System.arraycopy(bytes, bytes.length - length, fixed, ELEMENT_BYTES - length, length);
+        return SHA256.get().digest(fixed);
+    }
+
+    /**
+     * @return the number of the entry: the SHA-256 of (hash, index, value, address or address hash)
+     *         stretched to 3072 bits
+     *         by hashing it again with a counter
+     */
+    private static BigInteger element(UTXO utxo, Transaction.Output txOut) {
+        MessageDigest md = SHA256.get();
+        byte[] txHash = utxo.getTxHash();
+        updateInt(md, txHash.length);
+        md.update(txHash);
+        updateInt(md, utxo.getIndex());
+        long value = Double.doubleToLongBits(txOut.value);
+        updateInt(md, (int) (value >>> 32));
+        updateInt(md, (int) value);
+        md.update(txOut.addressHash != null ? txOut.addressHash : txOut.address.getEncoded());
+        byte[] seed = md.digest();
+
+        byte[] stretched = new byte[ELEMENT_BYTES];
+        for (int block = 0; block < ELEMENT_BYTES / 32; block++) {
+            md.update(seed);
+            md.update((byte) block);
+            System.arraycopy(md.digest(), 0, stretched, 32 * block, 32);
+        }
+        return new BigInteger(1, stretched).mod(MODULUS);
+    }
+
+    private static void updateInt(MessageDigest md, int value) {
+        md.update((byte) (value >>> 24));
+        md.update((byte) (value >>> 16));
+        md.update((byte) (value >>> 8));
+        md.update((byte) value);
+    }
+}
@@ -0,0 +1,116 @@
+package com.ing.fx.scrooge_coin;
+
+import java.util.AbstractMap;
+import java.util.Map;
+import java.util.Spliterator;
+import java.util.function.Consumer;
+import com.ing.fx.block_chain.Transaction;
+
+/**
+ * The spliterators behind {@link UTXOStore#spliterator()}. Every store hands out immutable entries, so a
+ * scan can never change a store behind the back of its pool.
+ * */
+final class UTXOSpliterators {
+
+    private UTXOSpliterators() {
+    }
+
+    /** @return the entries of {@code map} as immutable entries, splitting as the map's own spliterator does */
+    static Spliterator<Map.Entry<UTXO, Transaction.Output>> of(Map<UTXO, Transaction.Output> map) {
+        return new Immutable(map.entrySet().spliterator());
+    }
+
+    /** hands out a copy of every entry of the map spliterator it wraps, the map's own entries are mutable */
+    private static final class Immutable implements Spliterator<Map.Entry<UTXO, Transaction.Output>> {
+        private final Spliterator<Map.Entry<UTXO, Transaction.Output>> entries;
+
+        Immutable(Spliterator<Map.Entry<UTXO, Transaction.Output>> entries) {
+            this.entries = entries;
+        }
+
+        public boolean tryAdvance(final Consumer<? super Map.Entry<UTXO, Transaction.Output>> action) {
+            return entries.tryAdvance(new Consumer<Map.Entry<UTXO, Transaction.Output>>() {
+                public void accept(Map.Entry<UTXO, Transaction.Output> entry) {
+                    action.accept(new AbstractMap.SimpleImmutableEntry<>(entry));
+                }
+            });
+        }
+
+        public Spliterator<Map.Entry<UTXO, Transaction.Output>> trySplit() {
+            Spliterator<Map.Entry<UTXO, Transaction.Output>> prefix = entries.trySplit();
+            return prefix == null ? null : new Immutable(prefix);
+        }
+
+        public long estimateSize() {
+            return entries.estimateSize();
+        }
+
+        public int characteristics() {
+            return entries.characteristics() & (DISTINCT | NONNULL | SIZED | SUBSIZED | CONCURRENT);
+        }
+    }
+
+    /**
+     * A spliterator over the slots [from, to) of an open addressing table, for the stores that keep their
+     * records in numbered slots. It splits by halving the slot range; the keys are hashed, so that halves
+     * the entries as well.
+     */
+    abstract static class Slots implements Spliterator<Map.Entry<UTXO, Transaction.Output>> {
+
+        /** ranges smaller than this are not split, a task would cost more than scanning them */
+        private static final long MIN_SPLIT = 4096;
+
+        private long slot;
+        private final long end;
+        /** the used fraction of the slots, for the size estimate */
+        private final double fill;
+
+        Slots(long from, long to, double fill) {
+            this.slot = from;
+            this.end = to;
+            this.fill = fill;
+        }
+
+        /** @return the entry in {@code slot}, or null if the slot is empty or removed */
+        abstract Map.Entry<UTXO, Transaction.Output> entryAt(long slot);
+
+        /** @return a spliterator of the same table over the slots [from, to) */
+        abstract Slots range(long from, long to);
+
+        public boolean tryAdvance(Consumer<? super Map.Entry<UTXO, Transaction.Output>> action) {
+            while (slot < end) {
+                Map.Entry<UTXO, Transaction.Output> entry = entryAt(slot++);
+                if (entry != null) {
+                    action.accept(entry);
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        public void forEachRemaining(Consumer<? super Map.Entry<UTXO, Transaction.Output>> action) {
+            for (; slot < end; slot++) {
+                Map.Entry<UTXO, Transaction.Output> entry = entryAt(slot);
+                if (entry != null)
+                    action.accept(entry);
+            }
+        }
+
+        public Spliterator<Map.Entry<UTXO, Transaction.Output>> trySplit() {
+            if (end - slot < MIN_SPLIT)
+                return null;
+            long middle = slot + (end - slot) / 2;
+            Slots prefix = range(slot, middle);
+            slot = middle;
+            return prefix;
+        }
+
+        public long estimateSize() {
+            return (long) ((end - slot) * fill);
+        }
+
+        public int characteristics() {
+            return DISTINCT | NONNULL;
+        }
+    }
+}
@@ -0,0 +1,83 @@
+package com.ing.fx.scrooge_coin;
+
+import java.util.Map;
+import java.util.Spliterator;
+import java.util.function.BiConsumer;
+import com.ing.fx.block_chain.Transaction;
+
+/**
+ * The map from UTXO to transaction output behind a {@link UTXOPool}.
+ * The pool keeps the API and the undo log, a store only decides how the entries are kept in memory,
+ * e.g. {@link HashMapUTXOStore} on the heap or {@link OffHeapUTXOStore} in direct buffers.
+ * A store is not thread safe unless the implementation says so.
+ * */
+public interface UTXOStore {
+
+    /** @return the output of {@code utxo}, or null if {@code utxo} is not in the store */
+    Transaction.Output get(UTXO utxo);
+
+    /**
+     * Maps {@code utxo} to {@code txOut}
+     *
+     * @return the output {@code utxo} was mapped to before, or null
+     */
+    Transaction.Output put(UTXO utxo, Transaction.Output txOut);
+
+    /**
+     * Maps {@code utxo} to {@code txOut} unless {@code utxo} is in the store already; atomic in thread safe
+     * stores
+     *
+     * @return the output {@code utxo} is mapped to, or null if {@code txOut} was added
+     */
+    default Transaction.Output putIfAbsent(UTXO utxo, Transaction.Output txOut) {
+        Transaction.Output current = get(utxo);
+        return current != null ? current : put(utxo, txOut);
+    }
+
+    /**
+     * Removes {@code utxo}
+     *
+     * @return the output {@code utxo} was mapped to, or null if it was not in the store
+     */
+    Transaction.Output remove(UTXO utxo);
+
+    /** @return true if {@code utxo} is in the store */
+    boolean contains(UTXO utxo);
+
+    /**
+     * @return the output of the UTXO ({@code txHash}, {@code index}), or null; looks up the caller's array
+     *         as it is, without creating a UTXO
+     */
+    default Transaction.Output get(byte[] txHash, int index) {
+        return get(UTXO.probe(txHash, index));
+    }
+
+    /** @return true if the UTXO ({@code txHash}, {@code index}) is in the store, without creating a UTXO */
+    default boolean contains(byte[] txHash, int index) {
+        return contains(UTXO.probe(txHash, index));
+    }
+
+    /**
+     * Removes the UTXO ({@code txHash}, {@code index}) without creating a UTXO
+     *
+     * @return the output it was mapped to, or null if it was not in the store
+     */
+    default Transaction.Output remove(byte[] txHash, int index) {
+        return remove(UTXO.probe(txHash, index));
+    }
+
+    /** @return the number of UTXOs in the store */
+    int size();
+
+    /** @return an independent store with the same entries, changes to one are not seen by the other */
+    UTXOStore copy();
+
+    /** Calls {@code action} for every entry of the store, in no particular order */
+    void forEach(BiConsumer<? super UTXO, ? super Transaction.Output> action);
+
+    /**
+     * @return the entries of the store as immutable (UTXO, output) pairs, in no particular order and without
+     *         copying the store; splits into parts of about equal size, for parallel streams
+     */
+    Spliterator<Map.Entry<UTXO, Transaction.Output>> spliterator();
+}
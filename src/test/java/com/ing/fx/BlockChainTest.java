@@ -0,0 +1,236 @@
+package com.ing.fx;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.security.KeyPair;
+import java.security.NoSuchAlgorithmException;
+import java.security.SignatureException;
+
+import com.ing.fx.block_chain.Block;
+import com.ing.fx.block_chain.BlockChain;
+import com.ing.fx.block_chain.Transaction;
+import com.ing.fx.scrooge_coin.UTXO;
+import com.ing.fx.scrooge_coin.UTXOPool;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Unit tests for {@link BlockChain#addBlock(Block)}
+ * <p>
+ * Test Strategy:
+ * Test 1: a block with valid transactions is added on top of the genesis block and becomes the max height block
+ * Test 2: a block with a transaction signed by the wrong key is rejected
+ * Test 3: a block with two transactions spending the same output is rejected
+ * Test 4: a block on an unknown parent, or without a parent, is rejected
+ * Test 5: a block on another block than the max height one starts a fork, the longer fork becomes the max height
+ * Test 6: a block is accepted on a parent up to CUT_OFF_AGE below the max height, not lower
+ * Test 7: the pool of the max height block follows a switch to another fork, and each branch keeps its own
+ * Test 8: a rejected block leaves the pool of its parent as it was, also when its first transactions were valid
+ * Test 9: a fork on the lowest block within CUT_OFF_AGE still has the pool of that block, a fork one lower is
+ * rejected, also once the pool of its parent was released
+ */
+public class BlockChainTest {
+
+    private KeyPair scrooge;
+    private KeyPair alice;
+    private Block genesis;
+    private BlockChain blockChain;
+
+    @Before
+    public void setUp() throws NoSuchAlgorithmException {
+        scrooge = Fixtures.keyPair();
+        alice = Fixtures.keyPair();
+        genesis = new Block(null, scrooge.getPublic());
+        genesis.finalize();
+        blockChain = new BlockChain(genesis);
+    }
+
+    /** @return a transaction paying output {@code index} of {@code from} to alice, signed by {@code signer} */
+    private Transaction pay(Transaction from, int index, KeyPair signer) throws SignatureException {
+        return Fixtures.pay(from, index, signer, alice.getPublic(), Block.COINBASE);
+    }
+
+    /** @return a finalized block on {@code parent} with {@code txs}, its coinbase going to alice */
+    private Block block(Block parent, Transaction... txs) {
+        Block block = new Block(parent.getHash(), alice.getPublic());
+        for (Transaction tx : txs)
+            block.addTransaction(tx);
+        block.finalize();
+        return block;
+    }
+
+    // Test 1: a block with valid transactions is added on top of the genesis block and becomes the max height block
+    @Test
+    public void testValidBlock() throws SignatureException {
+        Transaction tx = pay(genesis.getCoinbase(), 0, scrooge);
+        Block block = block(genesis, tx);
+
+        assertTrue(blockChain.addBlock(block));
+        assertSame(block, blockChain.getMaxHeightBlock());
+        UTXOPool pool = blockChain.getMaxHeightUTXOPool();
+        assertNull(pool.getTxOutput(new UTXO(genesis.getCoinbase().getHash(), 0)));
+        assertEquals(tx.getOutput(0), pool.getTxOutput(new UTXO(tx.getHash(), 0)));
+        assertTrue(pool.contains(new UTXO(block.getCoinbase().getHash(), 0)));
+    }
+
+    // Test 2: a block with a transaction signed by the wrong key is rejected
+    @Test
+    public void testBadSignature() throws SignatureException {
+        Block block = block(genesis, pay(genesis.getCoinbase(), 0, alice));
+
+        assertFalse(blockChain.addBlock(block));
+        assertSame(genesis, blockChain.getMaxHeightBlock());
+        assertTrue(blockChain.getMaxHeightUTXOPool().contains(new UTXO(genesis.getCoinbase().getHash(), 0)));
+    }
+
+    // Test 3: a block with two transactions spending the same output is rejected
+    @Test
+    public void testDoubleSpendInBlock() throws SignatureException {
+        Transaction first = pay(genesis.getCoinbase(), 0, scrooge);
+        Transaction second = new Transaction();
+        second.addInput(genesis.getCoinbase().getHash(), 0);
+        second.addOutput(1, scrooge.getPublic());
+        second.signTx(scrooge.getPrivate(), 0);
+
+        assertFalse(blockChain.addBlock(block(genesis, first, second)));
+        assertSame(genesis, blockChain.getMaxHeightBlock());
+        assertTrue(blockChain.addBlock(block(genesis, first)));
+    }
+
+    // Test 4: a block on an unknown parent, or without a parent, is rejected
+    @Test
+    public void testUnknownParent() throws SignatureException {
+        Block orphan = new Block(new byte[32], alice.getPublic());
+        orphan.addTransaction(pay(genesis.getCoinbase(), 0, scrooge));
+        orphan.finalize();
+        assertFalse(blockChain.addBlock(orphan));
+
+        Block secondGenesis = new Block(null, alice.getPublic());
+        secondGenesis.finalize();
+        assertFalse(blockChain.addBlock(secondGenesis));
+        assertSame(genesis, blockChain.getMaxHeightBlock());
+    }
+
+    // Test 5: a block on another block than the max height one starts a fork, the longer fork becomes the max height
+    @Test
+    public void testFork() throws SignatureException {
+        Block main = block(genesis, pay(genesis.getCoinbase(), 0, scrooge));
+        assertTrue(blockChain.addBlock(main));
+
+        // the same coin spent again on the other branch, where it is still unspent
+        Transaction other = new Transaction();
+        other.addInput(genesis.getCoinbase().getHash(), 0);
+        other.addOutput(Block.COINBASE, scrooge.getPublic());
+        other.signTx(scrooge.getPrivate(), 0);
+        Block fork = block(genesis, other);
+        assertTrue(blockChain.addBlock(fork));
+        assertSame("of two blocks at the same height the oldest one stays", main, blockChain.getMaxHeightBlock());
+
+        Block forkTip = block(fork);
+        assertTrue(blockChain.addBlock(forkTip));
+        assertSame(forkTip, blockChain.getMaxHeightBlock());
+        assertArrayEquals(fork.getHash(), forkTip.getPrevBlockHash());
+    }
+
+    // Test 6: a block is accepted on a parent up to CUT_OFF_AGE below the max height, not lower
+    @Test
+    public void testCutOffAge() throws SignatureException {
+        Block tip = genesis;
+        for (int i = 0; i < BlockChain.CUT_OFF_AGE; i++) {
+            tip = block(tip);
+            assertTrue(blockChain.addBlock(tip));
+        }
+        // the max height is CUT_OFF_AGE + 1, so a block at height 2 is still allowed
+        assertTrue(blockChain.addBlock(block(genesis, pay(genesis.getCoinbase(), 0, scrooge))));
+
+        tip = block(tip);
+        assertTrue(blockChain.addBlock(tip));
+        Transaction again = new Transaction();
+        again.addInput(genesis.getCoinbase().getHash(), 0);
+        again.addOutput(1, scrooge.getPublic());
+        again.signTx(scrooge.getPrivate(), 0);
+        assertFalse(blockChain.addBlock(block(genesis, again)));
+        assertSame(tip, blockChain.getMaxHeightBlock());
+    }
+
+    // Test 7: the pool of the max height block follows a switch to another fork, and each branch keeps its own
+    @Test
+    public void testPoolFollowsFork() throws SignatureException {
+        Transaction toAlice = pay(genesis.getCoinbase(), 0, scrooge);
+        Block main = block(genesis, toAlice);
+        assertTrue(blockChain.addBlock(main));
+        Transaction toScrooge = new Transaction();
+        toScrooge.addInput(genesis.getCoinbase().getHash(), 0);
+        toScrooge.addOutput(Block.COINBASE, scrooge.getPublic());
+        toScrooge.signTx(scrooge.getPrivate(), 0);
+        Block fork = block(genesis, toScrooge);
+        assertTrue(blockChain.addBlock(fork));
+        assertTrue(blockChain.getMaxHeightUTXOPool().contains(new UTXO(toAlice.getHash(), 0)));
+
+        Transaction forkSpend = pay(toScrooge, 0, scrooge);
+        assertTrue(blockChain.addBlock(block(fork, forkSpend)));
+        UTXOPool pool = blockChain.getMaxHeightUTXOPool();
+        assertFalse(pool.contains(new UTXO(toAlice.getHash(), 0)));
+        assertFalse(pool.contains(new UTXO(toScrooge.getHash(), 0)));
+        assertTrue(pool.contains(new UTXO(forkSpend.getHash(), 0)));
+
+        // the old branch still spends from its own state, which knows nothing of the fork
+        assertFalse(blockChain.addBlock(block(main, pay(toScrooge, 0, scrooge))));
+        assertTrue(blockChain.addBlock(block(main, pay(toAlice, 0, alice))));
+        pool.removeUTXO(new UTXO(forkSpend.getHash(), 0)); // a snapshot, the chain does not see this
+        assertTrue(blockChain.getMaxHeightUTXOPool().contains(new UTXO(forkSpend.getHash(), 0)));
+    }
+
+    // Test 8: a rejected block leaves the pool of its parent as it was, also when its first transactions were valid
+    @Test
+    public void testRejectedBlockKeepsParentPool() throws SignatureException {
+        Transaction valid = pay(genesis.getCoinbase(), 0, scrooge);
+        Transaction invalid = pay(valid, 0, scrooge); // alice owns the output
+        UTXOPool before = blockChain.getMaxHeightUTXOPool();
+
+        assertFalse(blockChain.addBlock(block(genesis, valid, invalid)));
+        UTXOPool after = blockChain.getMaxHeightUTXOPool();
+        assertArrayEquals(before.setHash(), after.setHash());
+        assertTrue(after.contains(new UTXO(genesis.getCoinbase().getHash(), 0)));
+        assertFalse(after.contains(new UTXO(valid.getHash(), 0)));
+
+        assertTrue(blockChain.addBlock(block(genesis, valid, pay(valid, 0, alice))));
+    }
+
+    // Test 9: a fork on the lowest block within CUT_OFF_AGE still has the pool of that block, a fork one lower is
+    // rejected, also once the pool of its parent was released
+    @Test
+    public void testForkAtCutOffAge() throws SignatureException {
+        Transaction toAlice = pay(genesis.getCoinbase(), 0, scrooge);
+        Block[] chain = new Block[BlockChain.CUT_OFF_AGE + 7]; // by height, the genesis block is at height 1
+        chain[1] = genesis;
+        chain[2] = block(genesis, toAlice);
+        assertTrue(blockChain.addBlock(chain[2]));
+        int tail = BlockChain.CUT_OFF_AGE + 5;
+        for (int height = 3; height <= tail; height++) {
+            chain[height] = block(chain[height - 1]);
+            assertTrue(blockChain.addBlock(chain[height]));
+        }
+
+        int lowest = tail - BlockChain.CUT_OFF_AGE;
+        Transaction fromAlice = pay(toAlice, 0, alice);
+        assertTrue(blockChain.addBlock(block(chain[lowest], fromAlice)));
+        assertFalse(blockChain.addBlock(block(chain[lowest - 1], fromAlice)));
+        assertSame(chain[tail], blockChain.getMaxHeightBlock());
+
+        chain[tail + 1] = block(chain[tail]);
+        assertTrue(blockChain.addBlock(chain[tail + 1]));
+        Transaction toScrooge = new Transaction();
+        toScrooge.addInput(toAlice.getHash(), 0);
+        toScrooge.addOutput(1, scrooge.getPublic());
+        toScrooge.signTx(alice.getPrivate(), 0);
+        assertFalse(blockChain.addBlock(block(chain[lowest], toScrooge)));
+        assertTrue(blockChain.addBlock(block(chain[lowest + 1], toScrooge)));
+        assertSame(chain[tail + 1], blockChain.getMaxHeightBlock());
+    }
+}
@@ -0,0 +1,110 @@
+package com.ing.fx;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.security.KeyPair;
+import java.security.NoSuchAlgorithmException;
+import java.security.PublicKey;
+import java.security.Signature;
+import java.security.SignatureException;
+import java.util.BitSet;
+
+import com.ing.fx.block_chain.Transaction;
+import com.ing.fx.scrooge_coin.Crypto;
+import com.ing.fx.scrooge_coin.SignatureCache;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Unit tests for {@link Crypto}
+ * <p>
+ * Test Strategy:
+ * Test 1: a valid signature is verified once and then served by the signature cache
+ * Test 2: an invalid signature is never cached
+ * Test 3: verifyAll reports the result of every check in its bitmap
+ * Test 4: a signature over a sighash is the SHA256withRSA signature of the raw data, and verifies either way
+ */
+public class CryptoTest {
+
+    private KeyPair scrooge;
+    private KeyPair alice;
+    private Transaction tx;
+
+    @Before
+    public void setUp() throws NoSuchAlgorithmException, SignatureException {
+        scrooge = Fixtures.keyPair();
+        alice = Fixtures.keyPair();
+        tx = new Transaction();
+        tx.addInput(new byte[32], 0);
+        tx.addOutput(10, alice.getPublic());
+        tx.signTx(scrooge.getPrivate(), 0);
+    }
+
+    // Test 1: a valid signature is verified once and then served by the signature cache
+    @Test
+    public void testValidSignatureIsCached() {
+        SignatureCache cache = SignatureCache.getShared();
+        byte[] message = tx.getRawDataToSign(0);
+        byte[] signature = tx.getInput(0).signature;
+
+        assertTrue(Crypto.verifySignature(scrooge.getPublic(), message, signature));
+        long hits = cache.getHits();
+        assertTrue(Crypto.verifySignature(scrooge.getPublic(), message, signature));
+        assertEquals(hits + 1, cache.getHits());
+    }
+
+    // Test 2: an invalid signature is never cached
+    @Test
+    public void testInvalidSignatureIsNotCached() {
+        SignatureCache cache = SignatureCache.getShared();
+        byte[] message = tx.getRawDataToSign(0);
+        byte[] signature = tx.getInput(0).signature;
+
+        assertFalse(Crypto.verifySignature(alice.getPublic(), message, signature));
+        assertFalse(cache.contains(SignatureCache.entryOf(alice.getPublic(), message, signature)));
+        assertFalse(Crypto.verifySignature(alice.getPublic(), message, signature));
+    }
+
+    // Test 3: verifyAll reports the result of every check in its bitmap
+    @Test
+    public void testVerifyAll() {
+        int n = 130; // spans three bitmap words
+        PublicKey[] keys = new PublicKey[n];
+        byte[][] messages = new byte[n][];
+        byte[][] signatures = new byte[n][];
+        for (int i = 0; i < n; i++) {
+            keys[i] = i % 7 == 3 ? alice.getPublic() : scrooge.getPublic();
+            messages[i] = tx.getRawDataToSign(0);
+            signatures[i] = tx.getInput(0).signature;
+        }
+
+        BitSet valid = Crypto.verifyAll(keys, messages, signatures);
+
+        for (int i = 0; i < n; i++)
+            assertEquals(i % 7 != 3, valid.get(i));
+    }
+
+    // Test 4: a signature over a sighash is the SHA256withRSA signature of the raw data, and verifies either way
+    @Test
+    public void testDigestSignatures() throws Exception {
+        tx.addInput(new byte[]{1, 2}, 3);
+        byte[] message = tx.getRawDataToSign(1);
+        Signature sig = Signature.getInstance("SHA256withRSA");
+        sig.initSign(alice.getPrivate());
+        sig.update(message);
+        byte[] expected = sig.sign();
+
+        byte[] signature = Crypto.signDigest(alice.getPrivate(), tx.getSigHash(1));
+        assertArrayEquals(expected, signature);
+        assertTrue(Crypto.verifyDigest(alice.getPublic(), tx.getSigHash(1), signature));
+        assertTrue(Crypto.verifySignature(alice.getPublic(), message, signature));
+        assertFalse(Crypto.verifyDigest(alice.getPublic(), tx.getSigHash(0), signature));
+        assertFalse(Crypto.verifyDigest(scrooge.getPublic(), tx.getSigHash(1), signature));
+        assertEquals(2, Crypto.verifyAllDigests(new PublicKey[]{scrooge.getPublic(), alice.getPublic()},
+                new byte[][]{tx.getSigHash(0), tx.getSigHash(1)},
+                new byte[][]{tx.getInput(0).signature, signature}).cardinality());
+    }
+}
@@ -0,0 +1,57 @@
+package com.ing.fx;
+
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.NoSuchAlgorithmException;
+import java.security.PublicKey;
+import java.security.SignatureException;
+
+import com.ing.fx.block_chain.Transaction;
+import com.ing.fx.scrooge_coin.UTXO;
+import com.ing.fx.scrooge_coin.UTXOPool;
+
+/**
+ * Fixtures shared by the unit tests: key pairs, coins made out of thin air, the pool holding them and payments
+ * spending them.
+ */
+final class Fixtures {
+
+    private Fixtures() {
+    }
+
+    /** @return a new RSA key pair */
+    static KeyPair keyPair() throws NoSuchAlgorithmException {
+        return KeyPairGenerator.getInstance("RSA").generateKeyPair();
+    }
+
+    /** @return a finalized transaction without inputs, giving {@code count} coins of {@code value} to {@code owner} */
+    static Transaction coins(PublicKey owner, int count, double value) {
+        Transaction tx = new Transaction();
+        for (int i = 0; i < count; i++)
+            tx.addOutput(value, owner);
+        tx.finalize();
+        return tx;
+    }
+
+    /** @return a pool holding every output of {@code tx} */
+    static UTXOPool poolOf(Transaction tx) {
+        UTXOPool pool = new UTXOPool();
+        for (int i = 0; i < tx.numOutputs(); i++)
+            pool.addUTXO(new UTXO(tx.getHash(), i), tx.getOutput(i));
+        return pool;
+    }
+
+    /**
+     * @return a transaction paying output {@code index} of {@code from} to {@code to}, one output per value, signed by
+     * {@code signer}
+     */
+    static Transaction pay(Transaction from, int index, KeyPair signer, PublicKey to, double... values)
+            throws SignatureException {
+        Transaction tx = new Transaction();
+        tx.addInput(from.getHash(), index);
+        for (double value : values)
+            tx.addOutput(value, to);
+        tx.signTx(signer.getPrivate(), 0);
+        return tx;
+    }
+}
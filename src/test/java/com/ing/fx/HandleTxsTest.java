@@ -0,0 +1,169 @@
+package com.ing.fx;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.security.KeyPair;
+import java.security.NoSuchAlgorithmException;
+import java.security.SignatureException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+
+import com.ing.fx.block_chain.Transaction;
+import com.ing.fx.scrooge_coin.RejectReason;
+import com.ing.fx.scrooge_coin.TxListener;
+import com.ing.fx.scrooge_coin.TxHandler;
+import com.ing.fx.scrooge_coin.UTXO;
+import com.ing.fx.scrooge_coin.UTXOPool;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Unit tests for {@link TxHandler#handleTxsOrdered(Transaction[])}
+ * <p>
+ * Test Strategy:
+ * Test 1: a child listed before its parent is accepted together with the parent
+ * Test 2: of two transactions claiming the same output, the earliest one wins
+ * Test 3: a transaction spending an output of a rejected parent is rejected
+ * Test 4: the streaming handler reports every transaction in order, with the reason of each rejection
+ * Test 5: the parallel handler accepts the same transactions and leaves the same pool as the sequential one, and
+ * reads the current pool on the caller thread only
+ * Test 6: a pay-to-key-hash output is only spent by an input that reveals the key of its hash
+ */
+public class HandleTxsTest {
+
+    private KeyPair scrooge;
+    private KeyPair alice;
+    private Transaction root;
+    private UTXOPool utxoPool;
+
+    @Before
+    public void setUp() throws NoSuchAlgorithmException {
+        scrooge = Fixtures.keyPair();
+        alice = Fixtures.keyPair();
+        root = Fixtures.coins(scrooge.getPublic(), 1, 10);
+        utxoPool = Fixtures.poolOf(root);
+    }
+
+    private Transaction pay(Transaction from, int index, KeyPair owner, double... values) throws SignatureException {
+        return Fixtures.pay(from, index, owner, alice.getPublic(), values);
+    }
+
+    // Test 1: a child listed before its parent is accepted together with the parent
+    @Test
+    public void testChildBeforeParent() throws SignatureException {
+        Transaction parent = pay(root, 0, scrooge, 4, 6);
+        Transaction child = pay(parent, 1, alice, 6);
+
+        Transaction[] accepted = new TxHandler(utxoPool).handleTxsOrdered(new Transaction[]{child, parent});
+
+        assertArrayEquals(new Transaction[]{parent, child}, accepted);
+    }
+
+    // Test 2: of two transactions claiming the same output, the earliest one wins
+    @Test
+    public void testConflictResolvedByArrayPosition() throws SignatureException {
+        Transaction first = pay(root, 0, scrooge, 10);
+        Transaction second = pay(root, 0, scrooge, 9);
+
+        TxHandler txHandler = new TxHandler(utxoPool);
+        Transaction[] accepted = txHandler.handleTxsOrdered(new Transaction[]{second, first});
+
+        assertArrayEquals(new Transaction[]{second}, accepted);
+        assertEquals(false, txHandler.getUTXOPool().contains(new UTXO(root.getHash(), 0)));
+    }
+
+    // Test 3: a transaction spending an output of a rejected parent is rejected
+    @Test
+    public void testChildOfInvalidParent() throws SignatureException {
+        Transaction parent = pay(root, 0, alice, 10); // signed by the wrong key
+        Transaction child = pay(parent, 0, alice, 10);
+
+        Transaction[] accepted = new TxHandler(utxoPool).handleTxsOrdered(new Transaction[]{child, parent});
+
+        assertEquals(0, accepted.length);
+    }
+
+    // Test 4: the streaming handler reports every transaction in order, with the reason of each rejection
+    @Test
+    public void testStreamingReasons() throws SignatureException {
+        Transaction forged = pay(root, 0, alice, 10);
+        Transaction greedy = pay(root, 0, scrooge, 11);
+        Transaction valid = pay(root, 0, scrooge, 10);
+        Transaction doubleSpend = pay(root, 0, scrooge, 10);
+        final List<Object> events = new ArrayList<>();
+
+        new TxHandler(utxoPool).handleTxs(Arrays.asList(forged, greedy, valid, doubleSpend).iterator(), new TxListener() {
+            public void onAccepted(Transaction tx) {
+                events.add(tx);
+            }
+
+            public void onRejected(Transaction tx, RejectReason reason) {
+                events.add(reason);
+            }
+        });
+
+        assertEquals(Arrays.<Object>asList(RejectReason.INVALID_SIGNATURE, RejectReason.OUTPUTS_EXCEED_INPUTS,
+                valid, RejectReason.MISSING_INPUT), events);
+    }
+
+    // Test 5: the parallel handler accepts the same transactions and leaves the same pool as the sequential one, and
+    // reads the current pool on the caller thread only
+    @Test
+    public void testParallelMatchesSequential() throws SignatureException {
+        Transaction coins = Fixtures.coins(scrooge.getPublic(), 40, 10);
+        UTXOPool pool = Fixtures.poolOf(coins);
+
+        // spends, double spends, forgeries and chains of children, in random order
+        Random random = new Random(42);
+        List<Transaction> batch = new ArrayList<>();
+        for (int i = 0; i < coins.numOutputs(); i++) {
+            Transaction spend = pay(coins, i, random.nextInt(8) == 0 ? alice : scrooge, 4, 6);
+            batch.add(spend);
+            if (random.nextInt(4) == 0)
+                batch.add(pay(coins, i, scrooge, 10 - random.nextInt(3)));
+            if (random.nextBoolean())
+                batch.add(pay(spend, 1, alice, 5));
+        }
+        Collections.shuffle(batch, random);
+        Transaction[] txs = batch.toArray(new Transaction[0]);
+
+        TxHandler sequential = new TxHandler(pool);
+        pool.useFilter(1000); // large enough not to be rebuilt, which would start its counters over
+        TxHandler parallel = new TxHandler(pool);
+        assertArrayEquals(sequential.handleTxs(txs), parallel.handleTxsParallel(txs));
+        assertEquals(new HashSet<>(sequential.getUTXOPool().getAllUTXO()),
+                new HashSet<>(parallel.getUTXOPool().getAllUTXO()));
+        // the current pool is only read by the caller thread, its filter counts every input exactly once
+        int inputs = 0;
+        for (Transaction tx : txs)
+            inputs += tx.numInputs();
+        assertEquals(inputs, parallel.getUTXOPool().getFilter().getLookups());
+    }
+
+    // Test 6: a pay-to-key-hash output is only spent by an input that reveals the key of its hash
+    @Test
+    public void testPayToKeyHash() throws SignatureException {
+        Transaction toHash = new Transaction();
+        toHash.addInput(root.getHash(), 0);
+        toHash.addOutput(10, Transaction.addressHashOf(alice.getPublic()));
+        toHash.signTx(scrooge.getPrivate(), 0);
+        TxHandler txHandler = new TxHandler(utxoPool);
+        assertArrayEquals(new Transaction[]{toHash}, txHandler.handleTxsOrdered(new Transaction[]{toHash}));
+
+        Transaction unrevealed = pay(toHash, 0, alice, 10);
+        Transaction wrongKey = pay(toHash, 0, alice, 10);
+        wrongKey.addPublicKey(scrooge.getPublic(), 0);
+        Transaction revealed = pay(toHash, 0, alice, 10);
+        revealed.addPublicKey(alice.getPublic(), 0);
+        revealed.finalize();
+        assertEquals(RejectReason.INVALID_SIGNATURE, txHandler.checkTx(unrevealed));
+        assertEquals(RejectReason.INVALID_SIGNATURE, txHandler.checkTx(wrongKey));
+        assertArrayEquals(new Transaction[]{revealed},
+                txHandler.handleTxsOrdered(new Transaction[]{unrevealed, wrongKey, revealed}));
+    }
+}
@@ -0,0 +1,97 @@
+package com.ing.fx;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.security.KeyPair;
+import java.security.NoSuchAlgorithmException;
+import java.security.SignatureException;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.ing.fx.block_chain.Transaction;
+import com.ing.fx.scrooge_coin.MaxFeeTxHandler;
+import com.ing.fx.scrooge_coin.UTXOPool;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Unit tests for {@link MaxFeeTxHandler#handleTxs(Transaction[])}
+ * <p>
+ * Test Strategy:
+ * Test 1: of two transactions spending the same coin, the one paying the higher fee is chosen
+ * Test 2: a parent without fee is chosen for the sake of its high fee child (child pays for parent)
+ * Test 3: a batch too large for branch and bound still gets the best fee per double-spent coin
+ */
+public class MaxFeeTxHandlerTest {
+
+    private static final double DELTA = 1e-9;
+
+    private KeyPair scrooge;
+    private KeyPair alice;
+    private Transaction root;
+    private UTXOPool utxoPool;
+
+    @Before
+    public void setUp() throws NoSuchAlgorithmException {
+        scrooge = Fixtures.keyPair();
+        alice = Fixtures.keyPair();
+        root = Fixtures.coins(scrooge.getPublic(), MaxFeeTxHandler.EXACT_LIMIT + 2, 10);
+        utxoPool = Fixtures.poolOf(root);
+    }
+
+    private Transaction pay(Transaction from, int index, KeyPair owner, double value) throws SignatureException {
+        return Fixtures.pay(from, index, owner, alice.getPublic(), value);
+    }
+
+    // Test 1: of two transactions spending the same coin, the one paying the higher fee is chosen
+    @Test
+    public void testHigherFeeWins() throws SignatureException {
+        Transaction cheap = pay(root, 0, scrooge, 9);
+        Transaction generous = pay(root, 0, scrooge, 7);
+
+        MaxFeeTxHandler handler = new MaxFeeTxHandler(utxoPool);
+        Transaction[] accepted = handler.handleTxs(new Transaction[]{cheap, generous});
+
+        assertArrayEquals(new Transaction[]{generous}, accepted);
+        assertEquals(3, handler.getLastFee(), DELTA);
+        assertTrue(handler.isLastSelectionExact());
+    }
+
+    // Test 2: a parent without fee is chosen for the sake of its high fee child (child pays for parent)
+    @Test
+    public void testChildPaysForParent() throws SignatureException {
+        Transaction parent = pay(root, 0, scrooge, 10);
+        Transaction child = pay(parent, 0, alice, 5);
+        Transaction rival = pay(root, 0, scrooge, 7);
+
+        MaxFeeTxHandler handler = new MaxFeeTxHandler(utxoPool);
+        Transaction[] accepted = handler.handleTxs(new Transaction[]{child, rival, parent});
+
+        assertArrayEquals(new Transaction[]{parent, child}, accepted);
+        assertEquals(5, handler.getLastFee(), DELTA);
+        assertEquals(5, handler.getLastFeeUpperBound(), DELTA);
+    }
+
+    // Test 3: a batch too large for branch and bound still gets the best fee per double-spent coin
+    @Test
+    public void testLargeBatch() throws SignatureException {
+        List<Transaction> batch = new ArrayList<>();
+        double expected = 0;
+        for (int i = 0; i < root.numOutputs(); i++) {
+            batch.add(pay(root, i, scrooge, 9));
+            batch.add(pay(root, i, scrooge, 8 - i % 3));
+            expected += 2 + i % 3;
+        }
+
+        MaxFeeTxHandler handler = new MaxFeeTxHandler(utxoPool);
+        Transaction[] accepted = handler.handleTxs(batch.toArray(new Transaction[0]));
+
+        assertFalse(handler.isLastSelectionExact());
+        assertEquals(root.numOutputs(), accepted.length);
+        assertEquals(expected, handler.getLastFee(), DELTA);
+        assertEquals(expected, handler.getLastFeeUpperBound(), DELTA);
+    }
+}
@@ -0,0 +1,224 @@
+package com.ing.fx;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.security.KeyPair;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SignatureException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import com.ing.fx.block_chain.Block;
+import com.ing.fx.block_chain.MerkleTree;
+import com.ing.fx.block_chain.Transaction;
+import org.junit.Test;
+
+/**
+ * Unit tests for {@link MerkleTree} and the Merkle root of {@link Block}
+ * <p>
+ * Test Strategy:
+ * Test 1: the proof of every leaf verifies, for every tree size up to 40, and fails for any other leaf, position
+ * or root
+ * Test 2: appending and replacing leaves gives the root of a tree built from scratch, also a parallel built one
+ * Test 3: a block hash commits to its transactions through the Merkle root, and a transaction proves its place
+ * Test 4: a transaction changed, finalized or signed again after it was added to a block is in the root with its
+ * new hash
+ * Test 5: a transaction whose encoding is two node hashes behind the node prefix does not prove itself a leaf of a
+ * smaller tree with the same root, and the block hash commits to the number of transactions
+ */
+public class MerkleTreeTest {
+
+    private static List<byte[]> leaves(int n, long seed) {
+        Random random = new Random(seed);
+        List<byte[]> leaves = new ArrayList<>();
+        for (int i = 0; i < n; i++) {
+            byte[] leaf = new byte[32];
+            random.nextBytes(leaf);
+            leaves.add(leaf);
+        }
+        return leaves;
+    }
+
+    // Test 1: the proof of every leaf verifies, for every tree size up to 40, and fails for any other leaf, position
+    // or root
+    @Test
+    public void testProofs() {
+        byte[] other = new byte[32];
+        for (int size = 1; size <= 40; size++) {
+            List<byte[]> leaves = leaves(size, size);
+            MerkleTree tree = new MerkleTree(leaves);
+            byte[] root = tree.root();
+            for (int i = 0; i < size; i++) {
+                byte[][] proof = tree.proof(i);
+                assertTrue(proof.length <= 32 - Integer.numberOfLeadingZeros(size - 1));
+                assertTrue(MerkleTree.verify(leaves.get(i), i, size, proof, root));
+                assertFalse(MerkleTree.verify(other, i, size, proof, root));
+                assertFalse(MerkleTree.verify(leaves.get(i), i, size, proof, other));
+                if (size > 1)
+                    assertFalse(MerkleTree.verify(leaves.get(i), (i + 1) % size, size, proof, root));
+            }
+        }
+        // a repeated last leaf is another tree
+        List<byte[]> three = leaves(3, 7);
+        List<byte[]> four = new ArrayList<>(three);
+        four.add(three.get(2));
+        assertFalse(Arrays.equals(new MerkleTree(three).root(), new MerkleTree(four).root()));
+    }
+
+    // Test 2: appending and replacing leaves gives the root of a tree built from scratch, also a parallel built one
+    @Test
+    public void testIncrementalUpdates() {
+        List<byte[]> leaves = leaves(5000, 11);
+        MerkleTree appended = new MerkleTree();
+        for (int i = 0; i < leaves.size(); i++) {
+            appended.append(leaves.get(i));
+            if (i < 70 || i % 997 == 0)
+                assertArrayEquals(new MerkleTree(leaves.subList(0, i + 1)).root(), appended.root());
+        }
+        MerkleTree built = new MerkleTree(leaves); // over the fork threshold
+        assertArrayEquals(built.root(), appended.root());
+
+        byte[] replacement = new byte[32];
+        leaves.set(1234, replacement);
+        appended.set(1234, replacement);
+        assertArrayEquals(new MerkleTree(leaves).root(), appended.root());
+        assertTrue(MerkleTree.verify(replacement, 1234, leaves.size(), appended.proof(1234), appended.root()));
+        assertEquals(0, new MerkleTree().size());
+        assertArrayEquals(new byte[32], new MerkleTree().root());
+    }
+
+    // Test 3: a block hash commits to its transactions through the Merkle root, and a transaction proves its place
+    @Test
+    public void testBlockCommitment() throws NoSuchAlgorithmException, SignatureException {
+        KeyPair scrooge = Fixtures.keyPair();
+        Block block = new Block(new byte[32], scrooge.getPublic());
+        block.finalize();
+        byte[] emptyHash = block.getHash();
+
+        Transaction[] txs = new Transaction[5];
+        for (int i = 0; i < txs.length; i++) {
+            txs[i] = new Transaction();
+            txs[i].addInput(block.getCoinbase().getHash(), i);
+            txs[i].addOutput(1, scrooge.getPublic());
+            txs[i].signTx(scrooge.getPrivate(), 0);
+            block.addTransaction(txs[i]);
+            block.getMerkleRoot(); // the tree is kept and grows with the block from here on
+        }
+        block.finalize();
+        assertFalse(Arrays.equals(emptyHash, block.getHash()));
+
+        Block rebuilt = new Block(new byte[32], scrooge.getPublic());
+        for (Transaction tx : txs)
+            rebuilt.addTransaction(tx);
+        rebuilt.finalize();
+        assertArrayEquals(rebuilt.getHash(), block.getHash());
+
+        for (int i = 0; i < txs.length; i++)
+            assertTrue(MerkleTree.verify(txs[i].getHash(), i, txs.length, block.getMerkleProof(i),
+                    block.getMerkleRoot()));
+        assertFalse(MerkleTree.verify(txs[0].getHash(), 1, txs.length, block.getMerkleProof(1),
+                block.getMerkleRoot()));
+    }
+
+    // Test 4: a transaction changed, finalized or signed again after it was added to a block is in the root with its
+    // new hash
+    @Test
+    public void testChangedTransactions() throws NoSuchAlgorithmException, SignatureException {
+        KeyPair scrooge = Fixtures.keyPair();
+        Block block = new Block(new byte[32], scrooge.getPublic());
+        Transaction signed = new Transaction();
+        signed.addInput(block.getCoinbase().getHash(), 0);
+        signed.addOutput(1, scrooge.getPublic());
+        signed.signTx(scrooge.getPrivate(), 0);
+        Transaction unsigned = new Transaction(); // no hash yet
+        unsigned.addInput(block.getCoinbase().getHash(), 1);
+        unsigned.addOutput(2, scrooge.getPublic());
+        block.addTransaction(signed);
+        block.addTransaction(unsigned);
+        byte[] before = block.getMerkleRoot().clone();
+
+        unsigned.addOutput(3, scrooge.getPublic());
+        assertRootOf(block, signed, unsigned);
+        unsigned.signTx(scrooge.getPrivate(), 0);
+        assertRootOf(block, signed, unsigned);
+        signed.signTx(Fixtures.keyPair().getPrivate(), 0);
+        assertRootOf(block, signed, unsigned);
+        assertFalse(Arrays.equals(before, block.getMerkleRoot()));
+        for (int i = 0; i < 2; i++)
+            assertTrue(MerkleTree.verify(block.getTransaction(i).getHash(), i, 2, block.getMerkleProof(i),
+                    block.getMerkleRoot()));
+
+        block.finalize();
+        Block rebuilt = new Block(new byte[32], scrooge.getPublic());
+        rebuilt.addTransaction(signed);
+        rebuilt.addTransaction(unsigned);
+        rebuilt.finalize();
+        assertArrayEquals(rebuilt.getHash(), block.getHash());
+    }
+
+    /** asserts that the root of {@code block} is the one of a tree built now over the hashes of {@code txs} */
+    private static void assertRootOf(Block block, Transaction... txs) throws NoSuchAlgorithmException {
+        List<byte[]> leaves = new ArrayList<>();
+        for (Transaction tx : txs)
+            leaves.add(tx.getHash() != null ? tx.getHash()
+                    : MessageDigest.getInstance("SHA-256").digest(tx.getRawTx()));
+        assertArrayEquals(new MerkleTree(leaves).root(), block.getMerkleRoot());
+    }
+
+    // Test 5: a transaction whose encoding is two node hashes behind the node prefix does not prove itself a leaf of
+    // a smaller tree with the same root, and the block hash commits to the number of transactions
+    @Test
+    public void testForgedInnerNode() throws NoSuchAlgorithmException {
+        KeyPair scrooge = Fixtures.keyPair();
+        Block block = new Block(new byte[32], scrooge.getPublic());
+        Transaction[] txs = new Transaction[4];
+        for (int i = 0; i < txs.length; i++) {
+            txs[i] = new Transaction();
+            txs[i].addOutput(i + 1, scrooge.getPublic());
+            txs[i].finalize();
+            block.addTransaction(txs[i]);
+        }
+        block.finalize();
+        MessageDigest sha256 = MessageDigest.getInstance("SHA-256");
+        byte[][] leafNodes = new byte[4][];
+        for (int i = 0; i < 4; i++)
+            leafNodes[i] = sha256.digest(concat(new byte[]{0}, txs[i].getHash()));
+        byte[] left = sha256.digest(concat(new byte[]{1}, leafNodes[0], leafNodes[1]));
+        byte[] right = sha256.digest(concat(new byte[]{1}, leafNodes[2], leafNodes[3]));
+        assertArrayEquals(sha256.digest(concat(new byte[]{1}, left, right)), block.getMerkleRoot());
+
+        // one input without a signature and no outputs: a 61 byte hash and a 4 byte index, 0x01 || two nodes;
+        // over the leaf nodes its hash is the left inner node, only the leaf prefix keeps it from proving that
+        for (byte[][] nodes : new byte[][][]{{leafNodes[0], leafNodes[1]}, {txs[0].getHash(), txs[1].getHash()}}) {
+            byte[] forged = concat(new byte[]{1}, nodes[0], nodes[1]);
+            Transaction fake = new Transaction();
+            fake.addInput(Arrays.copyOf(forged, 61), ByteBuffer.wrap(forged, 61, 4).getInt());
+            fake.finalize();
+            assertArrayEquals(forged, fake.getRawTx());
+            assertEquals(nodes[0] == leafNodes[0], Arrays.equals(left, fake.getHash()));
+            assertFalse(MerkleTree.verify(fake.getHash(), 0, 2, new byte[][]{right}, block.getMerkleRoot()));
+            assertFalse(MerkleTree.verify(fake.getHash(), 0, 1, new byte[0][], block.getMerkleRoot()));
+        }
+        assertTrue(MerkleTree.verify(txs[2].getHash(), 2, 4, block.getMerkleProof(2), block.getMerkleRoot()));
+
+        byte[] header = concat(new byte[32], new byte[]{0, 0, 0, 4}, block.getMerkleRoot());
+        assertArrayEquals(sha256.digest(header), block.getHash());
+    }
+
+    private static byte[] concat(byte[]... parts) {
+        int length = 0;
+        for (byte[] part : parts)
+            length += part.length;
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        for (byte[] part : parts)
+            buffer.put(part);
+        return buffer.array();
+    }
+}
@@ -0,0 +1,158 @@
+package com.ing.fx;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.KeyPair;
+import java.security.NoSuchAlgorithmException;
+import java.security.SignatureException;
+import java.security.interfaces.RSAPublicKey;
+import java.util.Arrays;
+
+import com.ing.fx.block_chain.Block;
+import com.ing.fx.block_chain.Transaction;
+import com.ing.fx.scrooge_coin.UTXO;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Unit tests for the raw encodings of {@link Transaction} and {@link Block}
+ * <p>
+ * Test Strategy:
+ * Test 1: the encodings are byte for byte the specified ones, the sighashes their SHA-256
+ * Test 2: every change of the transaction drops the cached encodings and hash state, changing a returned array
+ * does not
+ * Test 3: a block is its previous hash followed by the encodings of its transactions
+ * Test 4: a copy signed on its own changes its own encoding and hash, not those of the original
+ */
+public class TransactionTest {
+
+    private KeyPair scrooge;
+    private KeyPair alice;
+    private Transaction tx;
+
+    @Before
+    public void setUp() throws NoSuchAlgorithmException, SignatureException {
+        scrooge = Fixtures.keyPair();
+        alice = Fixtures.keyPair();
+        tx = new Transaction();
+        tx.addInput(new byte[32], 0);
+        tx.addInput(new byte[]{1, 2, 3}, 7);
+        tx.addOutput(10, alice.getPublic());
+        tx.addOutput(2.5, scrooge.getPublic());
+        tx.signTx(scrooge.getPrivate(), 0);
+    }
+
+    /** the encoding as it was specified: hash, big endian index and signature per input, then the outputs */
+    private static byte[] expectedRawTx(Transaction tx) {
+        ByteArrayOutputStream raw = new ByteArrayOutputStream();
+        for (Transaction.Input in : tx.getInputs()) {
+            raw.write(in.prevTxHash, 0, in.prevTxHash.length);
+            raw.write(ByteBuffer.allocate(4).putInt(in.outputIndex).array(), 0, 4);
+            if (in.signature != null)
+                raw.write(in.signature, 0, in.signature.length);
+        }
+        writeOutputs(tx, raw);
+        return raw.toByteArray();
+    }
+
+    /** the outputs first, then the outpoint of the input */
+    private static byte[] expectedRawDataToSign(Transaction tx, int index) {
+        ByteArrayOutputStream raw = new ByteArrayOutputStream();
+        writeOutputs(tx, raw);
+        Transaction.Input in = tx.getInput(index);
+        raw.write(in.prevTxHash, 0, in.prevTxHash.length);
+        raw.write(ByteBuffer.allocate(4).putInt(in.outputIndex).array(), 0, 4);
+        return raw.toByteArray();
+    }
+
+    private static void writeOutputs(Transaction tx, ByteArrayOutputStream raw) {
+        for (Transaction.Output op : tx.getOutputs()) {
+            raw.write(ByteBuffer.allocate(8).putDouble(op.value).array(), 0, 8);
+            byte[] exponent = ((RSAPublicKey) op.address).getPublicExponent().toByteArray();
+            byte[] modulus = ((RSAPublicKey) op.address).getModulus().toByteArray();
+            raw.write(exponent, 0, exponent.length);
+            raw.write(modulus, 0, modulus.length);
+        }
+    }
+
+    private void assertEncodings() throws NoSuchAlgorithmException {
+        assertArrayEquals(expectedRawTx(tx), tx.getRawTx());
+        for (int i = 0; i < tx.numInputs(); i++) {
+            assertArrayEquals(expectedRawDataToSign(tx, i), tx.getRawDataToSign(i));
+            byte[] sigHash = MessageDigest.getInstance("SHA-256").digest(expectedRawDataToSign(tx, i));
+            assertArrayEquals(sigHash, tx.getSigHash(i));
+        }
+    }
+
+    // Test 1: the encodings are byte for byte the specified ones, the sighashes their SHA-256
+    @Test
+    public void testEncodings() throws NoSuchAlgorithmException {
+        assertEncodings();
+        Transaction coinbase = new Transaction(25, alice.getPublic());
+        assertArrayEquals(expectedRawTx(coinbase), coinbase.getRawTx());
+    }
+
+    // Test 2: every change of the transaction drops the cached encodings and hash state, changing a returned array
+    // does not
+    @Test
+    public void testCacheInvalidation() throws SignatureException, NoSuchAlgorithmException {
+        tx.getRawTx()[0]++;
+        tx.getRawDataToSign(1)[0]++;
+        assertEncodings();
+
+        tx.addOutput(1, alice.getPublic());
+        assertEncodings();
+        tx.addInput(new byte[32], 1);
+        assertEncodings();
+        tx.signTx(scrooge.getPrivate(), 2);
+        assertEncodings();
+        tx.getInput(1).addSignature(new byte[]{9, 9});
+        assertEncodings();
+        tx.removeInput(new UTXO(new byte[32], 0));
+        assertEncodings();
+        tx.removeInput(0);
+        assertEncodings();
+    }
+
+    // Test 3: a block is its previous hash followed by the encodings of its transactions
+    @Test
+    public void testRawBlock() {
+        Block block = new Block(new byte[]{4, 5, 6}, alice.getPublic());
+        block.addTransaction(tx);
+        block.addTransaction(block.getCoinbase());
+        ByteArrayOutputStream raw = new ByteArrayOutputStream();
+        raw.write(4);
+        raw.write(5);
+        raw.write(6);
+        for (Transaction t : block.getTransactions()) {
+            byte[] rawTx = expectedRawTx(t);
+            raw.write(rawTx, 0, rawTx.length);
+        }
+        assertArrayEquals(raw.toByteArray(), block.getRawBlock());
+    }
+
+    // Test 4: a copy signed on its own changes its own encoding and hash, not those of the original
+    @Test
+    public void testCopy() throws SignatureException, NoSuchAlgorithmException {
+        byte[] rawTx = tx.getRawTx();
+        byte[] hash = tx.getHash().clone();
+        Transaction copy = new Transaction(tx);
+        assertArrayEquals(rawTx, copy.getRawTx());
+        assertNotSame(tx.getInput(0), copy.getInput(0));
+
+        copy.signTx(alice.getPrivate(), 1);
+        copy.addSignature(new byte[]{7}, 0);
+        copy.finalize();
+        assertArrayEquals(rawTx, tx.getRawTx());
+        assertArrayEquals(hash, tx.getHash());
+        assertEncodings();
+        assertArrayEquals(expectedRawTx(copy), copy.getRawTx());
+        assertFalse(Arrays.equals(hash, copy.getHash()));
+        assertArrayEquals(MessageDigest.getInstance("SHA-256").digest(copy.getRawTx()), copy.getHash());
+    }
+}
@@ -0,0 +1,135 @@
+package com.ing.fx;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.security.KeyPair;
+import java.security.NoSuchAlgorithmException;
+import java.security.SignatureException;
+import java.util.Arrays;
+
+import com.ing.fx.block_chain.Transaction;
+import com.ing.fx.scrooge_coin.CoinValue;
+import com.ing.fx.scrooge_coin.RejectReason;
+import com.ing.fx.scrooge_coin.TxHandler;
+import com.ing.fx.scrooge_coin.UTXO;
+import com.ing.fx.scrooge_coin.UTXOPool;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Unit tests for the duplicate input check and the {@link CoinValue} sums of {@link TxHandler#checkTx(Transaction)}
+ * <p>
+ * Test Strategy:
+ * Test 1: a UTXO claimed twice is found in a transaction with more inputs than are compared pairwise
+ * Test 2: two different UTXOs whose sort keys collide are not taken for the same one
+ * Test 3: NaN and infinite output values are rejected, and converting them gives CoinValue.INVALID
+ * Test 4: output and input sums that overflow a long of base units are rejected
+ */
+public class TxChecksTest {
+
+    private static final int MANY = 20;
+
+    private KeyPair owner;
+    private byte[] prevTxHash;
+    private UTXOPool utxoPool;
+
+    @Before
+    public void setUp() throws NoSuchAlgorithmException {
+        owner = Fixtures.keyPair();
+        Transaction root = new Transaction();
+        root.addOutput(1, owner.getPublic());
+        root.finalize();
+        prevTxHash = root.getHash();
+        utxoPool = new UTXOPool();
+        for (int i = 0; i < MANY; i++)
+            utxoPool.addUTXO(new UTXO(prevTxHash, i), root.getOutput(0));
+    }
+
+    /** @return a transaction spending the given UTXOs of the pool to one output of {@code value}, signed */
+    private Transaction spend(double value, UTXO... utxos) throws SignatureException {
+        Transaction tx = new Transaction();
+        for (UTXO utxo : utxos)
+            tx.addInput(utxo.getTxHash(), utxo.getIndex());
+        tx.addOutput(value, owner.getPublic());
+        for (int i = 0; i < utxos.length; i++)
+            tx.signTx(owner.getPrivate(), i);
+        return tx;
+    }
+
+    // Test 1: a UTXO claimed twice is found in a transaction with more inputs than are compared pairwise
+    @Test
+    public void testDoubleClaimAmongManyInputs() throws SignatureException {
+        UTXO[] utxos = new UTXO[MANY];
+        for (int i = 0; i < MANY; i++)
+            utxos[i] = new UTXO(prevTxHash, i);
+        TxHandler handler = new TxHandler(utxoPool);
+        assertNull(handler.checkTx(spend(MANY, utxos)));
+
+        utxos[17] = new UTXO(prevTxHash, 3);
+        assertEquals(RejectReason.DOUBLE_CLAIM, handler.checkTx(spend(1, utxos)));
+        utxos[17] = new UTXO(prevTxHash.clone(), 3); // equal content, another array
+        assertEquals(RejectReason.DOUBLE_CLAIM, handler.checkTx(spend(1, utxos)));
+    }
+
+    // Test 2: two different UTXOs whose sort keys collide are not taken for the same one
+    @Test
+    public void testCollidingKeysAreDifferentClaims() throws SignatureException {
+        // the key is Arrays.hashCode(hash) * 31 + index, and one more in the last byte is one more hash code
+        byte[] first = new byte[32];
+        byte[] second = new byte[32];
+        second[31] = 1;
+        assertEquals(Arrays.hashCode(first) * 31 + 31, Arrays.hashCode(second) * 31);
+        Transaction.Output output = utxoPool.getTxOutput(new UTXO(prevTxHash, 0));
+        utxoPool.addUTXO(new UTXO(first, 31), output);
+        utxoPool.addUTXO(new UTXO(second, 0), output);
+
+        UTXO[] utxos = new UTXO[MANY];
+        for (int i = 0; i < MANY - 2; i++)
+            utxos[i] = new UTXO(prevTxHash, i);
+        utxos[MANY - 2] = new UTXO(first, 31);
+        utxos[MANY - 1] = new UTXO(second, 0);
+        assertNull(new TxHandler(utxoPool).checkTx(spend(MANY, utxos)));
+    }
+
+    // Test 3: NaN and infinite output values are rejected, and converting them gives CoinValue.INVALID
+    @Test
+    public void testNotANumber() throws SignatureException {
+        TxHandler handler = new TxHandler(utxoPool);
+        UTXO utxo = new UTXO(prevTxHash, 0);
+        assertEquals(RejectReason.INVALID_VALUE, handler.checkTx(spend(Double.NaN, utxo)));
+        assertEquals(RejectReason.INVALID_VALUE, handler.checkTx(spend(Double.POSITIVE_INFINITY, utxo)));
+        assertEquals(RejectReason.NEGATIVE_OUTPUT, handler.checkTx(spend(Double.NEGATIVE_INFINITY, utxo)));
+        assertNull(handler.checkTx(spend(1, utxo)));
+
+        assertEquals(CoinValue.INVALID, CoinValue.toBaseUnits(Double.NaN));
+        assertEquals(CoinValue.INVALID, CoinValue.toBaseUnits(Double.POSITIVE_INFINITY));
+        assertEquals(CoinValue.INVALID, CoinValue.toBaseUnits(-0.5));
+        assertEquals(CoinValue.INVALID, CoinValue.toBaseUnits(CoinValue.MAX_COINS * 2));
+        assertEquals(150000000L, CoinValue.toBaseUnits(1.5));
+        assertEquals(30000000L, CoinValue.toBaseUnits(0.1 + 0.2)); // rounded to the nearest base unit
+    }
+
+    // Test 4: output and input sums that overflow a long of base units are rejected
+    @Test
+    public void testOverflowingSums() throws SignatureException {
+        assertEquals(CoinValue.INVALID, CoinValue.add(Long.MAX_VALUE, 1));
+        assertEquals(CoinValue.INVALID, CoinValue.add(CoinValue.INVALID, 1));
+        assertEquals(Long.MAX_VALUE, CoinValue.add(Long.MAX_VALUE - 1, 1));
+
+        Transaction outputs = spend(CoinValue.MAX_COINS, new UTXO(prevTxHash, 0));
+        outputs.addOutput(CoinValue.MAX_COINS, owner.getPublic());
+        outputs.signTx(owner.getPrivate(), 0);
+        assertEquals(RejectReason.INVALID_VALUE, new TxHandler(utxoPool).checkTx(outputs));
+
+        Transaction large = new Transaction();
+        large.addOutput(CoinValue.MAX_COINS, owner.getPublic());
+        large.addOutput(CoinValue.MAX_COINS, owner.getPublic());
+        large.finalize();
+        utxoPool.addUTXO(new UTXO(large.getHash(), 0), large.getOutput(0));
+        utxoPool.addUTXO(new UTXO(large.getHash(), 1), large.getOutput(1));
+        Transaction inputs = spend(1, new UTXO(large.getHash(), 0), new UTXO(large.getHash(), 1));
+        assertEquals(RejectReason.INVALID_VALUE, new TxHandler(utxoPool).checkTx(inputs));
+        assertNull(new TxHandler(utxoPool).checkTx(spend(1, new UTXO(large.getHash(), 0))));
+    }
+}
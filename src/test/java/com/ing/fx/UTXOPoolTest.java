@@ -0,0 +1,745 @@
+package com.ing.fx;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.KeyPair;
+import java.security.NoSuchAlgorithmException;
+import java.security.PublicKey;
+import java.security.SignatureException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+
+import com.ing.fx.block_chain.Transaction;
+import com.ing.fx.scrooge_coin.CoinValue;
+import com.ing.fx.scrooge_coin.CompactUTXOStore;
+import com.ing.fx.scrooge_coin.CuckooFilter;
+import com.ing.fx.scrooge_coin.ConcurrentUTXOStore;
+import com.ing.fx.scrooge_coin.HashMapUTXOStore;
+import com.ing.fx.scrooge_coin.MappedUTXOStore;
+import com.ing.fx.scrooge_coin.OffHeapUTXOStore;
+import com.ing.fx.scrooge_coin.PersistentUTXOStore;
+import com.ing.fx.scrooge_coin.RejectReason;
+import com.ing.fx.scrooge_coin.TxHandler;
+import com.ing.fx.scrooge_coin.UTXO;
+import com.ing.fx.scrooge_coin.UTXODelta;
+import com.ing.fx.scrooge_coin.UTXOPool;
+import com.ing.fx.scrooge_coin.UTXOStore;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Unit tests for {@link UTXOPool}
+ * <p>
+ * Test Strategy:
+ * Test 1: rolling back a recorded delta restores the pool, applying it again redoes the changes
+ * Test 2: a UTXO created and spent inside the same delta survives a rollback and re-apply
+ * Test 3: an off-heap pool holds the same UTXOs as a map pool through growth, removals and copies
+ * Test 4: copies of a persistent pool share structure but never see each other's changes
+ * Test 5: a memory mapped pool comes back after a restart, and after a crash from any table since the last
+ * checkpoint and its log, with exactly the changes up to the last sync
+ * Test 6: the probe methods see the same UTXOs as the UTXO methods, in every store, and removals are recorded
+ * Test 7: balances and coin selection follow additions, removals, rollbacks and copies
+ * Test 8: threads racing to spend the same UTXOs of a concurrent pool spend each one exactly once
+ * Test 9: parallel scans and aggregates see every UTXO exactly once, in every store
+ * Test 10: the set hash depends on the entries only, not on the store or the order of the changes
+ * Test 11: the filter never hides a UTXO of the pool, through removals, a rebuild and copies, and rejects most
+ * misses
+ * Test 12: a compact pool holds the same outputs as a map pool through growth, removals, reuse and copies, also
+ * outputs whose value is no number of base units
+ * Test 13: pay-to-key-hash outputs keep their address hash in every store, also across a restart, and belong
+ * to the balance of their key; a compact store keeps one copy of a hash, not the arrays of the outputs
+ * Test 14: a delta recorded by an in place handler rolls a rejected block back exactly, and moves a pool between
+ * two forks
+ * Test 15: an output without an address comes back without one in every store, also when the next output pays to
+ * a key, and a mapped store rejects it without numbering it
+ * Test 16: a handler on a mapped pool rejects a transaction spending a UTXO whose hash is not 32 bytes as a missing
+ * input, only adding such a UTXO throws
+ */
+public class UTXOPoolTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private Transaction tx;
+
+    @Before
+    public void setUp() throws NoSuchAlgorithmException {
+        KeyPair owner = Fixtures.keyPair();
+        tx = new Transaction();
+        for (int i = 0; i < 4; i++)
+            tx.addOutput(i + 1, owner.getPublic());
+        tx.finalize();
+    }
+
+    private UTXO utxo(int index) {
+        return new UTXO(tx.getHash(), index);
+    }
+
+    // Test 1: rolling back a recorded delta restores the pool, applying it again redoes the changes
+    @Test
+    public void testDeltaRollbackAndApply() {
+        UTXOPool pool = new UTXOPool();
+        pool.addUTXO(utxo(0), tx.getOutput(0));
+        pool.addUTXO(utxo(1), tx.getOutput(1));
+
+        UTXODelta delta = new UTXODelta();
+        pool.startRecording(delta);
+        pool.removeUTXO(utxo(0));
+        pool.addUTXO(utxo(2), tx.getOutput(2));
+        pool.stopRecording();
+        assertEquals(2, delta.size());
+        assertEquals(utxo(2), delta.getCreatedUTXOs().get(0));
+        assertEquals(utxo(0), delta.getSpentUTXOs().get(0));
+
+        pool.rollback(delta);
+        assertEquals(tx.getOutput(0), pool.getTxOutput(utxo(0)));
+        assertTrue(pool.contains(utxo(1)));
+        assertFalse(pool.contains(utxo(2)));
+
+        pool.apply(delta);
+        assertNull(pool.getTxOutput(utxo(0)));
+        assertTrue(pool.contains(utxo(1)));
+        assertEquals(tx.getOutput(2), pool.getTxOutput(utxo(2)));
+    }
+
+    // Test 2: a UTXO created and spent inside the same delta survives a rollback and re-apply
+    @Test
+    public void testDeltaCreateThenSpend() {
+        UTXOPool pool = new UTXOPool();
+        UTXODelta delta = new UTXODelta();
+        pool.startRecording(delta);
+        pool.addUTXO(utxo(3), tx.getOutput(3));
+        pool.removeUTXO(utxo(3));
+        pool.stopRecording();
+
+        pool.rollback(delta);
+        assertFalse(pool.contains(utxo(3)));
+        pool.apply(delta);
+        assertFalse(pool.contains(utxo(3)));
+        assertEquals(0, pool.getAllUTXO().size());
+    }
+
+    // Test 3: an off-heap pool holds the same UTXOs as a map pool through growth, removals and copies
+    @Test
+    public void testOffHeapStore() {
+        UTXOPool expected = new UTXOPool();
+        UTXOPool offHeap = new UTXOPool(new OffHeapUTXOStore(16));
+        Random random = new Random(7);
+        UTXO[] utxos = new UTXO[5000];
+        for (int i = 0; i < utxos.length; i++) {
+            byte[] hash = new byte[i % 1000 == 0 ? 20 : 32]; // a few hashes do not fit a record
+            random.nextBytes(hash);
+            utxos[i] = new UTXO(hash, i % 3);
+            expected.addUTXO(utxos[i], tx.getOutput(i % 4));
+            offHeap.addUTXO(utxos[i], tx.getOutput(i % 4));
+        }
+        for (int i = 0; i < utxos.length; i += 2) {
+            expected.removeUTXO(utxos[i]);
+            offHeap.removeUTXO(utxos[i]);
+        }
+        UTXOPool copy = new UTXOPool(offHeap);
+        offHeap.addUTXO(utxos[0], tx.getOutput(3));
+
+        assertEquals(expected.size() + 1, offHeap.size());
+        assertEquals(expected.size(), copy.size());
+        assertEquals(new HashSet<>(expected.getAllUTXO()), new HashSet<>(copy.getAllUTXO()));
+        for (int i = 1; i < utxos.length; i++) {
+            assertEquals(expected.getTxOutput(utxos[i]), copy.getTxOutput(utxos[i]));
+            assertEquals(expected.contains(utxos[i]), offHeap.contains(utxos[i]));
+        }
+        assertEquals(tx.getOutput(3), offHeap.getTxOutput(utxos[0]));
+        assertFalse(copy.contains(utxos[0]));
+    }
+
+    // Test 4: copies of a persistent pool share structure but never see each other's changes
+    @Test
+    public void testPersistentStoreCopies() {
+        UTXOPool original = new UTXOPool(new PersistentUTXOStore());
+        Random random = new Random(11);
+        UTXO[] utxos = new UTXO[3000];
+        for (int i = 0; i < utxos.length; i++) {
+            byte[] hash = new byte[32];
+            random.nextBytes(hash);
+            utxos[i] = new UTXO(hash, i % 5);
+            original.addUTXO(utxos[i], tx.getOutput(i % 4));
+        }
+        // equal hash codes: the last hash byte is worth 1, the index 31
+        byte[] colliding = utxos[2].getTxHash().clone();
+        colliding[31] += 31;
+        UTXO twin = new UTXO(colliding, utxos[2].getIndex() - 1);
+        assertEquals(utxos[2].hashCode(), twin.hashCode());
+        original.addUTXO(twin, tx.getOutput(3));
+        assertEquals(tx.getOutput(2), original.getTxOutput(utxos[2]));
+        assertEquals(tx.getOutput(3), original.getTxOutput(twin));
+        original.removeUTXO(twin);
+        assertFalse(original.contains(twin));
+
+        UTXOPool copy = new UTXOPool(original);
+        for (int i = 0; i < utxos.length; i += 3)
+            copy.removeUTXO(utxos[i]);
+        UTXOPool copyOfCopy = new UTXOPool(copy);
+        copyOfCopy.addUTXO(utxos[0], tx.getOutput(0));
+        original.removeUTXO(utxos[1]);
+
+        assertEquals(utxos.length - 1, original.size());
+        assertEquals(utxos.length - 1000, copy.size());
+        assertEquals(utxos.length - 999, copyOfCopy.size());
+        assertEquals(copy.size(), new HashSet<>(copy.getAllUTXO()).size());
+        for (int i = 0; i < utxos.length; i++) {
+            assertEquals(i != 1, original.contains(utxos[i]));
+            assertEquals(i % 3 != 0, copy.contains(utxos[i]));
+            assertEquals(i % 3 != 0 || i == 0, copyOfCopy.contains(utxos[i]));
+        }
+    }
+
+    // Test 5: a memory mapped pool comes back after a restart, and after a crash from any table since the last
+    // checkpoint and its log, with exactly the changes up to the last sync
+    @Test
+    public void testMappedStoreRestart() throws IOException {
+        UTXOPool expected = new UTXOPool();
+        MappedUTXOStore store = MappedUTXOStore.open(folder.getRoot(), 16); // small, has to grow
+        UTXOPool mapped = new UTXOPool(store);
+        Random random = new Random(13);
+        UTXO[] utxos = new UTXO[6000];
+        for (int i = 0; i < utxos.length; i++) {
+            byte[] hash = new byte[32];
+            random.nextBytes(hash);
+            utxos[i] = new UTXO(hash, i % 2);
+        }
+        for (int i = 0; i < 3000; i++) {
+            expected.addUTXO(utxos[i], tx.getOutput(i % 4));
+            mapped.addUTXO(utxos[i], tx.getOutput(i % 4));
+        }
+        store.checkpoint();
+        File checkpointed = folder.newFolder("checkpointed");
+        copy(folder.getRoot(), checkpointed, "utxo.dat");
+
+        // a batch that makes the table grow while it is written into it
+        for (int i = 0; i < 3000; i += 2) {
+            expected.removeUTXO(utxos[i]);
+            mapped.removeUTXO(utxos[i]);
+        }
+        for (int i = 3000; i < 4000; i++) {
+            expected.addUTXO(utxos[i], tx.getOutput(i % 4));
+            mapped.addUTXO(utxos[i], tx.getOutput(i % 4));
+        }
+        store.sync();
+        // more than fills the log buffer, so part of these reach the log file, but they are never synced
+        for (int i = 4000; i < 6000; i++)
+            mapped.addUTXO(utxos[i], tx.getOutput(0));
+        for (int i = 1; i < 3000; i += 2)
+            mapped.removeUTXO(utxos[i]);
+
+        // the process dies; the table on disk holds any part of the changes since the checkpoint, e.g. none
+        File[] crashes = {folder.newFolder("before"), folder.newFolder("after")};
+        for (File crash: crashes) {
+            copy(folder.getRoot(), crash, "addresses.dat");
+            copy(folder.getRoot(), crash, "utxo.wal");
+        }
+        copy(checkpointed, crashes[0], "utxo.dat");
+        copy(folder.getRoot(), crashes[1], "utxo.dat");
+        for (File crash: crashes) {
+            MappedUTXOStore recovered = MappedUTXOStore.open(crash, 16);
+            assertEquals(expected.size(), recovered.size());
+            for (UTXO utxo: utxos)
+                assertEquals(expected.getTxOutput(utxo), recovered.get(utxo));
+            assertEquals(new HashSet<>(expected.getAllUTXO()), new HashSet<>(new UTXOPool(recovered).getAllUTXO()));
+            recovered.close();
+        }
+
+        HashSet<UTXO> unsynced = new HashSet<>(mapped.getAllUTXO());
+        assertEquals(mapped.size(), unsynced.size());
+        store.close();
+        MappedUTXOStore reopened = MappedUTXOStore.open(folder.getRoot(), 16);
+        assertEquals(unsynced, new HashSet<>(new UTXOPool(reopened).getAllUTXO()));
+        reopened.close();
+    }
+
+    private static void copy(File from, File to, String name) throws IOException {
+        Files.copy(new File(from, name).toPath(), new File(to, name).toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    // Test 6: the probe methods see the same UTXOs as the UTXO methods, in every store, and removals are recorded
+    @Test
+    public void testProbes() {
+        UTXOStore[] stores = {new HashMapUTXOStore(), new OffHeapUTXOStore(), new PersistentUTXOStore(),
+                new CompactUTXOStore()};
+        for (UTXOStore store: stores) {
+            UTXOPool pool = new UTXOPool(store);
+            pool.addUTXO(utxo(0), tx.getOutput(0));
+            pool.addUTXO(utxo(1), tx.getOutput(1));
+            byte[] hash = tx.getHash().clone();
+
+            assertEquals(tx.getOutput(1), pool.getTxOutput(hash, 1));
+            assertTrue(pool.contains(hash, 0));
+            assertFalse(pool.contains(hash, 2));
+
+            UTXODelta delta = new UTXODelta();
+            pool.startRecording(delta);
+            pool.removeUTXO(hash, 0);
+            pool.stopRecording();
+            assertFalse(pool.contains(utxo(0)));
+            pool.rollback(delta);
+            assertEquals(tx.getOutput(0), pool.getTxOutput(utxo(0)));
+        }
+    }
+
+    // Test 7: balances and coin selection follow additions, removals, rollbacks and copies
+    @Test
+    public void testAddressIndex() throws NoSuchAlgorithmException {
+        PublicKey owner = tx.getOutput(0).address; // owns outputs of value 1, 2, 3 and 4
+        UTXOPool pool = new UTXOPool();
+        pool.addUTXO(utxo(0), tx.getOutput(0));
+        pool.addUTXO(utxo(1), tx.getOutput(1));
+        assertEquals(3, pool.balanceOf(owner), 0);
+
+        UTXODelta delta = new UTXODelta();
+        pool.startRecording(delta);
+        pool.addUTXO(utxo(2), tx.getOutput(2));
+        pool.addUTXO(utxo(3), tx.getOutput(3));
+        pool.removeUTXO(tx.getHash(), 0);
+        pool.stopRecording();
+        assertEquals(9, pool.balanceOf(owner), 0);
+        assertArrayEquals(new UTXO[]{utxo(2)}, pool.selectCoins(owner, 2.5).toArray());
+        assertArrayEquals(new UTXO[]{utxo(3), utxo(2)}, pool.selectCoins(owner, 6).toArray());
+        assertNull(pool.selectCoins(owner, 9.5));
+
+        UTXOPool copy = new UTXOPool(pool);
+        pool.rollback(delta);
+        assertEquals(3, pool.balanceOf(owner), 0);
+        assertEquals(9, copy.balanceOf(owner), 0);
+        assertEquals(0, pool.balanceOf(Fixtures.keyPair().getPublic()), 0);
+
+        // the copy shares the index until either side changes, then each one sees only its own changes
+        copy.removeUTXO(utxo(3));
+        UTXOPool copyOfCopy = new UTXOPool(copy);
+        PublicKey other = Fixtures.keyPair().getPublic();
+        Transaction toOther = new Transaction();
+        toOther.addOutput(5, other);
+        toOther.finalize();
+        copy.addUTXO(new UTXO(toOther.getHash(), 0), toOther.getOutput(0));
+        pool.addUTXO(utxo(3), tx.getOutput(3));
+        assertEquals(7, pool.balanceOf(owner), 0);
+        assertEquals(5, copy.balanceOf(owner), 0);
+        assertEquals(5, copyOfCopy.balanceOf(owner), 0);
+        assertEquals(5, copy.balanceOf(other), 0);
+        assertEquals(0, pool.balanceOf(other), 0);
+        assertEquals(0, copyOfCopy.balanceOf(other), 0);
+        assertArrayEquals(new UTXO[]{utxo(3)}, pool.selectCoins(owner, 4).toArray());
+        assertNull(copy.selectCoins(owner, 6));
+    }
+
+    // Test 8: threads racing to spend the same UTXOs of a concurrent pool spend each one exactly once
+    @Test
+    public void testConcurrentSpend() throws InterruptedException {
+        final UTXOPool pool = new UTXOPool(new ConcurrentUTXOStore());
+        final UTXO[] utxos = new UTXO[2000];
+        Random random = new Random(17);
+        for (int i = 0; i < utxos.length; i++) {
+            byte[] hash = new byte[32];
+            random.nextBytes(hash);
+            utxos[i] = new UTXO(hash, 0);
+            assertTrue(pool.addIfAbsent(utxos[i], tx.getOutput(i % 4)));
+        }
+        assertFalse(pool.addIfAbsent(utxos[0], tx.getOutput(3)));
+
+        final AtomicInteger spent = new AtomicInteger();
+        Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            threads[t] = new Thread(new Runnable() {
+                public void run() {
+                    for (UTXO utxo: utxos)
+                        if (pool.spend(utxo.getTxHash(), utxo.getIndex()) != null)
+                            spent.incrementAndGet();
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread thread: threads)
+            thread.join();
+
+        assertEquals(utxos.length, spent.get());
+        assertEquals(0, pool.size());
+    }
+
+    // Test 9: parallel scans and aggregates see every UTXO exactly once, in every store
+    @Test
+    public void testParallelScans() throws IOException, NoSuchAlgorithmException {
+        Transaction other = new Transaction();
+        other.addOutput(0.5, Fixtures.keyPair().getPublic());
+        other.finalize();
+
+        MappedUTXOStore mapped = MappedUTXOStore.open(folder.getRoot(), 16);
+        UTXOStore[] stores = {new HashMapUTXOStore(), new ConcurrentUTXOStore(), new OffHeapUTXOStore(),
+                new PersistentUTXOStore(), new CompactUTXOStore(), mapped};
+        for (UTXOStore store: stores) {
+            UTXOPool pool = new UTXOPool(store);
+            Random random = new Random(19);
+            for (int i = 0; i < 20000; i++) {
+                byte[] hash = new byte[32];
+                random.nextBytes(hash);
+                pool.addUTXO(new UTXO(hash, i % 3), i % 5 == 0 ? other.getOutput(0) : tx.getOutput(i % 4));
+            }
+            if (!(store instanceof MappedUTXOStore))
+                pool.addUTXO(new UTXO(new byte[]{1, 2, 3}, 0), tx.getOutput(3)); // not 32 bytes long
+
+            Set<UTXO> scanned = pool.parallelStream().map(Map.Entry::getKey).collect(Collectors.toSet());
+            assertEquals(pool.size(), pool.stream().count());
+            assertEquals(new HashSet<>(pool.getAllUTXO()), scanned);
+            assertNotNull(pool.spliterator().trySplit());
+
+            long[] histogram = pool.valueHistogram(1, 3);
+            double supply = 0;
+            for (Map.Entry<UTXO, Transaction.Output> entry: pool.stream().collect(Collectors.toList())) {
+                assertEquals(pool.getTxOutput(entry.getKey()), entry.getValue());
+                supply += entry.getValue().value;
+            }
+            assertEquals(supply, pool.totalSupply(), 1e-9);
+            assertEquals(4000, histogram[0]);
+            assertEquals(pool.size(), histogram[0] + histogram[1] + histogram[2]);
+            Map<PublicKey, Long> counts = pool.countPerAddress();
+            assertEquals(Long.valueOf(4000), counts.get(other.getOutput(0).address));
+            assertEquals(Long.valueOf(pool.size() - 4000), counts.get(tx.getOutput(0).address));
+        }
+        mapped.close();
+    }
+
+    // Test 10: the set hash depends on the entries only, not on the store or the order of the changes
+    @Test
+    public void testSetHash() {
+        UTXOPool incremental = new UTXOPool();
+        byte[] empty = incremental.setHash();
+        UTXOPool reversed = new UTXOPool(new OffHeapUTXOStore());
+        for (int i = 0; i < 4; i++) {
+            incremental.addUTXO(utxo(i), tx.getOutput(i));
+            reversed.addUTXO(utxo(3 - i), tx.getOutput(3 - i));
+        }
+        assertArrayEquals(reversed.setHash(), incremental.setHash());
+        assertEquals(32, empty.length);
+        assertFalse(Arrays.equals(empty, incremental.setHash()));
+
+        UTXOPool copy = new UTXOPool(incremental);
+        UTXODelta delta = new UTXODelta();
+        copy.startRecording(delta);
+        copy.removeUTXO(utxo(0));
+        copy.addUTXO(utxo(1), tx.getOutput(0)); // same UTXO, other output
+        copy.stopRecording();
+        assertFalse(Arrays.equals(incremental.setHash(), copy.setHash()));
+        assertArrayEquals(reversed.setHash(), incremental.setHash());
+
+        copy.rollback(delta);
+        assertArrayEquals(incremental.setHash(), copy.setHash());
+        for (int i = 0; i < 4; i++)
+            copy.removeUTXO(utxo(i));
+        assertArrayEquals(empty, copy.setHash());
+    }
+
+    // Test 11: the filter never hides a UTXO of the pool, through removals, a rebuild and copies, and rejects most
+    // misses
+    @Test
+    public void testFilter() {
+        UTXOPool pool = new UTXOPool(new OffHeapUTXOStore());
+        pool.addUTXO(utxo(0), tx.getOutput(0));
+        CuckooFilter filter = pool.useFilter(16); // too small, has to be rebuilt
+        Random random = new Random(23);
+        UTXO[] utxos = new UTXO[20000];
+        for (int i = 0; i < utxos.length; i++) {
+            byte[] hash = new byte[32];
+            random.nextBytes(hash);
+            utxos[i] = new UTXO(hash, i % 3);
+            pool.addUTXO(utxos[i], tx.getOutput(i % 4));
+        }
+        for (int i = 0; i < utxos.length; i += 2)
+            pool.removeUTXO(utxos[i].getTxHash(), utxos[i].getIndex());
+        assertTrue(pool.getFilter() != filter);
+        filter = pool.getFilter();
+        assertEquals(pool.size(), filter.size());
+
+        assertTrue(pool.contains(utxo(0)));
+        for (int i = 0; i < utxos.length; i++)
+            assertEquals(i % 2 == 1, pool.contains(utxos[i]));
+        int misses = 100000;
+        for (int i = 0; i < misses; i++)
+            assertNull(pool.getTxOutput(new UTXO(tx.getHash(), 4 + i)));
+        assertTrue(filter.getNegatives() >= misses - 50);
+        assertTrue(filter.measuredFalsePositiveRate() < 5e-4);
+        assertTrue(filter.expectedFalsePositiveRate() > 0 && filter.expectedFalsePositiveRate() < 1.25e-4);
+        assertTrue(filter.memoryBytes() >= 2 * pool.size());
+
+        // a copy shares the filter until one side changes it, then each filter follows its own pool
+        UTXOPool copy = new UTXOPool(pool);
+        assertEquals(pool.size(), copy.getFilter().size());
+        for (int i = 0; i < 2000; i++) {
+            if (i % 2 == 1)
+                copy.removeUTXO(utxos[i]);
+            else
+                copy.addUTXO(utxos[i], tx.getOutput(i % 4));
+        }
+        for (int i = 2001; i < 4000; i += 2)
+            pool.removeUTXO(utxos[i]);
+        assertEquals(pool.size(), pool.getFilter().size());
+        assertEquals(copy.size(), copy.getFilter().size());
+        for (int i = 0; i < 4000; i++) {
+            assertEquals(i < 2000 ? i % 2 == 1 : false, pool.contains(utxos[i]));
+            assertEquals(i < 2000 ? i % 2 == 0 : i % 2 == 1, copy.contains(utxos[i]));
+        }
+    }
+
+    // Test 12: a compact pool holds the same outputs as a map pool through growth, removals, reuse and copies, also
+    // outputs whose value is no number of base units
+    @Test
+    public void testCompactStore() {
+        UTXOPool expected = new UTXOPool();
+        CompactUTXOStore store = new CompactUTXOStore();
+        UTXOPool compact = new UTXOPool(store);
+        Random random = new Random(29);
+        UTXO[] utxos = new UTXO[5000];
+        for (int i = 0; i < utxos.length; i++) {
+            byte[] hash = new byte[i % 1000 == 0 ? 20 : 32];
+            random.nextBytes(hash);
+            utxos[i] = new UTXO(hash, i % 3);
+            expected.addUTXO(utxos[i], tx.getOutput(i % 4));
+            compact.addUTXO(utxos[i], tx.getOutput(i % 4));
+        }
+        for (int round = 0; round < 3; round++) { // the removed slots are reused, not piled up
+            for (int i = round % 2; i < utxos.length; i += 2) {
+                expected.removeUTXO(utxos[i]);
+                compact.removeUTXO(utxos[i].getTxHash(), utxos[i].getIndex());
+            }
+            for (int i = round % 2; i < utxos.length; i += 2) {
+                expected.addUTXO(utxos[i], tx.getOutput((i + round) % 4));
+                compact.addUTXO(utxos[i], tx.getOutput((i + round) % 4));
+            }
+        }
+        UTXOPool copy = new UTXOPool(compact);
+        compact.removeUTXO(utxos[1]);
+
+        assertEquals(1, store.addressCount());
+        assertEquals(expected.size() - 1, compact.size());
+        assertEquals(expected.size(), copy.size());
+        for (int i = 0; i < utxos.length; i++) {
+            assertEquals(expected.getTxOutput(utxos[i]), copy.getTxOutput(utxos[i]));
+            assertEquals(i != 1, compact.contains(utxos[i]));
+        }
+        assertArrayEquals(expected.setHash(), copy.setHash());
+
+        // values are kept in base units, the few that are not a number of base units come back unchanged too
+        Transaction odd = new Transaction();
+        double[] values = {0.1 + 0.2, 1e-9, -1, Double.NaN, CoinValue.MAX_COINS * 2, 1.5};
+        for (double value : values)
+            odd.addOutput(value, tx.getOutput(0).address);
+        odd.finalize();
+        for (int i = 0; i < values.length; i++)
+            compact.addUTXO(new UTXO(odd.getHash(), i), odd.getOutput(i));
+        UTXOPool oddCopy = new UTXOPool(compact);
+        for (int i = 0; i < values.length; i++) {
+            assertEquals(values[i], compact.getTxOutput(new UTXO(odd.getHash(), i)).value, 0);
+            assertEquals(values[i], oddCopy.getTxOutput(new UTXO(odd.getHash(), i)).value, 0);
+        }
+        compact.addUTXO(new UTXO(odd.getHash(), 0), odd.getOutput(5));
+        compact.addUTXO(new UTXO(odd.getHash(), 5), odd.getOutput(1));
+        compact.removeUTXO(new UTXO(odd.getHash(), 3));
+        assertEquals(1.5, compact.getTxOutput(new UTXO(odd.getHash(), 0)).value, 0);
+        assertEquals(1e-9, compact.getTxOutput(new UTXO(odd.getHash(), 5)).value, 0);
+        assertNull(compact.getTxOutput(new UTXO(odd.getHash(), 3)));
+        assertEquals(0.1 + 0.2, oddCopy.getTxOutput(new UTXO(odd.getHash(), 0)).value, 0);
+        assertEquals(Double.NaN, oddCopy.getTxOutput(new UTXO(odd.getHash(), 3)).value, 0);
+    }
+
+    // Test 13: pay-to-key-hash outputs keep their address hash in every store, also across a restart, and belong
+    // to the balance of their key
+    @Test
+    public void testPayToKeyHashOutputs() throws IOException {
+        PublicKey owner = tx.getOutput(0).address;
+        Transaction hashed = new Transaction();
+        hashed.addOutput(5, Transaction.addressHashOf(owner));
+        hashed.addOutput(6, new byte[32]);
+        hashed.finalize();
+        UTXO first = new UTXO(hashed.getHash(), 0);
+        UTXO second = new UTXO(hashed.getHash(), 1);
+
+        MappedUTXOStore mapped = MappedUTXOStore.open(folder.getRoot(), 16);
+        UTXOStore[] stores = {new HashMapUTXOStore(), new OffHeapUTXOStore(), new PersistentUTXOStore(),
+                new CompactUTXOStore(), mapped};
+        for (UTXOStore store: stores) {
+            UTXOPool pool = new UTXOPool(store);
+            pool.addUTXO(utxo(0), tx.getOutput(0));
+            pool.addUTXO(first, hashed.getOutput(0));
+            pool.addUTXO(second, hashed.getOutput(1));
+
+            Transaction.Output output = pool.getTxOutput(first);
+            assertEquals(hashed.getOutput(0), output);
+            assertNull(output.address);
+            assertArrayEquals(Transaction.addressHashOf(owner), output.addressHash);
+            assertFalse(output.equals(pool.getTxOutput(second)));
+            assertEquals(6, pool.balanceOf(owner), 0);
+            assertArrayEquals(new UTXO[]{first}, pool.selectCoins(owner, 4).toArray());
+            assertEquals(Long.valueOf(1), pool.countPerAddress().get(owner));
+        }
+        mapped.close();
+
+        MappedUTXOStore reopened = MappedUTXOStore.open(folder.getRoot(), 16);
+        assertEquals(hashed.getOutput(0), reopened.get(first));
+        assertEquals(hashed.getOutput(1), reopened.get(second));
+        assertEquals(tx.getOutput(0), reopened.get(utxo(0)));
+        reopened.close();
+
+        UTXOPool compact = new UTXOPool(new CompactUTXOStore());
+        byte[][] hashes = new byte[3][];
+        for (int i = 0; i < hashes.length; i++) {
+            hashes[i] = Transaction.addressHashOf(owner);
+            compact.addUTXO(new UTXO(hashed.getHash(), 10 + i), hashed.new Output(1, hashes[i]));
+        }
+        byte[] kept = compact.getTxOutput(new UTXO(hashed.getHash(), 10)).addressHash;
+        for (int i = 0; i < hashes.length; i++) {
+            assertNotSame(hashes[i], kept);
+            assertSame(kept, compact.getTxOutput(new UTXO(hashed.getHash(), 10 + i)).addressHash);
+        }
+        hashes[0][0]++;
+        assertArrayEquals(Transaction.addressHashOf(owner), kept);
+        assertEquals(3, compact.balanceOf(owner), 0);
+    }
+
+    // Test 14: a delta recorded by an in place handler rolls a rejected block back exactly, and moves a pool between
+    // two forks
+    @Test
+    public void testDeltaOfBlocks() throws NoSuchAlgorithmException, SignatureException {
+        KeyPair owner = Fixtures.keyPair();
+        KeyPair other = Fixtures.keyPair();
+        Transaction root = new Transaction();
+        root.addOutput(5, owner.getPublic());
+        root.addOutput(5, owner.getPublic());
+        root.finalize();
+        UTXOPool pool = new UTXOPool();
+        pool.addUTXO(new UTXO(root.getHash(), 0), root.getOutput(0));
+        pool.addUTXO(new UTXO(root.getHash(), 1), root.getOutput(1));
+        byte[] parent = pool.setHash();
+
+        Transaction[] fork = new Transaction[2];
+        for (int i = 0; i < fork.length; i++) {
+            fork[i] = new Transaction();
+            fork[i].addInput(root.getHash(), 0);
+            fork[i].addOutput(5, (i == 0 ? owner : other).getPublic());
+            fork[i].signTx(owner.getPrivate(), 0);
+        }
+        Transaction badSignature = new Transaction();
+        badSignature.addInput(root.getHash(), 1);
+        badSignature.addOutput(5, other.getPublic());
+        badSignature.signTx(other.getPrivate(), 0);
+
+        // the first transaction is applied before the second one fails
+        UTXODelta rejected = new UTXODelta();
+        pool.startRecording(rejected);
+        assertFalse(TxHandler.inPlace(pool).acceptAll(new Transaction[]{fork[0], badSignature}));
+        pool.stopRecording();
+        assertFalse(rejected.isEmpty());
+        pool.rollback(rejected);
+        assertArrayEquals(parent, pool.setHash());
+
+        UTXODelta[] deltas = new UTXODelta[fork.length];
+        byte[][] states = new byte[fork.length][];
+        for (int i = 0; i < fork.length; i++) {
+            deltas[i] = new UTXODelta();
+            pool.startRecording(deltas[i]);
+            assertTrue(TxHandler.inPlace(pool).acceptAll(new Transaction[]{fork[i]}));
+            pool.stopRecording();
+            states[i] = pool.setHash();
+            pool.rollback(deltas[i]);
+            assertArrayEquals(parent, pool.setHash());
+        }
+        assertFalse(Arrays.equals(states[0], states[1]));
+        pool.apply(deltas[0]);
+        assertArrayEquals(states[0], pool.setHash());
+        pool.rollback(deltas[0]);
+        pool.apply(deltas[1]);
+        assertArrayEquals(states[1], pool.setHash());
+        assertTrue(pool.contains(new UTXO(fork[1].getHash(), 0)));
+        assertFalse(pool.contains(new UTXO(fork[0].getHash(), 0)));
+    }
+
+    // Test 15: an output without an address comes back without one in every store, also when the next output pays
+    // to a key, and a mapped store rejects it without numbering it
+    @Test
+    public void testOutputWithoutAddress() throws IOException {
+        Transaction nobody = new Transaction();
+        nobody.addOutput(7, (PublicKey) null);
+        PublicKey owner = tx.getOutput(0).address;
+        UTXOStore[] stores = {new HashMapUTXOStore(), new OffHeapUTXOStore(), new PersistentUTXOStore(),
+                new CompactUTXOStore()};
+        for (UTXOStore store : stores) {
+            UTXOPool pool = new UTXOPool(store);
+            pool.addUTXO(utxo(3), nobody.getOutput(0));
+            pool.addUTXO(utxo(0), tx.getOutput(0));
+            Transaction.Output output = pool.getTxOutput(utxo(3));
+            assertNull(output.address);
+            assertNull(output.addressHash);
+            assertEquals(7, output.value, 0);
+            assertEquals(owner, pool.getTxOutput(utxo(0)).address);
+            assertEquals(1, pool.balanceOf(owner), 0);
+        }
+
+        MappedUTXOStore store = MappedUTXOStore.open(folder.getRoot(), 16);
+        UTXOPool mapped = new UTXOPool(store);
+        try {
+            mapped.addUTXO(utxo(3), nobody.getOutput(0));
+            fail("a mapped store cannot keep an output without an address");
+        } catch (IllegalArgumentException expected) {
+        }
+        mapped.addUTXO(utxo(0), tx.getOutput(0));
+        store.sync();
+        store.close();
+        MappedUTXOStore reopened = MappedUTXOStore.open(folder.getRoot(), 16);
+        assertFalse(reopened.contains(utxo(3)));
+        assertEquals(owner, reopened.get(utxo(0)).address);
+        reopened.close();
+    }
+
+    // Test 16: a handler on a mapped pool rejects a transaction spending a UTXO whose hash is not 32 bytes as a
+    // missing input, only adding such a UTXO throws
+    @Test
+    public void testMappedStoreShortHash() throws IOException, NoSuchAlgorithmException, SignatureException {
+        KeyPair owner = Fixtures.keyPair();
+        MappedUTXOStore store = MappedUTXOStore.open(folder.getRoot(), 16);
+        UTXOPool pool = new UTXOPool(store);
+        pool.addUTXO(utxo(0), tx.getOutput(0));
+        Transaction spend = new Transaction();
+        spend.addInput(new byte[]{1, 2, 3}, 0);
+        spend.addOutput(1, owner.getPublic());
+        spend.signTx(owner.getPrivate(), 0);
+
+        TxHandler handler = new TxHandler(pool);
+        assertFalse(handler.isValidTx(spend));
+        assertEquals(RejectReason.MISSING_INPUT, handler.checkTx(spend));
+        assertNull(handler.handleTxs(new Transaction[]{spend})[0]);
+        UTXO shortHash = new UTXO(new byte[]{1, 2, 3}, 0);
+        assertFalse(pool.contains(shortHash));
+        assertNull(pool.getTxOutput(shortHash));
+        assertNull(pool.spend(shortHash));
+        try {
+            pool.addUTXO(shortHash, tx.getOutput(1));
+            fail("a mapped store has no room for a 3 byte hash");
+        } catch (IllegalArgumentException expected) {
+        }
+        assertEquals(1, pool.size());
+        store.close();
+    }
+}
@@ -0,0 +1,158 @@
+package com.ing.fx;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.security.KeyPair;
+import java.security.NoSuchAlgorithmException;
+import java.security.SignatureException;
+import java.util.Arrays;
+
+import com.ing.fx.block_chain.Block;
+import com.ing.fx.block_chain.Transaction;
+import com.ing.fx.block_chain.WireFormat;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Unit tests for the {@link WireFormat} encoding of transactions and blocks
+ * <p>
+ * Test Strategy:
+ * Test 1: a decoded transaction is equal to the encoded one, with the same raw encoding and hash
+ * Test 2: a decoded block has the same transactions and hash, and repeated addresses are sent once
+ * Test 3: unknown versions, truncated or overlong encodings, a block without a coinbase key and hashes that are not
+ * 32 bytes are rejected
+ * Test 4: pay-to-key-hash outputs and the keys revealed to spend them survive a round trip, 32 bytes per hash
+ */
+public class WireFormatTest {
+
+    private KeyPair scrooge;
+    private KeyPair alice;
+    private Transaction tx;
+
+    @Before
+    public void setUp() throws NoSuchAlgorithmException, SignatureException {
+        scrooge = Fixtures.keyPair();
+        alice = Fixtures.keyPair();
+        tx = new Transaction();
+        tx.addInput(new byte[32], 0);
+        tx.addInput(new byte[32], 300);
+        tx.addOutput(10, alice.getPublic());
+        tx.addOutput(2.5, scrooge.getPublic());
+        tx.addOutput(0.1, alice.getPublic());
+        tx.signTx(scrooge.getPrivate(), 0);
+        tx.signTx(alice.getPrivate(), 1);
+    }
+
+    // Test 1: a decoded transaction is equal to the encoded one, with the same raw encoding and hash
+    @Test
+    public void testTransactionRoundTrip() {
+        Transaction decoded = WireFormat.decodeTransaction(WireFormat.encode(tx));
+        assertEquals(tx, decoded);
+        assertArrayEquals(tx.getRawTx(), decoded.getRawTx());
+        assertArrayEquals(tx.getHash(), decoded.getHash());
+        assertArrayEquals(WireFormat.encode(tx), WireFormat.encode(decoded));
+
+        Transaction unsigned = new Transaction();
+        unsigned.addInput(tx.getHash(), 0);
+        unsigned.addOutput(1, alice.getPublic());
+        Transaction decodedUnsigned = WireFormat.decodeTransaction(WireFormat.encode(unsigned));
+        assertNull(decodedUnsigned.getInput(0).signature);
+        assertNull(decodedUnsigned.getHash());
+        assertArrayEquals(unsigned.getRawTx(), decodedUnsigned.getRawTx());
+
+        Transaction coinbase = new Transaction(25, alice.getPublic());
+        Transaction decodedCoinbase = WireFormat.decodeTransaction(WireFormat.encode(coinbase));
+        assertTrue(decodedCoinbase.isCoinbase());
+        assertArrayEquals(coinbase.getHash(), decodedCoinbase.getHash());
+    }
+
+    // Test 2: a decoded block has the same transactions and hash, and repeated addresses are sent once
+    @Test
+    public void testBlockRoundTrip() throws SignatureException {
+        Block block = new Block(new byte[32], alice.getPublic());
+        for (int i = 0; i < 20; i++) {
+            Transaction payment = new Transaction();
+            payment.addInput(tx.getHash(), i);
+            payment.addOutput(1, i % 2 == 0 ? alice.getPublic() : scrooge.getPublic());
+            payment.signTx(scrooge.getPrivate(), 0);
+            block.addTransaction(payment);
+        }
+        block.finalize();
+
+        byte[] encoded = WireFormat.encode(block);
+        Block decoded = WireFormat.decodeBlock(encoded);
+        assertEquals(block.getTransactions(), decoded.getTransactions());
+        assertEquals(block.getCoinbase(), decoded.getCoinbase());
+        assertArrayEquals(block.getHash(), decoded.getHash());
+        assertArrayEquals(block.getRawBlock(), decoded.getRawBlock());
+        // one signature of about 256 bytes per transaction remains, the 260 byte keys are sent twice in all
+        assertTrue(encoded.length + " bytes", encoded.length < block.getRawBlock().length * 6 / 10);
+    }
+
+    // Test 3: unknown versions, truncated or overlong encodings, a block without a coinbase key and hashes that are
+    // not 32 bytes are rejected
+    @Test
+    public void testMalformedEncodings() {
+        byte[] encoded = WireFormat.encode(tx);
+        byte[] otherVersion = encoded.clone();
+        otherVersion[0] = WireFormat.VERSION + 1;
+        assertRejected(otherVersion);
+        assertRejected(Arrays.copyOf(encoded, encoded.length - 1));
+        assertRejected(Arrays.copyOf(encoded, encoded.length + 1));
+        assertRejected(new byte[0]);
+        assertBlockRejected(new byte[]{WireFormat.VERSION, 0, 0, 0}); // a coinbase without a key
+        assertBlockRejected(new byte[0]);
+
+        Transaction shortHash = new Transaction();
+        shortHash.addInput(new byte[]{1, 2, 3}, 0);
+        try {
+            WireFormat.encode(shortHash);
+            fail("a 3 byte hash was encoded");
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+
+    private static void assertRejected(byte[] bytes) {
+        try {
+            WireFormat.decodeTransaction(bytes);
+            fail("decoded " + Arrays.toString(bytes));
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+
+    private static void assertBlockRejected(byte[] bytes) {
+        try {
+            WireFormat.decodeBlock(bytes);
+            fail("decoded " + Arrays.toString(bytes));
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+
+    // Test 4: pay-to-key-hash outputs and the keys revealed to spend them survive a round trip, 32 bytes per hash
+    @Test
+    public void testPayToKeyHash() throws SignatureException {
+        Transaction toKeys = new Transaction();
+        toKeys.addInput(tx.getHash(), 0);
+        toKeys.addOutput(1, alice.getPublic());
+        toKeys.addOutput(2, scrooge.getPublic());
+        toKeys.signTx(alice.getPrivate(), 0);
+        Transaction toHashes = new Transaction();
+        toHashes.addInput(tx.getHash(), 0);
+        toHashes.addOutput(1, Transaction.addressHashOf(alice.getPublic()));
+        toHashes.addOutput(2, Transaction.addressHashOf(scrooge.getPublic()));
+        toHashes.addPublicKey(alice.getPublic(), 0);
+        toHashes.signTx(alice.getPrivate(), 0);
+
+        Transaction decoded = WireFormat.decodeTransaction(WireFormat.encode(toHashes));
+        assertEquals(toHashes, decoded);
+        assertArrayEquals(toHashes.getHash(), decoded.getHash());
+        assertEquals(alice.getPublic(), decoded.getInput(0).publicKey);
+        assertArrayEquals(Transaction.addressHashOf(scrooge.getPublic()), decoded.getOutput(1).addressHash);
+        // one key revealed and two 33 byte hashes instead of two keys of about 264 bytes paid to
+        assertTrue(WireFormat.encode(toHashes).length < WireFormat.encode(toKeys).length - 150);
+    }
+}